@@ -0,0 +1,42 @@
+package downloader;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+
+public class BenchmarksMain {
+
+    private static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+    private static final String LOG_CONFIG = "-Dlog4j.configurationFile=log4j2-benchmarks.xml";
+
+    public static void main(String... args) throws RunnerException, IOException {
+        CommandLineOptions cmdOptions;
+        try {
+            cmdOptions = new CommandLineOptions(args);
+        } catch (CommandLineOptionException err) {
+            System.err.println("Error parsing command line: " + err.getMessage());
+            System.exit(1);
+            return;
+        }
+        if (cmdOptions.shouldHelp() || cmdOptions.shouldList() || cmdOptions.shouldListProfilers()
+                || cmdOptions.shouldListResultFormats() || cmdOptions.shouldListWithParams()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent(cmdOptions);
+        if (!cmdOptions.getResultFormat().hasValue())
+            options.resultFormat(ResultFormatType.JSON);
+        if (!cmdOptions.getResult().hasValue())
+            options.result(DEFAULT_RESULT_FILE);
+        if (!cmdOptions.getJvmArgsAppend().hasValue())
+            options.jvmArgsAppend(LOG_CONFIG);
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,173 @@
+package downloader;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.io.FileUtils;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Offline macro benchmark: generates a synthetic corpus, serves its resources from
+ * {@link StandInHttpServer} and runs the real {@link StartHere} pipeline over it.
+ * Arguments after "--" are passed to the downloader as is, e.g. {@code -- -j 8 --host-connections 8}.
+ */
+public class EndToEndBenchmark {
+
+    public static void main(String... args) throws IOException {
+        Options options = new Options();
+        options.addOption(longOption("pages", "count", "Pages in corpus. Default - 100"));
+        options.addOption(longOption("per-page", "count", "Resource links per page. Default - 40"));
+        options.addOption(longOption("pool", "count", "Shared resources pool size. Default - 500"));
+        options.addOption(longOption("paragraphs", "count", "Text paragraphs per page. Default - 200"));
+        options.addOption(longOption("latency", "ms", "Response latency. Default - 20 ms"));
+        options.addOption(longOption("bandwidth", "KB/s", "Per-connection bandwidth, 0 - unlimited. Default - 0"));
+        options.addOption(longOption("min-size", "bytes", "Minimal resource size. Default - 1024"));
+        options.addOption(longOption("max-size", "bytes", "Maximal resource size. Default - 65536"));
+        options.addOption(longOption("statuses", "code:percent,...", "Non-200 responses mix, e.g. 404:5,503:2"));
+        options.addOption(longOption("redirects", "percent", "Responses redirected once. Default - 0"));
+        options.addOption(longOption("drops", "percent", "Connections dropped without response. Default - 0"));
+        options.addOption(longOption("keystore", "path", "Serve HTTPS with this PKCS12/JKS key store"));
+        options.addOption(longOption("keystore-password", "password", "Key store password. Default - changeit"));
+        options.addOption(longOption("work-dir", "path", "Corpus directory, temporary by default"));
+        options.addOption(longOption("result", "path", "Result JSON file. Default - e2e-result.json"));
+        options.addOption(Option.builder().longOpt("help").desc("Display this help").build());
+
+        CommandLine commandLine;
+        StandInHttpServer.Settings settings = new StandInHttpServer.Settings();
+        int pages;
+        int perPage;
+        int pool;
+        int paragraphs;
+        try {
+            commandLine = new DefaultParser().parse(options, args);
+            if (commandLine.hasOption("help")) {
+                new HelpFormatter().printHelp("EndToEndBenchmark [options] [-- downloader options]", options);
+                return;
+            }
+            pages = intValue(commandLine, "pages", 100);
+            perPage = intValue(commandLine, "per-page", 40);
+            pool = intValue(commandLine, "pool", 500);
+            paragraphs = intValue(commandLine, "paragraphs", 200);
+            settings.latencyMillis = intValue(commandLine, "latency", 20);
+            settings.bandwidthBytes = intValue(commandLine, "bandwidth", 0) * 1024L;
+            settings.minSize = intValue(commandLine, "min-size", 1024);
+            settings.maxSize = intValue(commandLine, "max-size", 65536);
+            settings.redirectPercent = intValue(commandLine, "redirects", 0);
+            settings.dropPercent = intValue(commandLine, "drops", 0);
+            settings.setStatusMix(commandLine.getOptionValue("statuses", ""));
+            if (commandLine.hasOption("keystore")) {
+                settings.keyStore = Paths.get(commandLine.getOptionValue("keystore"));
+                settings.keyStorePassword = commandLine.getOptionValue("keystore-password", settings.keyStorePassword);
+            }
+        } catch (ParseException | IllegalArgumentException err) {
+            System.err.println(err.getMessage());
+            System.exit(2);
+            return;
+        }
+        Path resultFile = Paths.get(commandLine.getOptionValue("result", "e2e-result.json"));
+        boolean temporary = !commandLine.hasOption("work-dir");
+        Path workDir = temporary
+                ? Files.createTempDirectory("resdownloader-e2e")
+                : Paths.get(commandLine.getOptionValue("work-dir"));
+
+        try (StandInHttpServer server = new StandInHttpServer(settings)) {
+            List<Path> corpus = SyntheticPages.generateCorpus(workDir, server.getBaseUrl(), pages, perPage, pool,
+                    paragraphs, 42L);
+            long corpusBytes = 0L;
+            for (Path page : corpus) {
+                corpusBytes += Files.size(page);
+            }
+
+            List<String> downloaderArgs = new ArrayList<>(Arrays.asList(commandLine.getArgs()));
+            downloaderArgs.add(workDir.toString());
+
+            List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+            for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (memoryPool.getType() == MemoryType.HEAP) {
+                    memoryPool.resetPeakUsage();
+                    heapPools.add(memoryPool);
+                }
+            }
+
+            long started = System.nanoTime();
+            StartHere.main(downloaderArgs.toArray(new String[0]));
+            double seconds = (System.nanoTime() - started) / 1_000_000_000.0;
+
+            long peakHeap = 0L;
+            for (MemoryPoolMXBean memoryPool : heapPools) {
+                peakHeap += memoryPool.getPeakUsage().getUsed();
+            }
+            long documents = Metrics.counter("resdownloader_documents_total").get();
+            long resources = Metrics.sum("resdownloader_requests_total");
+            long bytes = Metrics.sum("resdownloader_bytes_total");
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("downloader_args", commandLine.getArgs());
+            result.put("pages", pages);
+            result.put("resources_per_page", perPage);
+            result.put("resources_pool", pool);
+            result.put("corpus_bytes", corpusBytes);
+            result.put("latency_ms", settings.latencyMillis);
+            result.put("bandwidth_bytes_per_second", settings.bandwidthBytes);
+            result.put("seconds", seconds);
+            result.put("pages_per_second", documents / seconds);
+            result.put("resources_per_second", resources / seconds);
+            result.put("bytes_per_second", bytes / seconds);
+            result.put("peak_heap_bytes", peakHeap);
+            result.put("documents", documents);
+            result.put("resource_requests", resources);
+            result.put("downloaded_bytes", bytes);
+            result.put("server_requests", server.getRequests());
+            result.put("server_bytes", server.getBytesSent());
+            result.put("server_drops", server.getDrops());
+            result.put("server_statuses", server.getStatuses());
+
+            ObjectMapper objectMapper = new ObjectMapper();
+            objectMapper.enable(SerializationFeature.INDENT_OUTPUT);
+            String json = objectMapper.writeValueAsString(result);
+            Files.write(resultFile, json.getBytes(StandardCharsets.UTF_8));
+            System.out.println(json);
+        } finally {
+            if (temporary)
+                FileUtils.deleteDirectory(workDir.toFile());
+        }
+    }
+
+    private static Option longOption(String name, String argName, String description) {
+        return Option.builder()
+                .longOpt(name)
+                .hasArg()
+                .argName(argName)
+                .desc(description)
+                .build();
+    }
+
+    private static int intValue(CommandLine commandLine, String option, int defaultValue) {
+        String raw = commandLine.getOptionValue(option);
+        if (raw == null)
+            return defaultValue;
+        try {
+            return Integer.parseInt(raw);
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("Unable to parse --" + option + ": " + raw);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package downloader;
+
+import org.apache.commons.io.FileUtils;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HtmlDocumentBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    private int paragraphs;
+
+    @Param({"UTF-8", "windows-1251"})
+    private String charset;
+
+    private Path workDir;
+    private InputHtmlFilesReader reader;
+    private Document document;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workDir = Files.createTempDirectory("resdownloader-bench");
+        Path page = workDir.resolve("page.html");
+        String html = SyntheticPages.page("https://cdn.example.org", 200, paragraphs, 42L)
+                .replace("charset=\"utf-8\"", "charset=\"" + charset + "\"");
+        Files.write(page, html.getBytes(charset));
+        reader = new InputHtmlFilesReader(Collections.singletonList(page));
+
+        document = Jsoup.parse(page.toFile(), charset, page.toAbsolutePath().toString());
+        document.outputSettings().prettyPrint(false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(workDir.toFile());
+    }
+
+    @Benchmark
+    public Document detectCharsetAndParse() {
+        Iterator<Document> documents = reader.iterator();
+        if (!documents.hasNext())
+            throw new IllegalStateException("Unable to read benchmark page");
+        return documents.next();
+    }
+
+    @Benchmark
+    public String outerHtml() {
+        return document.outerHtml();
+    }
+}
@@ -0,0 +1,97 @@
+package downloader;
+
+import org.apache.commons.io.FileUtils;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rewrites inline style with every url already resolved in state database,
+ * so only the extraction, lookup and replace path is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InlineStyleBenchmark {
+
+    private static final String BASE_URL = "https://fonts.example.org";
+
+    @Param({"10", "100", "1000"})
+    private int fonts;
+
+    private Path workDir;
+    private SqliteHolder sqliteHolder;
+    private DownloadScheduler scheduler;
+    private DownloadClients clients;
+    private ResourceProcessor resourceProcessor;
+    private Element style;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workDir = Files.createTempDirectory("resdownloader-bench");
+        Path page = workDir.resolve("page.html");
+        Document document = Jsoup.parse("<html><head>" + SyntheticPages.style(BASE_URL, fonts) + "</head></html>",
+                page.toAbsolutePath().toString());
+        style = document.getElementsByTag("style").first();
+
+        ParsedCmdline parsedCmdline = new ParsedCmdline();
+        sqliteHolder = new SqliteHolder();
+        scheduler = new DownloadScheduler(1, 1);
+        clients = new DownloadClients(parsedCmdline);
+        resourceProcessor = ResourceProcessor.forDocument(sqliteHolder,
+                new ResourcePacks(),
+                new ResourceDirLocks(),
+                null,
+                null,
+                clients,
+                document,
+                parsedCmdline,
+                scheduler,
+                new RetryPolicy(1000L, 20),
+                new HostCircuitBreaker(5, 300_000L, 3_600_000L));
+
+        SqliteState sqliteState = sqliteHolder.getConnection(workDir.resolve(NamesUtils.RESOURCES_PATH_NAME)
+                .resolve(NamesUtils.STATE_DB_NAME));
+        for (int i = 0; i < fonts; i++) {
+            sqliteState.getConverted().put(BASE_URL + "/fonts/font" + i + ".woff2",
+                    NamesUtils.RESOURCES_PATH_NAME + "/fonts.example.org/fonts/font" + i + ".woff2");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        resourceProcessor.close();
+        clients.close();
+        scheduler.close();
+        sqliteHolder.close();
+        FileUtils.deleteDirectory(workDir.toFile());
+    }
+
+    @Benchmark
+    public Element replaceInnerStyle() {
+        Element innerStyle = style.clone();
+        StartHere.replaceInnerStyle(resourceProcessor, innerStyle, false);
+        return innerStyle;
+    }
+}
@@ -0,0 +1,148 @@
+package downloader;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SqliteStateBenchmark {
+
+    private static final int SAMPLE_SIZE = 4096;
+
+    @Param({"10000", "100000", "1000000"})
+    private int rows;
+
+    private Path workDir;
+    private SqliteHolder sqliteHolder;
+    private SqliteState sqliteState;
+    private String[] existingKeys;
+    private String[] missingKeys;
+    private int cursor;
+    private long inserted;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        workDir = Files.createTempDirectory("resdownloader-bench");
+        Path dbPath = workDir.resolve(NamesUtils.STATE_DB_NAME);
+        sqliteHolder = new SqliteHolder();
+        sqliteState = sqliteHolder.getConnection(dbPath);
+        fill(dbPath);
+
+        Random random = new Random(42L);
+        existingKeys = new String[SAMPLE_SIZE];
+        missingKeys = new String[SAMPLE_SIZE];
+        for (int i = 0; i < SAMPLE_SIZE; i++) {
+            existingKeys[i] = remoteUrl(random.nextInt(rows));
+            missingKeys[i] = remoteUrl(rows + random.nextInt(rows));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sqliteHolder.close();
+        FileUtils.deleteDirectory(workDir.toFile());
+    }
+
+    @Benchmark
+    public String mapGet() {
+        return sqliteState.getConverted().get(nextExisting());
+    }
+
+    @Benchmark
+    public boolean mapContainsKeyHit() {
+        return sqliteState.getConverted().containsKey(nextExisting());
+    }
+
+    @Benchmark
+    public boolean mapContainsKeyMiss() {
+        return sqliteState.getConverted().containsKey(nextMissing());
+    }
+
+    @Benchmark
+    public void mapPutUpdate() {
+        String key = nextExisting();
+        sqliteState.getConverted().put(key, localPath(key));
+    }
+
+    @Benchmark
+    public void mapPutInsert() {
+        String key = "https://bench.example.org/new/" + (inserted++) + ".png";
+        sqliteState.getConverted().put(key, localPath(key));
+    }
+
+    @Benchmark
+    public boolean listContainsHit() {
+        return sqliteState.getFailed().contains(nextExisting());
+    }
+
+    @Benchmark
+    public boolean listContainsMiss() {
+        return sqliteState.getFailed().contains(nextMissing());
+    }
+
+    private String nextExisting() {
+        return existingKeys[cursor++ & (SAMPLE_SIZE - 1)];
+    }
+
+    private String nextMissing() {
+        return missingKeys[cursor++ & (SAMPLE_SIZE - 1)];
+    }
+
+    private void fill(Path dbPath) throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + dbPath.toString().replace('\\', '/'))) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement converted = connection.prepareStatement("insert into `converted` (`name`, `value`) values (?, ?)");
+                 PreparedStatement failed = connection.prepareStatement("insert into `fails` (`value`) values (?)")) {
+                for (int i = 0; i < rows; i++) {
+                    String url = remoteUrl(i);
+                    converted.setString(1, url);
+                    converted.setString(2, localPath(url));
+                    converted.addBatch();
+                    failed.setString(1, url);
+                    failed.addBatch();
+                    if (i % 10_000 == 9_999) {
+                        converted.executeBatch();
+                        failed.executeBatch();
+                    }
+                }
+                converted.executeBatch();
+                failed.executeBatch();
+            }
+            connection.commit();
+        }
+    }
+
+    private static String remoteUrl(int index) {
+        return "https://cdn" + (index % 16) + ".example.org/static/assets/" + index + "/image.png";
+    }
+
+    private static String localPath(String url) {
+        return NamesUtils.RESOURCES_PATH_NAME + "/" + url.substring(url.indexOf("://") + 3);
+    }
+}
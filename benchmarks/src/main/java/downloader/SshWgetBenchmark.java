@@ -0,0 +1,98 @@
+package downloader;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-resource cost of the SSH download path against {@link StandInSshServer}.
+ * Run with {@code -prof gc} to see allocated bytes per download for large files,
+ * and with disconnectEvery > 0 to include connectReconnect() in the measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class SshWgetBenchmark {
+
+    @Param({"1024", "1048576", "16777216"})
+    private int fileSize;
+
+    @Param({"0"})
+    private long commandLatency;
+
+    @Param({"0", "20"})
+    private int disconnectEvery;
+
+    private Path workDir;
+    private StandInSshServer server;
+    private SSHWgetClient client;
+    private URI resource;
+    private URI missingResource;
+    private Path tempFile;
+    private Path outputFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workDir = Files.createTempDirectory("resdownloader-bench");
+        StandInSshServer.Settings settings = new StandInSshServer.Settings();
+        settings.fixturesDir = workDir.resolve("fixtures");
+        settings.remoteTempDir = workDir.resolve("remote");
+        settings.latencyMillis = commandLatency;
+        settings.disconnectEvery = disconnectEvery;
+
+        Path fixture = settings.fixturesDir.resolve("img").resolve("resource.bin");
+        Files.createDirectories(fixture.getParent());
+        byte[] content = new byte[fileSize];
+        new Random(42L).nextBytes(content);
+        Files.write(fixture, content);
+
+        server = new StandInSshServer(settings);
+        client = new SSHWgetClient("127.0.0.1", server.getPort(), settings.user, settings.password,
+                null, 60, new TransferLimits(60, 60, 60, 0, 0, TransferLimits.DEFAULT_MIN_SPEED_TIME), true, false);
+        resource = new URI("http://fixtures.example.org/img/resource.bin");
+        missingResource = new URI("http://fixtures.example.org/img/missing.bin");
+        tempFile = workDir.resolve("temp.dat");
+        outputFile = workDir.resolve("resource.bin");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        client.close();
+        server.close();
+        FileUtils.deleteDirectory(workDir.toFile());
+    }
+
+    @Benchmark
+    public DownloadResult download() {
+        DownloadResult result = client.download(resource, tempFile, outputFile);
+        if (!result.isOk())
+            throw new IllegalStateException("Unexpected result " + result.getCodeLabel());
+        return result;
+    }
+
+    @Benchmark
+    public DownloadResult downloadMissing() {
+        return client.download(missingResource, tempFile, outputFile);
+    }
+}
@@ -0,0 +1,264 @@
+package downloader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Local stand-in for remote resource hosts. Serves deterministic content for any path,
+ * with configurable latency, bandwidth, status codes mix, redirects, ETags and dropped connections.
+ */
+public class StandInHttpServer
+        implements Closeable, AutoCloseable {
+
+    private static final Logger log = LogManager.getLogger(StandInHttpServer.class.getSimpleName());
+    private static final String REDIRECTED_MARK = "redirected=1";
+    private static final int CHUNK_SIZE = 8192;
+
+    private final Settings settings;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder drops = new LongAdder();
+    private final ConcurrentMap<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+
+    public StandInHttpServer(@NotNull final Settings settings) throws IOException {
+        this.settings = settings;
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), settings.port);
+        if (settings.keyStore != null) {
+            HttpsServer httpsServer = HttpsServer.create(address, 0);
+            httpsServer.setHttpsConfigurator(new HttpsConfigurator(createSslContext(settings.keyStore,
+                    settings.keyStorePassword)));
+            server = httpsServer;
+        } else {
+            server = HttpServer.create(address, 0);
+        }
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "stand-in-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+        log.info("Stand-in server listening on {}", getBaseUrl());
+    }
+
+    public String getBaseUrl() {
+        return (settings.keyStore != null ? "https" : "http") + "://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public long getDrops() {
+        return drops.sum();
+    }
+
+    public Map<Integer, Long> getStatuses() {
+        Map<Integer, Long> result = new TreeMap<>();
+        statuses.forEach((code, count) -> result.put(code, count.sum()));
+        return result;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.increment();
+        try (InputStream ignored = exchange.getRequestBody()) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            sleep(settings.latencyMillis);
+
+            if (random.nextInt(100) < settings.dropPercent) {
+                drops.increment();
+                return;
+            }
+
+            String query = exchange.getRequestURI().getRawQuery();
+            if ((query == null || !query.contains(REDIRECTED_MARK)) && random.nextInt(100) < settings.redirectPercent) {
+                String location = exchange.getRequestURI().getRawPath() + "?"
+                        + (query != null ? query + "&" : "") + REDIRECTED_MARK;
+                exchange.getResponseHeaders().set("Location", location);
+                respondEmpty(exchange, 302);
+                return;
+            }
+
+            int code = pickStatus(random.nextInt(100));
+            if (code != 200) {
+                if (code == 503 || code == 429)
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                respondEmpty(exchange, code);
+                return;
+            }
+
+            String path = exchange.getRequestURI().getPath();
+            int size = contentSize(path);
+            String etag = "\"" + Integer.toHexString(path.hashCode()) + "-" + Integer.toHexString(size) + "\"";
+            exchange.getResponseHeaders().set("ETag", etag);
+            exchange.getResponseHeaders().set("Content-Type", contentType(path));
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                respondEmpty(exchange, 304);
+                return;
+            }
+            countStatus(200);
+            exchange.sendResponseHeaders(200, size);
+            writeContent(exchange.getResponseBody(), path, size);
+        } catch (IOException err) {
+            log.debug("Client went away: {}", err.getMessage());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void respondEmpty(HttpExchange exchange, int code) throws IOException {
+        countStatus(code);
+        exchange.sendResponseHeaders(code, -1);
+    }
+
+    private void countStatus(int code) {
+        statuses.computeIfAbsent(code, k -> new LongAdder()).increment();
+    }
+
+    private int pickStatus(int roll) {
+        int bound = 0;
+        for (Map.Entry<Integer, Integer> entry : settings.statusMix.entrySet()) {
+            bound += entry.getValue();
+            if (roll < bound)
+                return entry.getKey();
+        }
+        return 200;
+    }
+
+    private int contentSize(String path) {
+        int spread = settings.maxSize - settings.minSize;
+        return settings.minSize + (spread > 0 ? Math.floorMod(path.hashCode() * 31 + 17, spread + 1) : 0);
+    }
+
+    private void writeContent(OutputStream out, String path, int size) throws IOException {
+        Random content = new Random(path.hashCode());
+        byte[] chunk = new byte[CHUNK_SIZE];
+        long started = System.nanoTime();
+        int written = 0;
+        while (written < size) {
+            int length = Math.min(chunk.length, size - written);
+            content.nextBytes(chunk);
+            out.write(chunk, 0, length);
+            written += length;
+            bytesSent.add(length);
+            if (settings.bandwidthBytes > 0) {
+                long dueNanos = written * 1_000_000_000L / settings.bandwidthBytes;
+                long aheadMillis = (dueNanos - (System.nanoTime() - started)) / 1_000_000L;
+                sleep(aheadMillis);
+            }
+        }
+        out.flush();
+    }
+
+    private static String contentType(String path) {
+        if (path.endsWith(".css"))
+            return "text/css";
+        if (path.endsWith(".js"))
+            return "application/javascript";
+        if (path.endsWith(".png"))
+            return "image/png";
+        if (path.endsWith(".woff2"))
+            return "font/woff2";
+        return "application/octet-stream";
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0)
+            return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static SSLContext createSslContext(Path keyStorePath, String password) throws IOException {
+        try (InputStream in = Files.newInputStream(keyStorePath)) {
+            KeyStore keyStore = KeyStore.getInstance(keyStorePath.toString().endsWith(".jks") ? "JKS" : "PKCS12");
+            keyStore.load(in, password.toCharArray());
+            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(keyStore, password.toCharArray());
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+            return sslContext;
+        } catch (GeneralSecurityException err) {
+            throw new IOException("Unable to load key store " + keyStorePath + ": " + err.getMessage(), err);
+        }
+    }
+
+    public static class Settings {
+
+        int port = 0;
+        long latencyMillis = 0L;
+        long bandwidthBytes = 0L;
+        int minSize = 1024;
+        int maxSize = 65536;
+        int redirectPercent = 0;
+        int dropPercent = 0;
+        Map<Integer, Integer> statusMix = new TreeMap<>();
+        @Nullable
+        Path keyStore = null;
+        String keyStorePassword = "changeit";
+
+        /**
+         * @param mix comma separated "code:percent" pairs, e.g. "404:5,503:2", rest of responses are 200
+         */
+        void setStatusMix(@NotNull final String mix) {
+            statusMix = new TreeMap<>();
+            int total = 0;
+            for (String part : mix.split(",")) {
+                if (part.trim().isEmpty())
+                    continue;
+                String[] codeAndPercent = part.trim().split(":");
+                if (codeAndPercent.length != 2)
+                    throw new IllegalArgumentException("Invalid status mix entry: " + part);
+                int percent = Integer.parseInt(codeAndPercent[1]);
+                statusMix.put(Integer.parseInt(codeAndPercent[0]), percent);
+                total += percent;
+            }
+            if (total > 100)
+                throw new IllegalArgumentException("Status mix percents sum is greater than 100: " + mix);
+        }
+    }
+}
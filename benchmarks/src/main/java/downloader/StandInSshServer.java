@@ -0,0 +1,256 @@
+package downloader;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.sshd.common.session.Session;
+import org.apache.sshd.common.session.SessionListener;
+import org.apache.sshd.server.Environment;
+import org.apache.sshd.server.ExitCallback;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.channel.ChannelSession;
+import org.apache.sshd.server.command.Command;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process SSH server emulating the remote commands used by {@link SSHWgetClient}
+ * (mktemp, wget, cat and rm), with resources served from local fixture files:
+ * URL path "/img/a.png" is read from "fixtures/img/a.png".
+ */
+public class StandInSshServer
+        implements Closeable, AutoCloseable {
+
+    private static final Logger log = LogManager.getLogger(StandInSshServer.class.getSimpleName());
+
+    private final Settings settings;
+    private final SshServer sshd;
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong sessions = new AtomicLong();
+    private final AtomicLong tempFiles = new AtomicLong();
+
+    public StandInSshServer(@NotNull final Settings settings) throws IOException {
+        this.settings = settings;
+        Files.createDirectories(settings.remoteTempDir);
+        sshd = SshServer.setUpDefaultServer();
+        sshd.setHost("127.0.0.1");
+        sshd.setPort(0);
+        SimpleGeneratorHostKeyProvider hostKeyProvider = new SimpleGeneratorHostKeyProvider(
+                settings.remoteTempDir.resolve("host_key.ser"));
+        hostKeyProvider.setAlgorithm("RSA");
+        hostKeyProvider.setKeySize(2048);
+        sshd.setKeyPairProvider(hostKeyProvider);
+        sshd.setPasswordAuthenticator((username, password, session) ->
+                settings.user.equals(username) && settings.password.equals(password));
+        sshd.setCommandFactory((channel, command) -> new EmulatedCommand(command));
+        sshd.addSessionListener(new SessionListener() {
+            @Override
+            public void sessionCreated(Session session) {
+                sessions.incrementAndGet();
+            }
+        });
+        sshd.start();
+        log.info("Stand-in SSH server listening on 127.0.0.1:{}", getPort());
+    }
+
+    public int getPort() {
+        return sshd.getPort();
+    }
+
+    public long getCommands() {
+        return commands.get();
+    }
+
+    public long getSessions() {
+        return sessions.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        sshd.stop(true);
+    }
+
+    private class EmulatedCommand
+            implements Command, Runnable {
+
+        private final String command;
+        private OutputStream out;
+        private OutputStream err;
+        private ExitCallback exitCallback;
+        private ChannelSession channel;
+
+        private EmulatedCommand(String command) {
+            this.command = command;
+        }
+
+        @Override
+        public void setInputStream(InputStream in) {
+        }
+
+        @Override
+        public void setOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void setErrorStream(OutputStream err) {
+            this.err = err;
+        }
+
+        @Override
+        public void setExitCallback(ExitCallback callback) {
+            this.exitCallback = callback;
+        }
+
+        @Override
+        public void start(ChannelSession channel, Environment env) {
+            this.channel = channel;
+            Thread thread = new Thread(this, "stand-in-ssh-command");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void destroy(ChannelSession channel) {
+        }
+
+        @Override
+        public void run() {
+            long number = commands.incrementAndGet();
+            int exitCode;
+            try {
+                if (settings.latencyMillis > 0)
+                    Thread.sleep(settings.latencyMillis);
+                exitCode = execute(tokenize(command));
+                out.flush();
+                err.flush();
+            } catch (IOException | RuntimeException error) {
+                log.warn("Command \"{}\" failed: {}", command, error.getMessage());
+                exitCode = 1;
+            } catch (InterruptedException error) {
+                Thread.currentThread().interrupt();
+                exitCode = 130;
+            }
+            exitCallback.onExit(exitCode);
+            if (settings.disconnectEvery > 0 && number % settings.disconnectEvery == 0) {
+                channel.getSession().close(false);
+            }
+        }
+
+        private int execute(List<String> args) throws IOException {
+            switch (args.get(0)) {
+                case "mktemp":
+                    Path temp = settings.remoteTempDir.resolve("resdownloader_" + tempFiles.incrementAndGet());
+                    Files.createFile(temp);
+                    out.write((temp + "\n").getBytes(StandardCharsets.UTF_8));
+                    return 0;
+                case "wget":
+                    return wget(args);
+                case "cat":
+                    Files.copy(settings.remoteTempDir.resolve(args.get(1)), out);
+                    return 0;
+                case "rm":
+                    Files.deleteIfExists(settings.remoteTempDir.resolve(args.get(args.size() - 1)));
+                    return 0;
+                default:
+                    err.write(("sh: " + args.get(0) + ": command not found\n").getBytes(StandardCharsets.UTF_8));
+                    return 127;
+            }
+        }
+
+        private int wget(List<String> args) throws IOException {
+            Path output = null;
+            String url = null;
+            for (int i = 1; i < args.size(); i++) {
+                if (args.get(i).equals("-O")) {
+                    output = settings.remoteTempDir.resolve(args.get(++i));
+                } else if (!args.get(i).startsWith("-")) {
+                    url = args.get(i);
+                }
+            }
+            if (output == null || url == null) {
+                err.write("wget: missing URL\n".getBytes(StandardCharsets.UTF_8));
+                return 1;
+            }
+            Path fixture;
+            try {
+                fixture = settings.fixturesDir.resolve(new URI(url).getPath().replaceFirst("^/+", ""));
+            } catch (URISyntaxException error) {
+                err.write(("wget: " + url + ": Invalid URL\n").getBytes(StandardCharsets.UTF_8));
+                return 1;
+            }
+            StringBuilder response = new StringBuilder()
+                    .append("--1970-01-01 00:00:00--  ").append(url).append('\n')
+                    .append("HTTP request sent, awaiting response... \n");
+            if (!Files.isRegularFile(fixture)) {
+                response.append("  HTTP/1.1 404 Not Found\n")
+                        .append("1970-01-01 00:00:00 ERROR 404: Not Found.\n\n");
+                err.write(response.toString().getBytes(StandardCharsets.UTF_8));
+                return 8;
+            }
+            long size = Files.size(fixture);
+            response.append("  HTTP/1.1 200 OK\n")
+                    .append("  Content-Length: ").append(size).append('\n')
+                    .append("Length: ").append(size).append('\n')
+                    .append("Saving to: '").append(output).append("'\n");
+            Files.copy(fixture, output, StandardCopyOption.REPLACE_EXISTING);
+            err.write(response.toString().getBytes(StandardCharsets.UTF_8));
+            return 0;
+        }
+    }
+
+    static List<String> tokenize(String command) {
+        List<String> result = new ArrayList<>();
+        ByteArrayOutputStream token = new ByteArrayOutputStream();
+        boolean inToken = false;
+        char quote = 0;
+        for (byte b : command.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) b;
+            if (quote != 0) {
+                if (c == quote)
+                    quote = 0;
+                else
+                    token.write(b);
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+                inToken = true;
+            } else if (Character.isWhitespace(c)) {
+                if (inToken) {
+                    result.add(new String(token.toByteArray(), StandardCharsets.UTF_8));
+                    token.reset();
+                    inToken = false;
+                }
+            } else {
+                token.write(b);
+                inToken = true;
+            }
+        }
+        if (inToken)
+            result.add(new String(token.toByteArray(), StandardCharsets.UTF_8));
+        return result;
+    }
+
+    public static class Settings {
+
+        Path fixturesDir;
+        Path remoteTempDir;
+        String user = "bench";
+        String password = "bench";
+        long latencyMillis = 0L;
+        int disconnectEvery = 0;
+    }
+}
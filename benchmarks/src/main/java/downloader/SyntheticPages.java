@@ -0,0 +1,94 @@
+package downloader;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+final class SyntheticPages {
+
+    private static final String[] WORDS = {
+            "lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing", "elit",
+            "загрузка", "ресурсов", "страница", "сохранить", "изображение", "шрифт"};
+
+    private SyntheticPages() {
+    }
+
+    static String page(String baseUrl, int resources, int paragraphs, long seed) {
+        return page(baseUrl, resources, resources, paragraphs, seed);
+    }
+
+    /**
+     * Page with {@code resources} links, each one picked from a shared pool of {@code pool} resources:
+     * a quarter of stylesheets, a quarter of scripts, a quarter of inline style fonts and the rest of images.
+     */
+    static String page(String baseUrl, int resources, int pool, int paragraphs, long seed) {
+        Random random = new Random(seed);
+        StringBuilder html = new StringBuilder(paragraphs * 200 + resources * 100);
+        html.append("<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"utf-8\">\n<title>Page ")
+                .append(seed).append("</title>\n");
+        for (int i = 0; i < resources / 4; i++) {
+            html.append("<link rel=\"stylesheet\" href=\"").append(baseUrl).append("/css/style")
+                    .append(random.nextInt(pool)).append(".css\">\n");
+        }
+        html.append("<style>\n");
+        for (int i = 0; i < resources / 4; i++) {
+            appendFontFace(html, baseUrl, random.nextInt(pool));
+        }
+        html.append("</style>\n");
+        html.append("</head>\n<body>\n");
+        for (int i = 0; i < paragraphs; i++) {
+            html.append("<div class=\"post\"><p>");
+            for (int word = 0; word < 20; word++) {
+                html.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            html.append("</p></div>\n");
+        }
+        for (int i = 0; i < resources / 4; i++) {
+            html.append("<script src=\"").append(baseUrl).append("/js/script").append(random.nextInt(pool))
+                    .append(".js\"></script>\n");
+        }
+        for (int i = 0; i < resources - 3 * (resources / 4); i++) {
+            html.append("<img src=\"").append(baseUrl).append("/img/image").append(random.nextInt(pool))
+                    .append(".png\" alt=\"image\">\n");
+        }
+        html.append("</body>\n</html>\n");
+        return html.toString();
+    }
+
+    static String style(String baseUrl, int fonts) {
+        StringBuilder css = new StringBuilder("<style>\n");
+        for (int i = 0; i < fonts; i++) {
+            appendFontFace(css, baseUrl, i);
+        }
+        return css.append("</style>").toString();
+    }
+
+    static List<Path> generateCorpus(Path directory,
+                                     String baseUrl,
+                                     int pages,
+                                     int resourcesPerPage,
+                                     int pool,
+                                     int paragraphs,
+                                     long seed) throws IOException {
+        Files.createDirectories(directory);
+        List<Path> result = new ArrayList<>(pages);
+        for (int i = 0; i < pages; i++) {
+            Path page = directory.resolve(String.format("page%05d.html", i));
+            try (BufferedWriter writer = Files.newBufferedWriter(page, StandardCharsets.UTF_8)) {
+                writer.append(page(baseUrl, resourcesPerPage, pool, paragraphs, seed + i));
+            }
+            result.add(page);
+        }
+        return result;
+    }
+
+    private static void appendFontFace(StringBuilder css, String baseUrl, int index) {
+        css.append("@font-face {\n  font-family: 'Font").append(index).append("';\n  src: url(")
+                .append(baseUrl).append("/fonts/font").append(index).append(".woff2);\n}\n");
+    }
+}
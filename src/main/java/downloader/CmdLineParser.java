@@ -18,6 +18,7 @@ import java.util.Collections;
 import java.util.List;
 
 import static downloader.NamesUtils.RESOURCES_PATH_NAME;
+import static downloader.NamesUtils.STATE_DB_NAME;
 import static downloader.NamesUtils.STATE_FILE_NAME;
 
 class CmdLineParser {
@@ -81,6 +82,267 @@ class CmdLineParser {
             .desc("remote host SSH keyfile")
             .build();
 
+    private final Option jobsOption = Option.builder("j")
+            .longOpt("jobs")
+            .hasArg()
+            .argName("count")
+            .desc("Set parallel downloads count. Default - 1")
+            .build();
+
+    private final Option hostConnectionsOption = Option.builder()
+            .longOpt("host-connections")
+            .hasArg()
+            .argName("count")
+            .desc("Set max parallel downloads from one host, actual limit adapts to host responses. Default - 4")
+            .build();
+
+    private final Option retryDelayOption = Option.builder()
+            .longOpt("retry-delay")
+            .hasArg()
+            .argName("sec.")
+            .desc("Set base delay before retry, doubled on each next try. Default - 1 sec.")
+            .build();
+
+    private final Option retryBudgetOption = Option.builder()
+            .longOpt("retry-budget")
+            .hasArg()
+            .argName("percent")
+            .desc("Set max retries count in percents of all requests. Default - 20")
+            .build();
+
+    private final Option breakerFailuresOption = Option.builder()
+            .longOpt("breaker-failures")
+            .hasArg()
+            .argName("count")
+            .desc("Set count of connection failures in a row before skip all next downloads from host. Default - 5")
+            .build();
+
+    private final Option breakerCoolDownOption = Option.builder()
+            .longOpt("breaker-cooldown")
+            .hasArg()
+            .argName("sec.")
+            .desc("Set delay before try skipped host again. Default - 300 sec.")
+            .build();
+
+    private final Option breakerTtlOption = Option.builder()
+            .longOpt("breaker-ttl")
+            .hasArg()
+            .argName("min.")
+            .desc("Set how long skipped hosts are remembered between runs. Default - 60 min.")
+            .build();
+
+    private final Option metricsFileOption = Option.builder()
+            .longOpt("metrics-file")
+            .hasArg()
+            .argName("path")
+            .desc("Write metrics in Prometheus text format to file")
+            .build();
+
+    private final Option metricsJsonOption = Option.builder()
+            .longOpt("metrics-json")
+            .hasArg()
+            .argName("path")
+            .desc("Write metrics snapshot in JSON format to file")
+            .build();
+
+    private final Option metricsIntervalOption = Option.builder()
+            .longOpt("metrics-interval")
+            .hasArg()
+            .argName("sec.")
+            .desc("Set interval of metrics files update. Default - 0, write at the end of run only")
+            .build();
+
+    private final Option progressIntervalOption = Option.builder()
+            .longOpt("progress-interval")
+            .hasArg()
+            .argName("sec.")
+            .desc("Set interval of progress and ETA logging. Default - 10 sec., 0 - at the end of run only")
+            .build();
+
+    private final Option inlineErrorImagesOption = Option.builder()
+            .longOpt("inline-error-images")
+            .desc("Replace failed resources with inline SVG data URI instead of error image files")
+            .build();
+
+    private final Option noResumeOption = Option.builder()
+            .longOpt("no-resume")
+            .desc("Do not keep and resume partially downloaded large resources")
+            .build();
+
+    private final Option resumeThresholdOption = Option.builder()
+            .longOpt("resume-threshold")
+            .hasArg()
+            .argName("KB")
+            .desc("Set minimal resource size for resumable download. Default - 1024 KB")
+            .build();
+
+    private final Option segmentsOption = Option.builder()
+            .longOpt("segments")
+            .hasArg()
+            .argName("count")
+            .desc("Set count of parallel range requests for one large resource. Default - 1")
+            .build();
+
+    private final Option segmentThresholdOption = Option.builder()
+            .longOpt("segment-threshold")
+            .hasArg()
+            .argName("KB")
+            .desc("Set minimal resource size for segmented download. Default - 8192 KB")
+            .build();
+
+    private final Option packOption = Option.builder()
+            .longOpt("pack")
+            .desc("Store downloaded resources in resources/" + ResourcePack.PACK_FILE_NAME + " instead of separate files")
+            .build();
+
+    private final Option unpackOption = Option.builder()
+            .longOpt("unpack")
+            .desc("Extract packed resources of input files or directories into resources directories and exit")
+            .build();
+
+    private final Option inlineThresholdOption = Option.builder()
+            .longOpt("inline-threshold")
+            .hasArg()
+            .argName("KB")
+            .desc("Inline resources up to this size into pages as data URIs. Default - 0, do not inline")
+            .build();
+
+    private final Option noPrewarmOption = Option.builder()
+            .longOpt("no-prewarm")
+            .desc("Do not resolve hosts and open connections to them before downloads of document start")
+            .build();
+
+    private final Option dnsTtlOption = Option.builder()
+            .longOpt("dns-ttl")
+            .hasArg()
+            .argName("seconds")
+            .desc("Set how long resolved host addresses are kept in memory. Default - " + DnsCache.DEFAULT_TTL + " seconds")
+            .build();
+
+    private final Option hostsFileOption = Option.builder()
+            .longOpt("hosts-file")
+            .hasArg()
+            .argName("file")
+            .desc("Resolve host names from file in hosts format before system resolver")
+            .build();
+
+    private final Option cacheDirOption = Option.builder()
+            .longOpt("cache-dir")
+            .hasArg()
+            .argName("dir")
+            .desc("Share downloaded resources between all resources directories and runs through cache in this directory")
+            .build();
+
+    private final Option cacheSizeOption = Option.builder()
+            .longOpt("cache-size")
+            .hasArg()
+            .argName("MB")
+            .desc("Set size limit of shared cache, least recently used resources are evicted. Default - "
+                    + ContentCache.DEFAULT_SIZE + " MB")
+            .build();
+
+    private final Option redirectTtlOption = Option.builder()
+            .longOpt("redirect-ttl")
+            .hasArg()
+            .argName("hours")
+            .desc("Request resources directly from final location of redirects known for this long. "
+                    + "Default - 24 hours, 0 - follow redirects every time")
+            .build();
+
+    private final Option connectTimeoutOption = Option.builder()
+            .longOpt("connect-timeout")
+            .hasArg()
+            .argName("seconds")
+            .desc("Set timeout of establishing connection. Default - waiting timeout")
+            .build();
+
+    private final Option ttfbTimeoutOption = Option.builder()
+            .longOpt("ttfb-timeout")
+            .hasArg()
+            .argName("seconds")
+            .desc("Set timeout of waiting for response after request is sent. Default - waiting timeout")
+            .build();
+
+    private final Option idleTimeoutOption = Option.builder()
+            .longOpt("idle-timeout")
+            .hasArg()
+            .argName("seconds")
+            .desc("Abort download as too slow when no data comes for this long. Default - waiting timeout")
+            .build();
+
+    private final Option deadlineOption = Option.builder()
+            .longOpt("deadline")
+            .hasArg()
+            .argName("seconds")
+            .desc("Abort download of resource which takes longer in total, including redirects. "
+                    + "Default - 0, no deadline")
+            .build();
+
+    private final Option minSpeedOption = Option.builder()
+            .longOpt("min-speed")
+            .hasArg()
+            .argName("KB/s")
+            .desc("Abort download as too slow when less than this comes during min-speed-time. Default - 0, no limit")
+            .build();
+
+    private final Option minSpeedTimeOption = Option.builder()
+            .longOpt("min-speed-time")
+            .hasArg()
+            .argName("seconds")
+            .desc("Set period of min-speed check. Default - " + TransferLimits.DEFAULT_MIN_SPEED_TIME + " sec.")
+            .build();
+
+    private final Option daemonOption = Option.builder()
+            .longOpt("daemon")
+            .hasArg()
+            .argName("port")
+            .desc("Run as daemon taking jobs from HTTP API on localhost port instead of input files")
+            .build();
+
+    private final Option queueSizeOption = Option.builder()
+            .longOpt("queue-size")
+            .hasArg()
+            .argName("jobs")
+            .desc("Set how many jobs daemon queues before rejecting new ones. Default - "
+                    + DaemonServer.DEFAULT_QUEUE_SIZE)
+            .build();
+
+    private final Option watchOption = Option.builder()
+            .longOpt("watch")
+            .desc("Keep watching input directories and convert new html files once they are written")
+            .build();
+
+    private final Option debounceOption = Option.builder()
+            .longOpt("debounce")
+            .hasArg()
+            .argName("sec.")
+            .desc("Set how long watched file must stay unchanged before conversion. Default - "
+                    + DirectoryWatcher.DEFAULT_DEBOUNCE + " sec.")
+            .build();
+
+    private final Option openDatabasesOption = Option.builder()
+            .longOpt("open-databases")
+            .hasArg()
+            .argName("count")
+            .desc("Set how many state databases are kept open, least recently used ones are closed. Default - "
+                    + SqliteHolder.DEFAULT_MAX_CONNECTIONS)
+            .build();
+
+    private final Option optimizeImagesOption = Option.builder()
+            .longOpt("optimize-images")
+            .hasArg()
+            .argName("KB")
+            .desc("Recompress downloaded PNG images over this size losslessly on a pool of CPU cores. Default - 0, "
+                    + "do not optimize")
+            .build();
+
+    private final Option maxImageDimensionOption = Option.builder()
+            .longOpt("max-image-dimension")
+            .hasArg()
+            .argName("pixels")
+            .desc("Downscale optimized images of any format wider or higher than this. Default - 0, keep dimensions")
+            .build();
+
     CmdLineParser() {
         options = new Options();
         options.addOption(helpOption);
@@ -91,6 +353,44 @@ class CmdLineParser {
         options.addOption(externalUserNameOption);
         options.addOption(externalPasswordOption);
         options.addOption(externalKeyFileOption);
+        options.addOption(jobsOption);
+        options.addOption(hostConnectionsOption);
+        options.addOption(retryDelayOption);
+        options.addOption(retryBudgetOption);
+        options.addOption(breakerFailuresOption);
+        options.addOption(breakerCoolDownOption);
+        options.addOption(breakerTtlOption);
+        options.addOption(metricsFileOption);
+        options.addOption(metricsJsonOption);
+        options.addOption(metricsIntervalOption);
+        options.addOption(progressIntervalOption);
+        options.addOption(inlineErrorImagesOption);
+        options.addOption(noResumeOption);
+        options.addOption(resumeThresholdOption);
+        options.addOption(segmentsOption);
+        options.addOption(segmentThresholdOption);
+        options.addOption(packOption);
+        options.addOption(unpackOption);
+        options.addOption(inlineThresholdOption);
+        options.addOption(noPrewarmOption);
+        options.addOption(dnsTtlOption);
+        options.addOption(hostsFileOption);
+        options.addOption(cacheDirOption);
+        options.addOption(cacheSizeOption);
+        options.addOption(redirectTtlOption);
+        options.addOption(connectTimeoutOption);
+        options.addOption(ttfbTimeoutOption);
+        options.addOption(idleTimeoutOption);
+        options.addOption(deadlineOption);
+        options.addOption(minSpeedOption);
+        options.addOption(minSpeedTimeOption);
+        options.addOption(daemonOption);
+        options.addOption(queueSizeOption);
+        options.addOption(watchOption);
+        options.addOption(debounceOption);
+        options.addOption(openDatabasesOption);
+        options.addOption(optimizeImagesOption);
+        options.addOption(maxImageDimensionOption);
     }
 
     ParsedCmdline parse(String[] args) {
@@ -110,29 +410,124 @@ class CmdLineParser {
 
             boolean reverseMode = commandLine.hasOption(this.reverseOption.getOpt());
             parsedCmdline.setReverseMode(reverseMode);
+            parsedCmdline.setPackResources(commandLine.hasOption(this.packOption.getLongOpt()));
+            boolean unpack = commandLine.hasOption(this.unpackOption.getLongOpt());
+            parsedCmdline.setUnpack(unpack);
+
+            String rawDaemonPort = commandLine.getOptionValue(this.daemonOption.getLongOpt());
+            if (rawDaemonPort != null) {
+                int daemonPort;
+                try {
+                    daemonPort = Integer.parseInt(rawDaemonPort);
+                } catch (NumberFormatException nfe) {
+                    throw new ParseException("Unable to parse daemon port: " + rawDaemonPort);
+                }
+
+                if (daemonPort < 1 || daemonPort > 65535)
+                    throw new ParseException("Daemon port must be between 1 and 65535");
+                if (unpack)
+                    throw new ParseException("Daemon does not unpack resources");
+
+                parsedCmdline.setDaemonPort(daemonPort);
+            }
+
+            String rawQueueSize = commandLine.getOptionValue(this.queueSizeOption.getLongOpt(),
+                    String.valueOf(DaemonServer.DEFAULT_QUEUE_SIZE));
+            int queueSize;
+            try {
+                queueSize = Integer.parseInt(rawQueueSize);
+            } catch (NumberFormatException nfe) {
+                throw new ParseException("Unable to parse queue size: " + rawQueueSize);
+            }
+
+            if (queueSize < 1)
+                throw new ParseException("Queue size cannot be less that 1");
+
+            parsedCmdline.setQueueSize(queueSize);
+
+            boolean watch = commandLine.hasOption(this.watchOption.getLongOpt());
+            if (watch && unpack)
+                throw new ParseException("Watch mode does not unpack resources");
+            if (watch && parsedCmdline.getDaemonPort() > 0)
+                throw new ParseException("Watch mode cannot be used with daemon");
+            parsedCmdline.setWatch(watch);
+
+            String rawDebounce = commandLine.getOptionValue(this.debounceOption.getLongOpt(),
+                    String.valueOf(DirectoryWatcher.DEFAULT_DEBOUNCE));
+            int debounce;
+            try {
+                debounce = Integer.parseInt(rawDebounce);
+            } catch (NumberFormatException nfe) {
+                throw new ParseException("Unable to parse debounce: " + rawDebounce);
+            }
+
+            if (debounce < 1)
+                throw new ParseException("Debounce cannot be less that 1 sec.");
+
+            parsedCmdline.setDebounce(debounce);
+
+            String rawOpenDatabases = commandLine.getOptionValue(this.openDatabasesOption.getLongOpt(),
+                    String.valueOf(SqliteHolder.DEFAULT_MAX_CONNECTIONS));
+            int openDatabases;
+            try {
+                openDatabases = Integer.parseInt(rawOpenDatabases);
+            } catch (NumberFormatException nfe) {
+                throw new ParseException("Unable to parse open databases count: " + rawOpenDatabases);
+            }
+
+            if (openDatabases < 1)
+                throw new ParseException("Open databases count cannot be less that 1");
+
+            parsedCmdline.setOpenDatabases(openDatabases);
+
+            String rawOptimizeImages = commandLine.getOptionValue(this.optimizeImagesOption.getLongOpt(), "0");
+            int optimizeImages;
+            try {
+                optimizeImages = Integer.parseInt(rawOptimizeImages);
+            } catch (NumberFormatException nfe) {
+                throw new ParseException("Unable to parse optimized images threshold in KB: " + rawOptimizeImages);
+            }
+
+            if (optimizeImages < 0)
+                throw new ParseException("Optimized images threshold cannot be less that 0 KB");
+
+            parsedCmdline.setOptimizeImages(optimizeImages);
+
+            String rawMaxImageDimension = commandLine.getOptionValue(this.maxImageDimensionOption.getLongOpt(), "0");
+            int maxImageDimension;
+            try {
+                maxImageDimension = Integer.parseInt(rawMaxImageDimension);
+            } catch (NumberFormatException nfe) {
+                throw new ParseException("Unable to parse max image dimension in pixels: " + rawMaxImageDimension);
+            }
+
+            if (maxImageDimension < 0)
+                throw new ParseException("Max image dimension cannot be less that 0 pixels");
+
+            if (maxImageDimension > 0 && optimizeImages == 0)
+                throw new ParseException("Max image dimension cannot be used without optimize images");
+
+            parsedCmdline.setMaxImageDimension(maxImageDimension);
 
             List<String> rawInputFiles = commandLine.getArgList();
-            if (rawInputFiles == null || rawInputFiles.isEmpty())
-                throw new ParseException("Input html files required");
-
-            List<Path> inputFiles = new ArrayList<>(rawInputFiles.size());
-            for (String rawInputFile : rawInputFiles) {
-                Path inputFile = Paths.get(rawInputFile);
-                if (Files.notExists(inputFile))
-                    throw new ParseException("Input file not found: " + rawInputFile);
-                if (Files.isDirectory(inputFile)) {
-                    dirScanner(inputFile, inputFiles, reverseMode);
-                } else if (Files.isRegularFile(inputFile)) {
-                    if (!FilenameUtils.getExtension(rawInputFile).toLowerCase().startsWith("htm"))
-                        throw new ParseException("Input file is not supported: " + rawInputFile);
-                    if (alreadyNotConverted(inputFile, reverseMode))
-                        inputFiles.add(inputFile);
-                } else {
-                    throw new ParseException("Input file is not a regular file: " + rawInputFile);
+            if (parsedCmdline.getDaemonPort() > 0) {
+                if (rawInputFiles != null && !rawInputFiles.isEmpty())
+                    throw new ParseException("Daemon takes input files from jobs only");
+            } else {
+                if (rawInputFiles == null || rawInputFiles.isEmpty())
+                    throw new ParseException("Input html files required");
+                parsedCmdline.setInputFiles(scanInputFiles(rawInputFiles, reverseMode, unpack));
+                if (watch) {
+                    List<Path> watchDirs = new ArrayList<>(rawInputFiles.size());
+                    for (String rawInputFile : rawInputFiles) {
+                        Path watchDir = Paths.get(rawInputFile);
+                        if (!Files.isDirectory(watchDir))
+                            throw new ParseException("Watch mode takes directories only: " + rawInputFile);
+                        watchDirs.add(watchDir);
+                    }
+                    parsedCmdline.setWatchDirs(watchDirs);
                 }
             }
-            Collections.sort(inputFiles);
-            parsedCmdline.setInputFiles(inputFiles);
 
             String rawTries = commandLine.getOptionValue(this.triesOption.getOpt(), "3");
             int tries;
@@ -160,6 +555,328 @@ class CmdLineParser {
 
             parsedCmdline.setTimeout(timeout);
 
+            String rawConnectTimeout = commandLine.getOptionValue(this.connectTimeoutOption.getLongOpt(),
+                    String.valueOf(timeout));
+            int connectTimeout;
+            try {
+                connectTimeout = Integer.parseInt(rawConnectTimeout);
+            } catch (NumberFormatException nfe) {
+                throw new ParseException("Unable to parse connect timeout in seconds: " + rawConnectTimeout);
+            }
+
+            if (connectTimeout < 1)
+                throw new ParseException("Connect timeout cannot be less that 1 second");
+
+            parsedCmdline.setConnectTimeout(connectTimeout);
+
+            String rawTtfbTimeout = commandLine.getOptionValue(this.ttfbTimeoutOption.getLongOpt(),
+                    String.valueOf(timeout));
+            int ttfbTimeout;
+            try {
+                ttfbTimeout = Integer.parseInt(rawTtfbTimeout);
+            } catch (NumberFormatException nfe) {
+                throw new ParseException("Unable to parse time to first byte timeout in seconds: " + rawTtfbTimeout);
+            }
+
+            if (ttfbTimeout < 1)
+                throw new ParseException("Time to first byte timeout cannot be less that 1 second");
+
+            parsedCmdline.setTtfbTimeout(ttfbTimeout);
+
+            String rawIdleTimeout = commandLine.getOptionValue(this.idleTimeoutOption.getLongOpt(),
+                    String.valueOf(timeout));
+            int idleTimeout;
+            try {
+                idleTimeout = Integer.parseInt(rawIdleTimeout);
+            } catch (NumberFormatException nfe) {
+                throw new ParseException("Unable to parse idle timeout in seconds: " + rawIdleTimeout);
+            }
+
+            if (idleTimeout < 1)
+                throw new ParseException("Idle timeout cannot be less that 1 second");
+
+            parsedCmdline.setIdleTimeout(idleTimeout);
+
+            String rawDeadline = commandLine.getOptionValue(this.deadlineOption.getLongOpt(), "0");
+            int deadline;
+            try {
+                deadline = Integer.parseInt(rawDeadline);
+            } catch (NumberFormatException nfe) {
+                throw new ParseException("Unable to parse deadline in seconds: " + rawDeadline);
+            }
+
+            if (deadline < 0)
+                throw new ParseException("Deadline cannot be less that 0 seconds");
+
+            parsedCmdline.setDeadline(deadline);
+
+            String rawMinSpeed = commandLine.getOptionValue(this.minSpeedOption.getLongOpt(), "0");
+            int minSpeed;
+            try {
+                minSpeed = Integer.parseInt(rawMinSpeed);
+            } catch (NumberFormatException nfe) {
+                throw new ParseException("Unable to parse minimum speed in KB/s: " + rawMinSpeed);
+            }
+
+            if (minSpeed < 0)
+                throw new ParseException("Minimum speed cannot be less that 0 KB/s");
+
+            parsedCmdline.setMinSpeed(minSpeed);
+
+            String rawMinSpeedTime = commandLine.getOptionValue(this.minSpeedTimeOption.getLongOpt(),
+                    String.valueOf(TransferLimits.DEFAULT_MIN_SPEED_TIME));
+            int minSpeedTime;
+            try {
+                minSpeedTime = Integer.parseInt(rawMinSpeedTime);
+            } catch (NumberFormatException nfe) {
+                throw new ParseException("Unable to parse minimum speed period in seconds: " + rawMinSpeedTime);
+            }
+
+            if (minSpeedTime < 1)
+                throw new ParseException("Minimum speed period cannot be less that 1 second");
+
+            parsedCmdline.setMinSpeedTime(minSpeedTime);
+
+            String rawJobs = commandLine.getOptionValue(this.jobsOption.getOpt(), "1");
+            int jobs;
+            try {
+                jobs = Integer.parseInt(rawJobs);
+            } catch (NumberFormatException nfe) {
+                throw new ParseException("Unable to parse parallel downloads count: " + rawJobs);
+            }
+
+            if (jobs < 1)
+                throw new ParseException("Parallel downloads count cannot be less that 1");
+
+            parsedCmdline.setJobs(jobs);
+
+            String rawHostConnections = commandLine.getOptionValue(this.hostConnectionsOption.getLongOpt(), "4");
+            int hostConnections;
+            try {
+                hostConnections = Integer.parseInt(rawHostConnections);
+            } catch (NumberFormatException nfe) {
+                throw new ParseException("Unable to parse host connections count: " + rawHostConnections);
+            }
+
+            if (hostConnections < 1)
+                throw new ParseException("Host connections count cannot be less that 1");
+
+            parsedCmdline.setHostConnections(hostConnections);
+
+            String rawRetryDelay = commandLine.getOptionValue(this.retryDelayOption.getLongOpt(), "1");
+            int retryDelay;
+            try {
+                retryDelay = Integer.parseInt(rawRetryDelay);
+            } catch (NumberFormatException nfe) {
+                throw new ParseException("Unable to parse retry delay in seconds: " + rawRetryDelay);
+            }
+
+            if (retryDelay < 0)
+                throw new ParseException("Retry delay cannot be less that 0 seconds");
+
+            parsedCmdline.setRetryDelay(retryDelay);
+
+            String rawRetryBudget = commandLine.getOptionValue(this.retryBudgetOption.getLongOpt(), "20");
+            int retryBudget;
+            try {
+                retryBudget = Integer.parseInt(rawRetryBudget);
+            } catch (NumberFormatException nfe) {
+                throw new ParseException("Unable to parse retry budget: " + rawRetryBudget);
+            }
+
+            if (retryBudget < 0)
+                throw new ParseException("Retry budget cannot be less that 0 percents");
+
+            parsedCmdline.setRetryBudget(retryBudget);
+
+            String rawBreakerFailures = commandLine.getOptionValue(this.breakerFailuresOption.getLongOpt(), "5");
+            int breakerFailures;
+            try {
+                breakerFailures = Integer.parseInt(rawBreakerFailures);
+            } catch (NumberFormatException nfe) {
+                throw new ParseException("Unable to parse host failures count: " + rawBreakerFailures);
+            }
+
+            if (breakerFailures < 1)
+                throw new ParseException("Host failures count cannot be less that 1");
+
+            parsedCmdline.setBreakerFailures(breakerFailures);
+
+            String rawBreakerCoolDown = commandLine.getOptionValue(this.breakerCoolDownOption.getLongOpt(), "300");
+            int breakerCoolDown;
+            try {
+                breakerCoolDown = Integer.parseInt(rawBreakerCoolDown);
+            } catch (NumberFormatException nfe) {
+                throw new ParseException("Unable to parse host cool-down in seconds: " + rawBreakerCoolDown);
+            }
+
+            if (breakerCoolDown < 0)
+                throw new ParseException("Host cool-down cannot be less that 0 seconds");
+
+            parsedCmdline.setBreakerCoolDown(breakerCoolDown);
+
+            String rawBreakerTtl = commandLine.getOptionValue(this.breakerTtlOption.getLongOpt(), "60");
+            int breakerTtl;
+            try {
+                breakerTtl = Integer.parseInt(rawBreakerTtl);
+            } catch (NumberFormatException nfe) {
+                throw new ParseException("Unable to parse hosts remember time in minutes: " + rawBreakerTtl);
+            }
+
+            if (breakerTtl < 0)
+                throw new ParseException("Hosts remember time cannot be less that 0 minutes");
+
+            parsedCmdline.setBreakerTtl(breakerTtl);
+
+            String metricsFile = commandLine.getOptionValue(this.metricsFileOption.getLongOpt());
+            if (metricsFile != null)
+                parsedCmdline.setMetricsFile(Paths.get(metricsFile));
+
+            String metricsJsonFile = commandLine.getOptionValue(this.metricsJsonOption.getLongOpt());
+            if (metricsJsonFile != null)
+                parsedCmdline.setMetricsJsonFile(Paths.get(metricsJsonFile));
+
+            String rawMetricsInterval = commandLine.getOptionValue(this.metricsIntervalOption.getLongOpt(), "0");
+            int metricsInterval;
+            try {
+                metricsInterval = Integer.parseInt(rawMetricsInterval);
+            } catch (NumberFormatException nfe) {
+                throw new ParseException("Unable to parse metrics interval in seconds: " + rawMetricsInterval);
+            }
+
+            if (metricsInterval < 0)
+                throw new ParseException("Metrics interval cannot be less that 0 seconds");
+
+            parsedCmdline.setMetricsInterval(metricsInterval);
+
+            String rawProgressInterval = commandLine.getOptionValue(this.progressIntervalOption.getLongOpt(), "10");
+            int progressInterval;
+            try {
+                progressInterval = Integer.parseInt(rawProgressInterval);
+            } catch (NumberFormatException nfe) {
+                throw new ParseException("Unable to parse progress interval in seconds: " + rawProgressInterval);
+            }
+
+            if (progressInterval < 0)
+                throw new ParseException("Progress interval cannot be less that 0 seconds");
+
+            parsedCmdline.setProgressInterval(progressInterval);
+            parsedCmdline.setInlineErrorImages(commandLine.hasOption(this.inlineErrorImagesOption.getLongOpt()));
+            parsedCmdline.setResume(!commandLine.hasOption(this.noResumeOption.getLongOpt()));
+
+            String rawResumeThreshold = commandLine.getOptionValue(this.resumeThresholdOption.getLongOpt(), "1024");
+            int resumeThreshold;
+            try {
+                resumeThreshold = Integer.parseInt(rawResumeThreshold);
+            } catch (NumberFormatException nfe) {
+                throw new ParseException("Unable to parse resume threshold in KB: " + rawResumeThreshold);
+            }
+
+            if (resumeThreshold < 0)
+                throw new ParseException("Resume threshold cannot be less that 0 KB");
+
+            parsedCmdline.setResumeThreshold(resumeThreshold);
+
+            String rawSegments = commandLine.getOptionValue(this.segmentsOption.getLongOpt(), "1");
+            int segments;
+            try {
+                segments = Integer.parseInt(rawSegments);
+            } catch (NumberFormatException nfe) {
+                throw new ParseException("Unable to parse segments count: " + rawSegments);
+            }
+
+            if (segments < 1 || segments > 16)
+                throw new ParseException("Segments count must be between 1 and 16");
+
+            parsedCmdline.setSegments(segments);
+
+            String rawSegmentThreshold = commandLine.getOptionValue(this.segmentThresholdOption.getLongOpt(), "8192");
+            int segmentThreshold;
+            try {
+                segmentThreshold = Integer.parseInt(rawSegmentThreshold);
+            } catch (NumberFormatException nfe) {
+                throw new ParseException("Unable to parse segment threshold in KB: " + rawSegmentThreshold);
+            }
+
+            if (segmentThreshold < 0)
+                throw new ParseException("Segment threshold cannot be less that 0 KB");
+
+            parsedCmdline.setSegmentThreshold(segmentThreshold);
+
+            String rawInlineThreshold = commandLine.getOptionValue(this.inlineThresholdOption.getLongOpt(), "0");
+            int inlineThreshold;
+            try {
+                inlineThreshold = Integer.parseInt(rawInlineThreshold);
+            } catch (NumberFormatException nfe) {
+                throw new ParseException("Unable to parse inline threshold in KB: " + rawInlineThreshold);
+            }
+
+            if (inlineThreshold < 0)
+                throw new ParseException("Inline threshold cannot be less that 0 KB");
+
+            parsedCmdline.setInlineThreshold(inlineThreshold);
+
+            parsedCmdline.setPrewarm(!commandLine.hasOption(this.noPrewarmOption.getLongOpt()));
+
+            String rawDnsTtl = commandLine.getOptionValue(this.dnsTtlOption.getLongOpt(),
+                    String.valueOf(DnsCache.DEFAULT_TTL));
+            int dnsTtl;
+            try {
+                dnsTtl = Integer.parseInt(rawDnsTtl);
+            } catch (NumberFormatException nfe) {
+                throw new ParseException("Unable to parse DNS TTL in seconds: " + rawDnsTtl);
+            }
+
+            if (dnsTtl < 0)
+                throw new ParseException("DNS TTL cannot be less that 0 seconds");
+
+            parsedCmdline.setDnsTtl(dnsTtl);
+
+            String hostsFile = commandLine.getOptionValue(this.hostsFileOption.getLongOpt());
+            if (hostsFile != null) {
+                Path hostsPath = Paths.get(hostsFile);
+                if (Files.isRegularFile(hostsPath)) {
+                    parsedCmdline.setHostsFile(hostsPath);
+                } else {
+                    throw new ParseException("Unable to find hosts file: " + hostsFile);
+                }
+            }
+
+            String cacheDir = commandLine.getOptionValue(this.cacheDirOption.getLongOpt());
+            if (cacheDir != null) {
+                Path cachePath = Paths.get(cacheDir);
+                if (Files.exists(cachePath) && !Files.isDirectory(cachePath))
+                    throw new ParseException("Cache directory is not a directory: " + cacheDir);
+                parsedCmdline.setCacheDir(cachePath);
+            }
+
+            String rawCacheSize = commandLine.getOptionValue(this.cacheSizeOption.getLongOpt(),
+                    String.valueOf(ContentCache.DEFAULT_SIZE));
+            int cacheSize;
+            try {
+                cacheSize = Integer.parseInt(rawCacheSize);
+            } catch (NumberFormatException nfe) {
+                throw new ParseException("Unable to parse cache size in MB: " + rawCacheSize);
+            }
+
+            if (cacheSize < 1)
+                throw new ParseException("Cache size cannot be less that 1 MB");
+
+            parsedCmdline.setCacheSize(cacheSize);
+
+            String rawRedirectTtl = commandLine.getOptionValue(this.redirectTtlOption.getLongOpt(), "24");
+            int redirectTtl;
+            try {
+                redirectTtl = Integer.parseInt(rawRedirectTtl);
+            } catch (NumberFormatException nfe) {
+                throw new ParseException("Unable to parse redirect TTL in hours: " + rawRedirectTtl);
+            }
+
+            if (redirectTtl < 0)
+                throw new ParseException("Redirect TTL cannot be less that 0 hours");
+
+            parsedCmdline.setRedirectTtl(redirectTtl);
+
             String remoteHostName = commandLine.getOptionValue(this.externalHostOption.getOpt());
             if (remoteHostName != null) {
                 String[] remoteHostParts = remoteHostName.split(":");
@@ -198,6 +915,45 @@ class CmdLineParser {
         return parsedCmdline;
     }
 
+    /**
+     * Expands directories and skips already converted files, for command line and daemon jobs.
+     */
+    List<Path> scanInputFiles(List<String> rawInputFiles, boolean reverseMode, boolean unpack) throws ParseException {
+        List<Path> inputFiles = new ArrayList<>(rawInputFiles.size());
+        for (String rawInputFile : rawInputFiles) {
+            Path inputFile = Paths.get(rawInputFile);
+            if (Files.notExists(inputFile))
+                throw new ParseException("Input file not found: " + rawInputFile);
+            if (unpack) {
+                packScanner(inputFile, inputFiles);
+            } else if (Files.isDirectory(inputFile)) {
+                dirScanner(inputFile, inputFiles, reverseMode);
+            } else if (Files.isRegularFile(inputFile)) {
+                if (!FilenameUtils.getExtension(rawInputFile).toLowerCase().startsWith("htm"))
+                    throw new ParseException("Input file is not supported: " + rawInputFile);
+                if (alreadyNotConverted(inputFile, reverseMode))
+                    inputFiles.add(inputFile);
+            } else {
+                throw new ParseException("Input file is not a regular file: " + rawInputFile);
+            }
+        }
+        Collections.sort(inputFiles);
+        return inputFiles;
+    }
+
+    /**
+     * Same rules as directory scan applied to single file, for files appearing in watched directories.
+     */
+    boolean isInputFile(Path file, boolean reverseMode) {
+        for (Path part : file) {
+            if (part.toString().equals(RESOURCES_PATH_NAME))
+                return false;
+        }
+        return Files.isRegularFile(file)
+                && FilenameUtils.getExtension(file.getFileName().toString()).toLowerCase().startsWith("htm")
+                && alreadyNotConverted(file, reverseMode);
+    }
+
     private void displayHelp() {
         HelpFormatter helpFormatter = new HelpFormatter();
         PrintWriter errWriter = new PrintWriter(System.err, true);
@@ -233,15 +989,42 @@ class CmdLineParser {
     void checkErrors(ParsedCmdline parsedCmdline) {
         if (parsedCmdline.getParseException() != null) {
             log.error(parsedCmdline.getParseException().getMessage());
+            // asynchronous appender drops queued events on exit otherwise
+            LogManager.shutdown();
             System.exit(2);
         }
 
         if (parsedCmdline.isShowHelp()) {
             displayHelp();
+            LogManager.shutdown();
             System.exit(0);
         }
     }
 
+    // collects resources directories with packs instead of html files
+    private void packScanner(Path inputFile, List<Path> capacitor) throws ParseException {
+        if (Files.isDirectory(inputFile)) {
+            if (inputFile.getFileName() != null && inputFile.getFileName().toString().equals(RESOURCES_PATH_NAME)) {
+                addPackDir(inputFile, capacitor);
+                return;
+            }
+            try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(inputFile, Files::isDirectory)) {
+                for (Path path : dirStream) {
+                    packScanner(path, capacitor);
+                }
+            } catch (IOException err) {
+                throw new ParseException("Unable to enumerate directory " + inputFile + ": " + err.getMessage());
+            }
+        } else {
+            addPackDir(inputFile.resolveSibling(RESOURCES_PATH_NAME), capacitor);
+        }
+    }
+
+    private void addPackDir(Path resourcesDir, List<Path> capacitor) {
+        if (Files.exists(resourcesDir.resolve(ResourcePack.PACK_FILE_NAME)) && !capacitor.contains(resourcesDir))
+            capacitor.add(resourcesDir);
+    }
+
     private void dirScanner(Path inputFile, List<Path> capacitor, boolean reverseMode) throws ParseException {
         if (Files.isDirectory(inputFile)) {
             if (inputFile.getFileName().toString().equals(RESOURCES_PATH_NAME)) {
@@ -283,6 +1066,8 @@ class CmdLineParser {
                     return false;
                 }
                 Path stateFile = resourceDir.resolve(STATE_FILE_NAME);
+                if (Files.notExists(stateFile))
+                    stateFile = resourceDir.resolve(STATE_DB_NAME);
                 if (!Files.exists(stateFile) && !Files.isRegularFile(stateFile)) {
                     log.info("State file for file \"{}\" - \"{}\", not found into resource directory",
                             inputFile.toString(), stateFile.toString());
@@ -294,7 +1079,9 @@ class CmdLineParser {
 
         if (!reverseMode) {
             Path alreadyConvertedPath = NamesUtils.getDownloadPath(inputFile);
-            if (Files.exists(alreadyConvertedPath)) {
+            // pages converted with state database are converted again if changed, see PageVersions
+            if (Files.exists(alreadyConvertedPath)
+                    && Files.notExists(inputFile.resolveSibling(RESOURCES_PATH_NAME).resolve(STATE_DB_NAME))) {
                 log.info("This file already has converted version: \"{}\" - \"{}\", skipping",
                         inputFile.toString(), alreadyConvertedPath.getFileName().toString());
                 return false;
@@ -0,0 +1,206 @@
+package downloader;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Machine-wide content-addressed cache shared by all resources directories and processes: url, MD5 hash, blob.
+ * Blobs are read-only files hard linked (or copied, across file systems) into resources directories.
+ * Index is kept in own sqlite database, least recently used blobs are evicted over size limit.
+ * Index creation and eviction are done under a file lock, so several processes can use the same cache.
+ */
+public class ContentCache
+        implements Closeable, AutoCloseable {
+
+    static final int DEFAULT_SIZE = 1024;
+    private static final String INDEX_DB_NAME = "index.sqlite3";
+    private static final String BLOBS_DIR_NAME = "blobs";
+    private static final String LOCK_FILE_NAME = "cache.lock";
+    private static final int EVICT_BATCH = 100;
+    private static final Logger log = LogManager.getLogger(ContentCache.class.getSimpleName());
+
+    private final Path blobsDir;
+    private final Path lockFile;
+    private final long maxSize;
+    private final Connection connection;
+    private final SqliteContentCache index;
+    private long addedSinceEviction = 0L;
+
+    // file lock is held by try-with-resources only
+    @SuppressWarnings("try")
+    ContentCache(@NotNull final Path cacheDir, final long maxSize) {
+        this.blobsDir = cacheDir.resolve(BLOBS_DIR_NAME);
+        this.lockFile = cacheDir.resolve(LOCK_FILE_NAME);
+        this.maxSize = maxSize;
+        Path indexFile = cacheDir.resolve(INDEX_DB_NAME);
+        try {
+            Files.createDirectories(blobsDir);
+            connection = DriverManager.getConnection(SqliteHolder.JDBC_PREFIX + indexFile.toString().replace('\\', '/'));
+        } catch (IOException | SQLException err) {
+            throw new RuntimeException("Unable to open content cache \"" + cacheDir + "\": " + err.getMessage(), err);
+        }
+        try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock ignored = channel.lock()) {
+            // other processes wait for locked index instead of failing
+            try (Statement stat = connection.createStatement()) {
+                stat.executeUpdate("pragma busy_timeout = 30000");
+            }
+            try (Statement stat = connection.createStatement()) {
+                stat.executeQuery("pragma journal_mode = wal").close();
+            }
+            index = new SqliteContentCache(connection, "content_cache");
+        } catch (IOException | SQLException | RuntimeException err) {
+            closeSilent();
+            throw new RuntimeException("Unable to open content cache \"" + cacheDir + "\": " + err.getMessage(), err);
+        }
+        log.info("Using content cache {}, {} of {} bytes used", cacheDir, index.getTotalSize(), maxSize);
+    }
+
+    /**
+     * Links or copies cached content of url into target file, replacing it.
+     *
+     * @return false if url is not cached
+     */
+    boolean materialize(@NotNull final String url, @NotNull final Path target) {
+        String md5sum = index.getMd5(url);
+        if (md5sum != null) {
+            try {
+                String method = linkOrCopy(getBlobPath(md5sum), target);
+                index.touch(md5sum);
+                Metrics.counter("resdownloader_content_cache_lookups_total", "result", "hit").increment();
+                Metrics.counter("resdownloader_content_cache_materialized_total", "method", method).increment();
+                return true;
+            } catch (NoSuchFileException err) {
+                // evicted by another process between index lookup and link
+                index.remove(md5sum);
+            } catch (IOException err) {
+                log.warn("Unable to take {} from content cache: {}", url, err.getMessage());
+            }
+        }
+        Metrics.counter("resdownloader_content_cache_lookups_total", "result", "miss").increment();
+        return false;
+    }
+
+    /**
+     * Adds downloaded content of url, file itself is left in place.
+     */
+    void put(@NotNull final String url, @NotNull final String md5sum, @NotNull final Path file) {
+        Path blob = getBlobPath(md5sum);
+        try {
+            long size = Files.size(file);
+            if (!index.containsMd5(md5sum) || Files.notExists(blob)) {
+                Files.createDirectories(blob.getParent());
+                Path temp = blob.resolveSibling(blob.getFileName() + "."
+                        + Long.toUnsignedString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+                linkOrCopy(file, temp);
+                // linked resources must not change blob, so they are read-only too
+                if (!temp.toFile().setReadOnly())
+                    log.debug("Unable to make {} read-only", temp);
+                try {
+                    Files.move(temp, blob, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException err) {
+                    Files.move(temp, blob, StandardCopyOption.REPLACE_EXISTING);
+                }
+                addedSinceEviction += size;
+                Metrics.counter("resdownloader_content_cache_stored_bytes_total").add(size);
+            }
+            index.put(url, md5sum, size);
+        } catch (IOException err) {
+            log.warn("Unable to add {} to content cache: {}", url, err.getMessage());
+        }
+        if (addedSinceEviction > maxSize / 20)
+            evict();
+    }
+
+    /**
+     * Removes least recently used blobs until cache fits size limit. Blobs already linked into resources directories
+     * stay there, only cache loses them.
+     */
+    @SuppressWarnings("try")
+    void evict() {
+        addedSinceEviction = 0L;
+        long evicted = 0L;
+        try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock ignored = channel.lock()) {
+            long total = index.getTotalSize();
+            while (total > maxSize) {
+                List<SqliteContentCache.Blob> oldest = index.getLeastRecentlyUsed(EVICT_BATCH);
+                if (oldest.isEmpty())
+                    break;
+                for (SqliteContentCache.Blob blob : oldest) {
+                    if (total <= maxSize)
+                        break;
+                    index.remove(blob.md5);
+                    Files.deleteIfExists(getBlobPath(blob.md5));
+                    total -= blob.size;
+                    evicted += blob.size;
+                }
+            }
+        } catch (IOException err) {
+            log.warn("Unable to evict content cache blobs: {}", err.getMessage());
+        }
+        if (evicted > 0L) {
+            Metrics.counter("resdownloader_content_cache_evicted_bytes_total").add(evicted);
+            log.info("Evicted {} bytes from content cache", evicted);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (addedSinceEviction > 0L)
+            evict();
+        closeSilent();
+    }
+
+    private void closeSilent() {
+        try {
+            connection.close();
+        } catch (SQLException err) {
+            log.error("Unable to close content cache index: " + err.getMessage());
+        }
+    }
+
+    @NotNull
+    private Path getBlobPath(@NotNull final String md5sum) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : Base64.getDecoder().decode(md5sum)) {
+            hex.append(String.format("%02x", b));
+        }
+        return blobsDir.resolve(hex.substring(0, 2)).resolve(hex.toString());
+    }
+
+    @NotNull
+    private static String linkOrCopy(@NotNull final Path source, @NotNull final Path target) throws IOException {
+        Files.deleteIfExists(target);
+        try {
+            Files.createLink(target, source);
+            return "link";
+        } catch (UnsupportedOperationException | FileSystemException err) {
+            // different file systems or no hard links support
+            if (Files.notExists(source))
+                throw new NoSuchFileException(source.toString());
+            Files.copy(source, target);
+            return "copy";
+        }
+    }
+}
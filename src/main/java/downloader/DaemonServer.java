@@ -0,0 +1,357 @@
+package downloader;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.cli.ParseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Daemon mode: JVM, clients, pools and state databases stay warm between jobs. Jobs (html files or directories)
+ * come from HTTP API on localhost and are converted one by one on the thread calling {@link #run}, because state
+ * databases are used from one thread only.
+ * <pre>
+ * POST /jobs {"paths": ["..."]}  queue job, 503 if queue is full or daemon is shutting down
+ * GET  /jobs                     status and progress of known jobs
+ * GET  /jobs/ID                  status and progress of one job
+ * POST /shutdown                 stop taking jobs, finish queued ones and exit, same as SIGTERM
+ * </pre>
+ */
+public class DaemonServer
+        implements Closeable, AutoCloseable {
+
+    static final int DEFAULT_QUEUE_SIZE = 100;
+    private static final int HISTORY_SIZE = 1000;
+    private static final long POLL_MILLIS = 1000L;
+    private static final int API_THREADS = 2;
+    private static final String JOBS_PATH = "/jobs";
+    private static final Logger log = LogManager.getLogger(DaemonServer.class.getSimpleName());
+
+    private final CmdLineParser cmdLineParser;
+    private final HttpServer server;
+    private final ExecutorService apiExecutor;
+    private final BlockingQueue<Job> queue;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final AtomicLong lastJobId = new AtomicLong();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final Map<Long, Job> jobs = new LinkedHashMap<Long, Job>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Job> eldest) {
+            return size() > HISTORY_SIZE && eldest.getValue().isFinished();
+        }
+    };
+    private boolean draining = false;
+
+    DaemonServer(final int port, final int queueSize, @NotNull final CmdLineParser cmdLineParser) {
+        this.cmdLineParser = cmdLineParser;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        } catch (IOException err) {
+            throw new RuntimeException("Unable to listen on port " + port + ": " + err.getMessage(), err);
+        }
+        apiExecutor = Executors.newFixedThreadPool(API_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "daemon-api");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(apiExecutor);
+        server.createContext(JOBS_PATH, this::handleJobs);
+        server.createContext("/shutdown", this::handleShutdown);
+        Metrics.gauge("resdownloader_daemon_queued_jobs", queue::size);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::drainOnExit, "daemon-drain"));
+    }
+
+    /**
+     * Converts queued jobs until shutdown is requested and queue is empty.
+     */
+    void run(@NotNull final HtmlFilesConverter converter,
+             @NotNull final DownloadClients clients,
+             @NotNull final ParsedCmdline parsedCmdline) {
+        server.start();
+        log.info("Daemon is waiting for jobs on http://{}:{}{}", server.getAddress().getHostString(),
+                server.getAddress().getPort(), JOBS_PATH);
+        while (true) {
+            synchronized (this) {
+                if (draining && queue.isEmpty())
+                    break;
+            }
+            Job job;
+            try {
+                job = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException err) {
+                Thread.currentThread().interrupt();
+                log.error("Interrupted while waiting for jobs");
+                break;
+            }
+            if (job == null) {
+                clients.closeIdle();
+                continue;
+            }
+            runJob(job, converter, parsedCmdline);
+        }
+        log.info("Daemon finished all jobs");
+    }
+
+    private void runJob(Job job, HtmlFilesConverter converter, ParsedCmdline parsedCmdline) {
+        long started = System.nanoTime();
+        log.info("Starting job {}: {}", job.id, job.paths);
+        try {
+            // files may be converted by previous jobs since the job was queued
+            List<Path> inputFiles = cmdLineParser.scanInputFiles(job.paths, parsedCmdline.isReverseMode(), false);
+            try (ProgressReporter progress = new ProgressReporter(inputFiles.size(),
+                    parsedCmdline.getProgressInterval())) {
+                job.start(progress);
+                job.finish(Job.Status.DONE, converter.convert(inputFiles, progress), null);
+            }
+            log.info("Job {} done", job.id);
+        } catch (ParseException | RuntimeException err) {
+            log.error("Job {} failed: {}", job.id, err.getMessage());
+            job.finish(Job.Status.FAILED, 0L, err.getMessage());
+        }
+        Metrics.counter("resdownloader_daemon_jobs_total", "status", job.status.getLabel()).increment();
+        Metrics.histogram("resdownloader_daemon_job_seconds").observeSince(started);
+    }
+
+    synchronized void requestShutdown() {
+        if (!draining) {
+            draining = true;
+            log.info("Daemon is shutting down, {} jobs left in queue", queue.size());
+        }
+    }
+
+    private void drainOnExit() {
+        requestShutdown();
+        try {
+            stopped.await();
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        requestShutdown();
+        server.stop(0);
+        apiExecutor.shutdownNow();
+    }
+
+    /**
+     * Lets shutdown hook return and JVM halt, called once logs are flushed.
+     */
+    void exited() {
+        stopped.countDown();
+    }
+
+    private void handleJobs(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            if (path.equals(JOBS_PATH) || path.equals(JOBS_PATH + "/")) {
+                if (method.equals("POST")) {
+                    submit(exchange);
+                } else if (method.equals("GET")) {
+                    List<Map<String, Object>> result = new ArrayList<>();
+                    synchronized (this) {
+                        for (Job job : jobs.values()) {
+                            result.add(job.toMap());
+                        }
+                    }
+                    respond(exchange, 200, result);
+                } else {
+                    respondError(exchange, 405, "Method not allowed");
+                }
+                return;
+            }
+            Job job = null;
+            try {
+                long id = Long.parseLong(path.substring(JOBS_PATH.length() + 1));
+                synchronized (this) {
+                    job = jobs.get(id);
+                }
+            } catch (NumberFormatException | StringIndexOutOfBoundsException ignore) {
+            }
+            if (job == null) {
+                respondError(exchange, 404, "Job not found");
+            } else if (!method.equals("GET")) {
+                respondError(exchange, 405, "Method not allowed");
+            } else {
+                respond(exchange, 200, job.toMap());
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void submit(HttpExchange exchange) throws IOException {
+        List<String> paths = new ArrayList<>();
+        try (InputStream in = exchange.getRequestBody()) {
+            JsonNode pathsNode = objectMapper.readTree(in).path("paths");
+            for (JsonNode pathNode : pathsNode) {
+                paths.add(pathNode.asText());
+            }
+        } catch (IOException err) {
+            respondError(exchange, 400, "Unable to parse job: " + err.getMessage());
+            return;
+        }
+        if (paths.isEmpty()) {
+            respondError(exchange, 400, "Job has no paths");
+            return;
+        }
+        for (String path : paths) {
+            boolean exists;
+            try {
+                exists = Files.exists(Paths.get(path));
+            } catch (InvalidPathException err) {
+                exists = false;
+            }
+            if (!exists) {
+                respondError(exchange, 400, "Input file not found: " + path);
+                return;
+            }
+        }
+        Job job;
+        synchronized (this) {
+            if (draining) {
+                Metrics.counter("resdownloader_daemon_jobs_total", "status", "rejected").increment();
+                respondError(exchange, 503, "Daemon is shutting down");
+                return;
+            }
+            job = new Job(lastJobId.incrementAndGet(), paths);
+            if (!queue.offer(job)) {
+                Metrics.counter("resdownloader_daemon_jobs_total", "status", "rejected").increment();
+                exchange.getResponseHeaders().set("Retry-After", "10");
+                respondError(exchange, 503, "Queue is full");
+                return;
+            }
+            jobs.put(job.id, job);
+        }
+        Metrics.counter("resdownloader_daemon_jobs_total", "status", "accepted").increment();
+        log.info("Queued job {}: {}", job.id, paths);
+        exchange.getResponseHeaders().set("Location", JOBS_PATH + "/" + job.id);
+        respond(exchange, 202, job.toMap());
+    }
+
+    private void handleShutdown(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                respondError(exchange, 405, "Method not allowed");
+                return;
+            }
+            requestShutdown();
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("queued", queue.size());
+            respond(exchange, 202, result);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void respondError(HttpExchange exchange, int code, String message) throws IOException {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("error", message);
+        respond(exchange, code, result);
+    }
+
+    private void respond(HttpExchange exchange, int code, Object body) throws IOException {
+        byte[] bytes = objectMapper.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static class Job {
+
+        enum Status {
+            QUEUED, RUNNING, DONE, FAILED;
+
+            String getLabel() {
+                return name().toLowerCase();
+            }
+        }
+
+        final long id;
+        final List<String> paths;
+        final long submittedAt = System.currentTimeMillis();
+        volatile Status status = Status.QUEUED;
+        private long startedAt = 0L;
+        private long finishedAt = 0L;
+        private long saved = 0L;
+        private ProgressReporter progress = null;
+        private String error = null;
+
+        Job(long id, List<String> paths) {
+            this.id = id;
+            this.paths = paths;
+        }
+
+        synchronized void start(@NotNull ProgressReporter progress) {
+            this.progress = progress;
+            this.startedAt = System.currentTimeMillis();
+            this.status = Status.RUNNING;
+        }
+
+        synchronized void finish(@NotNull Status status, long saved, @Nullable String error) {
+            if (startedAt == 0L)
+                startedAt = System.currentTimeMillis();
+            this.finishedAt = System.currentTimeMillis();
+            this.saved = saved;
+            this.error = error;
+            this.status = status;
+        }
+
+        boolean isFinished() {
+            return status == Status.DONE || status == Status.FAILED;
+        }
+
+        synchronized Map<String, Object> toMap() {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("id", id);
+            result.put("status", status.getLabel());
+            result.put("paths", paths);
+            result.put("submitted_at", submittedAt);
+            if (startedAt > 0L)
+                result.put("started_at", startedAt);
+            if (finishedAt > 0L)
+                result.put("finished_at", finishedAt);
+            if (progress != null) {
+                result.put("files_total", progress.getFilesTotal());
+                result.put("files_done", progress.getFilesDone());
+                result.put("files_saved", saved);
+                result.put("links_total", progress.getLinksTotal());
+                result.put("links_done", progress.getLinksDone());
+            }
+            if (error != null)
+                result.put("error", error);
+            return result;
+        }
+    }
+}
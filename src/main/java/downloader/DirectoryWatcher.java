@@ -0,0 +1,301 @@
+package downloader;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static downloader.NamesUtils.RESOURCES_PATH_NAME;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Watch mode: input directories and their new subdirectories are watched for new or modified html files.
+ * File is converted once it has no events and keeps size and modification time for debounce period, so pages
+ * being written are not parsed half-way. Conversion runs on the thread calling {@link #run}, events keep queueing
+ * in watch service meanwhile.
+ */
+public class DirectoryWatcher
+        implements Closeable, AutoCloseable {
+
+    static final int DEFAULT_DEBOUNCE = 2;
+    private static final long MAX_POLL_MILLIS = 1000L;
+    private static final Logger log = LogManager.getLogger(DirectoryWatcher.class.getSimpleName());
+
+    private final List<Path> roots;
+    private final CmdLineParser cmdLineParser;
+    private final boolean reverseMode;
+    private final long debounceNanos;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirs = new HashMap<>();
+    private final Set<Path> watchedPaths = new HashSet<>();
+    private final Map<Path, PendingFile> pending = new ConcurrentHashMap<>();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile boolean stopping = false;
+
+    DirectoryWatcher(@NotNull final List<Path> roots,
+                     final int debounce,
+                     final boolean reverseMode,
+                     @NotNull final CmdLineParser cmdLineParser) {
+        this.roots = roots;
+        this.cmdLineParser = cmdLineParser;
+        this.reverseMode = reverseMode;
+        this.debounceNanos = TimeUnit.SECONDS.toNanos(debounce);
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException err) {
+            throw new RuntimeException("Unable to watch input directories: " + err.getMessage(), err);
+        }
+        // files present before start are converted from scan of command line, only watches are needed here
+        for (Path root : roots) {
+            registerTree(root, false);
+        }
+        Metrics.gauge("resdownloader_watch_pending_files", pending::size);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stopOnExit, "watch-stop"));
+    }
+
+    /**
+     * Converts initial files, then files appearing in watched directories until stopped.
+     */
+    void run(@NotNull final HtmlFilesConverter converter,
+             @NotNull final DownloadClients clients,
+             @NotNull final List<Path> initialFiles,
+             final int progressInterval) {
+        if (!initialFiles.isEmpty())
+            convert(converter, initialFiles, progressInterval);
+        log.info("Watching {} for new html files", roots);
+        while (!stopping) {
+            try {
+                WatchKey key = watchService.poll(getPollMillis(), TimeUnit.MILLISECONDS);
+                while (key != null) {
+                    handleEvents(key);
+                    key = watchService.poll();
+                }
+            } catch (InterruptedException err) {
+                Thread.currentThread().interrupt();
+                log.error("Interrupted while watching input directories");
+                break;
+            } catch (ClosedWatchServiceException err) {
+                break;
+            }
+            List<Path> ready = collectReady();
+            if (!ready.isEmpty()) {
+                convert(converter, ready, progressInterval);
+            } else if (pending.isEmpty()) {
+                clients.closeIdle();
+            }
+        }
+        if (!pending.isEmpty())
+            log.warn("Watch stopped, {} changed files are not converted", pending.size());
+        else
+            log.info("Watch stopped");
+    }
+
+    private void convert(HtmlFilesConverter converter, List<Path> files, int progressInterval) {
+        try (ProgressReporter progress = new ProgressReporter(files.size(), progressInterval)) {
+            converter.convert(files, progress);
+        } catch (RuntimeException err) {
+            log.error("Unable to convert {}: {}", files, err.getMessage());
+        }
+    }
+
+    private long getPollMillis() {
+        long now = System.nanoTime();
+        long result = MAX_POLL_MILLIS;
+        for (PendingFile file : pending.values()) {
+            long left = TimeUnit.NANOSECONDS.toMillis(file.lastChange + debounceNanos - now) + 1L;
+            result = Math.max(1L, Math.min(result, left));
+        }
+        return result;
+    }
+
+    private void handleEvents(WatchKey key) {
+        Path dir = watchedDirs.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                // events are lost, every file may be changed
+                log.warn("Too many changes in watched directories, rescanning");
+                for (Path root : roots) {
+                    registerTree(root, true);
+                }
+                continue;
+            }
+            if (dir == null)
+                continue;
+            Path child = dir.resolve((Path) event.context());
+            if (Files.isDirectory(child)) {
+                // files may be written before the watch is registered
+                if (event.kind() == ENTRY_CREATE)
+                    registerTree(child, true);
+            } else {
+                touch(child);
+            }
+        }
+        if (!key.reset())
+            watchedPaths.remove(watchedDirs.remove(key));
+    }
+
+    private void registerTree(Path root, boolean enqueueFiles) {
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (dir.getFileName() != null && dir.getFileName().toString().equals(RESOURCES_PATH_NAME))
+                        return FileVisitResult.SKIP_SUBTREE;
+                    if (watchedPaths.add(dir)) {
+                        try {
+                            watchedDirs.put(dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY), dir);
+                        } catch (IOException err) {
+                            watchedPaths.remove(dir);
+                            log.warn("Unable to watch directory {}: {}", dir, err.getMessage());
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (enqueueFiles)
+                        touch(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException err) {
+                    log.warn("Unable to watch {}: {}", file, err.getMessage());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException err) {
+            log.warn("Unable to watch directory {}: {}", root, err.getMessage());
+        }
+    }
+
+    private void touch(Path file) {
+        if (!FilenameUtils.getExtension(file.getFileName().toString()).toLowerCase().startsWith("htm"))
+            return;
+        // converted copies are written next to originals by this process
+        if (!reverseMode && NamesUtils.isDownloadedName(file))
+            return;
+        PendingFile pendingFile = pending.get(file);
+        if (pendingFile == null) {
+            pending.put(file, new PendingFile(file));
+        } else {
+            pendingFile.update();
+        }
+    }
+
+    /**
+     * @return files which did not change for debounce period and pass the same rules as command line files
+     */
+    private List<Path> collectReady() {
+        long now = System.nanoTime();
+        List<Path> ready = new ArrayList<>();
+        Iterator<PendingFile> iterator = pending.values().iterator();
+        while (iterator.hasNext()) {
+            PendingFile file = iterator.next();
+            if (now - file.lastChange < debounceNanos)
+                continue;
+            if (Files.notExists(file.path)) {
+                iterator.remove();
+                continue;
+            }
+            // writer may keep appending without events, e.g. on network file systems
+            if (file.update())
+                continue;
+            iterator.remove();
+            if (cmdLineParser.isInputFile(file.path, reverseMode)) {
+                Metrics.counter("resdownloader_watch_files_total", "result", "queued").increment();
+                ready.add(file.path);
+            } else {
+                Metrics.counter("resdownloader_watch_files_total", "result", "skipped").increment();
+            }
+        }
+        Collections.sort(ready);
+        return ready;
+    }
+
+    private void stopOnExit() {
+        stopping = true;
+        try {
+            stopped.await();
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        stopping = true;
+        try {
+            watchService.close();
+        } catch (IOException err) {
+            log.error("Unable to close watch service: {}", err.getMessage());
+        }
+    }
+
+    /**
+     * Lets shutdown hook return and JVM halt, called once logs are flushed.
+     */
+    void exited() {
+        stopped.countDown();
+    }
+
+    private static class PendingFile {
+
+        final Path path;
+        long lastChange;
+        long size = -1L;
+        long modified = -1L;
+
+        PendingFile(Path path) {
+            this.path = path;
+            update();
+        }
+
+        /**
+         * @return true if size or modification time changed since previous check
+         */
+        boolean update() {
+            long newSize;
+            long newModified;
+            try {
+                newSize = Files.size(path);
+                newModified = Files.getLastModifiedTime(path).toMillis();
+            } catch (IOException err) {
+                newSize = -1L;
+                newModified = -1L;
+            }
+            boolean changed = newSize != size || newModified != modified;
+            size = newSize;
+            modified = newModified;
+            lastChange = System.nanoTime();
+            return changed;
+        }
+    }
+}
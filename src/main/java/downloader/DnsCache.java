@@ -0,0 +1,143 @@
+package downloader;
+
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Resolved addresses shared by HTTP clients of all documents of the run and kept for TTL.
+ * Names from hosts file (/etc/hosts format) take precedence over system resolver,
+ * so hosts can be pointed to local servers.
+ */
+public class DnsCache
+        implements DnsResolver {
+
+    static final int DEFAULT_TTL = 300;
+    private static final Logger log = LogManager.getLogger(DnsCache.class.getSimpleName());
+    private static final Pattern IP_ADDRESS = Pattern.compile("[0-9.]+|[0-9A-Fa-f:.]*:[0-9A-Fa-f:.]*");
+    private static volatile DnsCache instance = new DnsCache(DEFAULT_TTL * 1000L, Collections.emptyMap());
+
+    private final long ttlNanos;
+    private final Map<String, InetAddress[]> hosts;
+    private final DnsResolver resolver;
+    private final ConcurrentMap<String, CachedAddresses> cache = new ConcurrentHashMap<>();
+
+    private DnsCache(final long ttlMillis, @NotNull final Map<String, InetAddress[]> hosts) {
+        this(ttlMillis, hosts, SystemDefaultDnsResolver.INSTANCE);
+    }
+
+    DnsCache(final long ttlMillis,
+             @NotNull final Map<String, InetAddress[]> hosts,
+             @NotNull final DnsResolver resolver) {
+        this.ttlNanos = ttlMillis * 1_000_000L;
+        this.hosts = hosts;
+        this.resolver = resolver;
+    }
+
+    @NotNull
+    static DnsCache getInstance() {
+        return instance;
+    }
+
+    static void configure(final long ttlMillis, @Nullable final Path hostsFile) {
+        Map<String, InetAddress[]> hosts = Collections.emptyMap();
+        if (hostsFile != null) {
+            try {
+                hosts = readHostsFile(hostsFile);
+            } catch (IOException err) {
+                throw new RuntimeException("Unable to read hosts file \"" + hostsFile + "\": " + err.getMessage(), err);
+            }
+            log.info("Loaded {} host names from {}", hosts.size(), hostsFile);
+        }
+        instance = new DnsCache(ttlMillis, hosts);
+    }
+
+    @Override
+    public InetAddress[] resolve(final String host) throws UnknownHostException {
+        String name = host.toLowerCase(Locale.ROOT);
+        InetAddress[] fixed = hosts.get(name);
+        if (fixed != null) {
+            Metrics.counter("resdownloader_dns_lookups_total", "result", "hosts").increment();
+            return fixed.clone();
+        }
+        CachedAddresses cached = cache.get(name);
+        if (cached != null && System.nanoTime() - cached.resolvedAt < ttlNanos) {
+            Metrics.counter("resdownloader_dns_lookups_total", "result", "hit").increment();
+            return cached.addresses.clone();
+        }
+        long started = System.nanoTime();
+        try {
+            InetAddress[] addresses = resolver.resolve(host);
+            if (ttlNanos > 0L)
+                cache.put(name, new CachedAddresses(addresses, System.nanoTime()));
+            Metrics.counter("resdownloader_dns_lookups_total", "result", "miss").increment();
+            return addresses.clone();
+        } catch (UnknownHostException err) {
+            Metrics.counter("resdownloader_dns_lookups_total", "result", "error").increment();
+            throw err;
+        } finally {
+            Metrics.histogram("resdownloader_dns_lookup_seconds").observeSince(started);
+        }
+    }
+
+    static Map<String, InetAddress[]> readHostsFile(final Path hostsFile) throws IOException {
+        Map<String, List<InetAddress>> addresses = new HashMap<>();
+        for (String line : Files.readAllLines(hostsFile, StandardCharsets.UTF_8)) {
+            int comment = line.indexOf('#');
+            String[] parts = (comment >= 0 ? line.substring(0, comment) : line).trim().split("\\s+");
+            if (parts.length < 2)
+                continue;
+            // literal only, never a lookup for hosts file itself
+            if (!IP_ADDRESS.matcher(parts[0]).matches()) {
+                log.warn("Skipping hosts file line with invalid address: {}", line);
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++) {
+                String name = parts[i].toLowerCase(Locale.ROOT);
+                InetAddress address;
+                try {
+                    address = InetAddress.getByAddress(name, InetAddress.getByName(parts[0]).getAddress());
+                } catch (UnknownHostException err) {
+                    log.warn("Skipping hosts file line with invalid address: {}", line);
+                    break;
+                }
+                addresses.computeIfAbsent(name, key -> new ArrayList<>()).add(address);
+            }
+        }
+        Map<String, InetAddress[]> result = new HashMap<>();
+        for (Map.Entry<String, List<InetAddress>> entry : addresses.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().toArray(new InetAddress[0]));
+        }
+        return result;
+    }
+
+    private static class CachedAddresses {
+
+        final InetAddress[] addresses;
+        final long resolvedAt;
+
+        CachedAddresses(InetAddress[] addresses, long resolvedAt) {
+            this.addresses = addresses;
+            this.resolvedAt = resolvedAt;
+        }
+    }
+}
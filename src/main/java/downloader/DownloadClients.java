@@ -0,0 +1,105 @@
+package downloader;
+
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clients living for the whole run and shared by all documents: pool of HTTP connections kept alive between
+ * documents and SSH session to external downloader host.
+ */
+public class DownloadClients
+        implements Closeable, AutoCloseable {
+
+    private static final Logger log = LogManager.getLogger(DownloadClients.class.getSimpleName());
+    private static final long MAX_IDLE_MILLIS = 60_000L;
+
+    private final TransferLimits transferLimits;
+    private final int maxPerRoute;
+    private final int maxTotal;
+    private final SSHWgetClient sshWgetClient;
+    private PoolingHttpClientConnectionManager connectionManager = null;
+
+    DownloadClients(@NotNull final ParsedCmdline parsedCmdline) {
+        transferLimits = new TransferLimits(parsedCmdline.getConnectTimeout(),
+                parsedCmdline.getTtfbTimeout(),
+                parsedCmdline.getIdleTimeout(),
+                parsedCmdline.getDeadline(),
+                parsedCmdline.getMinSpeed(),
+                parsedCmdline.getMinSpeedTime());
+        // segments of one resource share the route with other downloads
+        int segments = parsedCmdline.isResume() && parsedCmdline.getSegments() > 1 ? parsedCmdline.getSegments() : 0;
+        maxPerRoute = parsedCmdline.getHostConnections() + segments;
+        // workers of all hosts do not wait for pooled connection, waiting would look like dead or overloaded host
+        maxTotal = parsedCmdline.getJobs() * (1 + segments) + HttpCookieClient.PREWARM_THREADS;
+
+        final String externalHost = parsedCmdline.getExternalHost();
+        final String externalUserName = parsedCmdline.getExternalUserName();
+        if (!parsedCmdline.isReverseMode() && externalHost != null && externalUserName != null) {
+            try {
+                sshWgetClient = new SSHWgetClient(externalHost,
+                        parsedCmdline.getExternalPort(),
+                        externalUserName,
+                        parsedCmdline.getExternalPassword(),
+                        parsedCmdline.getExternalKeyFile(),
+                        parsedCmdline.getTimeout(),
+                        transferLimits,
+                        true,
+                        parsedCmdline.isResume());
+            } catch (Exception err) {
+                throw new RuntimeException("Unable to use external SSH downloader host \"" + externalHost + "\":" + err.getMessage(), err);
+            }
+        } else {
+            sshWgetClient = null;
+        }
+    }
+
+    @NotNull
+    TransferLimits getTransferLimits() {
+        return transferLimits;
+    }
+
+    /**
+     * Pool is created with the first document downloading resources, reverse mode never needs it.
+     */
+    @NotNull
+    synchronized PoolingHttpClientConnectionManager getConnectionManager() {
+        if (connectionManager == null)
+            connectionManager = HttpCookieClient.createConnectionManager(true, maxPerRoute, maxTotal);
+        return connectionManager;
+    }
+
+    @Nullable
+    SSHWgetClient getSshWgetClient() {
+        return sshWgetClient;
+    }
+
+    /**
+     * Closes pooled connections nobody used for a while, servers drop them anyway.
+     */
+    synchronized void closeIdle() {
+        if (connectionManager == null)
+            return;
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections(MAX_IDLE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (connectionManager != null)
+            connectionManager.shutdown();
+        try {
+            if (sshWgetClient != null) {
+                sshWgetClient.close();
+            }
+        } catch (IOException err) {
+            log.error("Unable to close SSH client: {}", err.getMessage());
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package downloader;
+
+import org.apache.http.client.utils.DateUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.URI;
+import java.util.Date;
+
+public class DownloadResult {
+
+    public static final int NO_RESPONSE = -1;
+    public static final int CIRCUIT_OPEN = -2;
+    // aborted by client, see TransferLimits
+    public static final int DEADLINE_EXCEEDED = -3;
+    public static final int TOO_SLOW = -4;
+    // server responded with content coding client can not decode, same response on retry
+    public static final int UNSUPPORTED_ENCODING = -5;
+
+    public final int code;
+    public final long bytes;
+    public final long responseMillis;
+    public final long retryAfterMillis;
+    // url the content was taken from, if it differs from requested one
+    @Nullable
+    public final URI location;
+    public final int redirects;
+    // content is the file already at local path, nothing is written to temp file
+    public final boolean existing;
+    // validators of response, stored with the file to request it conditionally next time
+    @Nullable
+    public final String etag;
+    @Nullable
+    public final String lastModified;
+
+    public DownloadResult(final int code,
+                          final long bytes,
+                          final long responseMillis,
+                          final long retryAfterMillis) {
+        this(code, bytes, responseMillis, retryAfterMillis, null, 0, false, null, null);
+    }
+
+    private DownloadResult(final int code,
+                           final long bytes,
+                           final long responseMillis,
+                           final long retryAfterMillis,
+                           @Nullable final URI location,
+                           final int redirects,
+                           final boolean existing,
+                           @Nullable final String etag,
+                           @Nullable final String lastModified) {
+        this.code = code;
+        this.bytes = bytes;
+        this.responseMillis = responseMillis;
+        this.retryAfterMillis = retryAfterMillis;
+        this.location = location;
+        this.redirects = redirects;
+        this.existing = existing;
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    public DownloadResult withLocation(@NotNull final URI location, final int redirects) {
+        return new DownloadResult(code, bytes, responseMillis, retryAfterMillis, location, redirects, existing,
+                etag, lastModified);
+    }
+
+    public DownloadResult withValidators(@Nullable final String etag, @Nullable final String lastModified) {
+        return new DownloadResult(code, bytes, responseMillis, retryAfterMillis, location, redirects, existing,
+                etag, lastModified);
+    }
+
+    public static DownloadResult existing(final long bytes, final long responseMillis) {
+        return new DownloadResult(200, bytes, responseMillis, 0L, null, 0, true, null, null);
+    }
+
+    public static DownloadResult noResponse() {
+        return new DownloadResult(NO_RESPONSE, 0L, 0L, 0L);
+    }
+
+    public static DownloadResult circuitOpen() {
+        return new DownloadResult(CIRCUIT_OPEN, 0L, 0L, 0L);
+    }
+
+    public static DownloadResult unsupportedEncoding(final long responseMillis) {
+        return new DownloadResult(UNSUPPORTED_ENCODING, 0L, responseMillis, 0L);
+    }
+
+    public boolean isOk() {
+        return code == 200;
+    }
+
+    public boolean hasResponse() {
+        return code > 0 || code == UNSUPPORTED_ENCODING;
+    }
+
+    public String getCodeLabel() {
+        switch (code) {
+            case NO_RESPONSE:
+                return "no_response";
+            case CIRCUIT_OPEN:
+                return "circuit_open";
+            case DEADLINE_EXCEEDED:
+                return "deadline";
+            case TOO_SLOW:
+                return "too_slow";
+            case UNSUPPORTED_ENCODING:
+                return "unsupported_encoding";
+            default:
+                return String.valueOf(code);
+        }
+    }
+
+    public boolean isOverloaded() {
+        return code == 429 || code == 503 || code == NO_RESPONSE || code == DEADLINE_EXCEEDED || code == TOO_SLOW;
+    }
+
+    static long parseRetryAfter(@Nullable final String value) {
+        if (value == null || value.trim().isEmpty())
+            return 0L;
+        String trimmed = value.trim();
+        try {
+            return Math.max(0L, Long.parseLong(trimmed) * 1000L);
+        } catch (NumberFormatException ignore) {
+        }
+        Date date = DateUtils.parseDate(trimmed);
+        return date != null ? Math.max(0L, date.getTime() - System.currentTimeMillis()) : 0L;
+    }
+}
@@ -0,0 +1,266 @@
+package downloader;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+public class DownloadScheduler
+        implements Closeable, AutoCloseable {
+
+    private static final Logger log = LogManager.getLogger(DownloadScheduler.class.getSimpleName());
+    private static final double INITIAL_HOST_LIMIT = 2.0;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double LATENCY_EWMA_WEIGHT = 0.2;
+    // minimal latency drifts up to recent ones, so one fast outlier does not stop growth of limit forever
+    private static final double MIN_LATENCY_DECAY = 0.01;
+    private static final long MAX_RETRY_AFTER_MILLIS = 600_000L;
+
+    private final int maxParallel;
+    private final int maxPerHost;
+    private final Map<String, HostState> hosts = new LinkedHashMap<>();
+    private final ExecutorService workers;
+    private final ScheduledExecutorService timer;
+    private int inFlight = 0;
+    private boolean closed = false;
+
+    public DownloadScheduler(final int maxParallel, final int maxPerHost) {
+        this.maxParallel = maxParallel;
+        this.maxPerHost = Math.max(1, Math.min(maxPerHost, maxParallel));
+        this.workers = Executors.newFixedThreadPool(maxParallel, runnable -> {
+            Thread thread = new Thread(runnable, "downloader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "downloader-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public Future<DownloadResult> submit(@NotNull final URI url,
+                                         @NotNull final Callable<DownloadResult> download) {
+        String hostName = NamesUtils.getHostKey(url);
+        Task task = new Task(download);
+        synchronized (this) {
+            if (closed)
+                throw new IllegalStateException("Download scheduler is closed");
+            HostState host = hosts.computeIfAbsent(hostName, HostState::new);
+            task.host = host;
+            host.pending.addLast(task);
+            dispatch();
+        }
+        return task.future;
+    }
+
+    public synchronized List<String> describeHosts() {
+        List<String> result = new ArrayList<>(hosts.size());
+        for (HostState host : hosts.values()) {
+            result.add(host.describe());
+        }
+        return result;
+    }
+
+    public void logStats() {
+        for (String hostStats : describeHosts()) {
+            log.info(hostStats);
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        timer.shutdownNow();
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(1, TimeUnit.MINUTES))
+                workers.shutdownNow();
+        } catch (InterruptedException err) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void dispatch() {
+        long now = System.currentTimeMillis();
+        boolean started = true;
+        // round robin between hosts so that one slow origin does not hold all workers
+        while (started && inFlight < maxParallel) {
+            started = false;
+            for (HostState host : hosts.values()) {
+                if (inFlight >= maxParallel)
+                    break;
+                if (host.pending.isEmpty() || host.inFlight >= (int) host.limit)
+                    continue;
+                if (host.blockedUntil > now) {
+                    scheduleWakeup(host, host.blockedUntil - now);
+                    continue;
+                }
+                Task task = host.pending.pollFirst();
+                host.started();
+                inFlight++;
+                started = true;
+                workers.execute(task);
+            }
+        }
+    }
+
+    // gauges are read by exporter thread
+    private synchronized double read(final DoubleSupplier value) {
+        return value.getAsDouble();
+    }
+
+    private void scheduleWakeup(final HostState host, final long delayMillis) {
+        if (host.wakeupScheduled || closed)
+            return;
+        host.wakeupScheduled = true;
+        timer.schedule(() -> {
+            synchronized (this) {
+                host.wakeupScheduled = false;
+                dispatch();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void complete(final HostState host, final DownloadResult result, final long elapsedNanos) {
+        inFlight--;
+        host.finished(result, elapsedNanos);
+        Metrics.counter("resdownloader_requests_total", "host", host.name).increment();
+        Metrics.counter("resdownloader_bytes_total", "host", host.name).add(result.bytes);
+        Metrics.counter("resdownloader_responses_total", "code", result.getCodeLabel()).increment();
+        Metrics.histogram("resdownloader_download_seconds").observeNanos(elapsedNanos);
+        if (result.responseMillis > 0)
+            Metrics.histogram("resdownloader_ttfb_seconds").observeMillis(result.responseMillis);
+        dispatch();
+    }
+
+    private final class Task
+            implements Runnable {
+
+        private final Callable<DownloadResult> download;
+        private final CompletableFuture<DownloadResult> future = new CompletableFuture<>();
+        private HostState host;
+
+        private Task(Callable<DownloadResult> download) {
+            this.download = download;
+        }
+
+        @Override
+        public void run() {
+            long started = System.nanoTime();
+            DownloadResult result = DownloadResult.noResponse();
+            try {
+                result = download.call();
+                future.complete(result);
+            } catch (Throwable err) {
+                future.completeExceptionally(err);
+            } finally {
+                complete(host, result, System.nanoTime() - started);
+            }
+        }
+    }
+
+    private final class HostState {
+
+        private final String name;
+        private final ArrayDeque<Task> pending = new ArrayDeque<>();
+        private double limit = Math.min(INITIAL_HOST_LIMIT, maxPerHost);
+        private int inFlight = 0;
+        private long blockedUntil = 0L;
+        private boolean wakeupScheduled = false;
+        private long requests = 0L;
+        private long errors = 0L;
+        private long bytes = 0L;
+        private double latencyEwma = -1.0;
+        private double minLatency = Double.MAX_VALUE;
+        private long lastDecrease = 0L;
+        private long activeSince = 0L;
+        private long activeNanos = 0L;
+
+        private HostState(String name) {
+            this.name = name;
+            Metrics.gauge("resdownloader_host_concurrency_limit", () -> read(() -> limit), "host", name);
+            Metrics.gauge("resdownloader_host_in_flight", () -> read(() -> inFlight), "host", name);
+            Metrics.gauge("resdownloader_host_throughput_bytes_per_second", () -> read(this::getThroughput),
+                    "host", name);
+        }
+
+        private void started() {
+            if (inFlight == 0)
+                activeSince = System.nanoTime();
+            inFlight++;
+        }
+
+        private void finished(DownloadResult result, long elapsedNanos) {
+            inFlight--;
+            long now = System.nanoTime();
+            if (inFlight == 0)
+                activeNanos += now - activeSince;
+            requests++;
+            bytes += result.bytes;
+
+            double latency = result.responseMillis > 0
+                    ? result.responseMillis
+                    : TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+            if (result.isOverloaded()) {
+                errors++;
+                // one decrease per round trip, otherwise a burst of failures drops limit to 1 at once
+                if (now - lastDecrease > TimeUnit.MILLISECONDS.toNanos((long) Math.max(latencyEwma, 0.0))) {
+                    limit = Math.max(1.0, limit / 2.0);
+                    lastDecrease = now;
+                }
+                if (result.retryAfterMillis > 0) {
+                    long retryAfter = Math.min(result.retryAfterMillis, MAX_RETRY_AFTER_MILLIS);
+                    blockedUntil = Math.max(blockedUntil, System.currentTimeMillis() + retryAfter);
+                    log.warn("Host {} asked to retry after {} ms", name, retryAfter);
+                }
+                return;
+            }
+            // circuit breaker skips host without request
+            if (!result.hasResponse())
+                return;
+
+            minLatency = latency < minLatency
+                    ? latency
+                    : minLatency + MIN_LATENCY_DECAY * (latency - minLatency);
+            latencyEwma = latencyEwma < 0.0
+                    ? latency
+                    : latencyEwma + LATENCY_EWMA_WEIGHT * (latency - latencyEwma);
+            if (latencyEwma <= minLatency * LATENCY_TOLERANCE + 1.0) {
+                limit = Math.min(maxPerHost, limit + 1.0 / limit);
+            }
+        }
+
+        /**
+         * @return bytes per second while host had requests in flight
+         */
+        private double getThroughput() {
+            long active = activeNanos + (inFlight > 0 ? System.nanoTime() - activeSince : 0L);
+            double seconds = active / 1_000_000_000.0;
+            return seconds > 0.0 ? bytes / seconds : 0.0;
+        }
+
+        private String describe() {
+            return String.format("Host %s: limit %.1f, in flight %d, %d requests, %d errors, %d bytes, %.1f KB/s",
+                    name, limit, inFlight, requests, errors, bytes, getThroughput() / 1024.0);
+        }
+    }
+}
@@ -1,43 +1,136 @@
 package downloader;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
 import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 class ErrorImagesGenerator {
 
-    void generateImageFromText(String text, Path outputFile) throws IOException {
-
-        BufferedImage bufImage = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
-        Graphics2D graph = bufImage.createGraphics();
-        Font genFont = new Font("Default", Font.PLAIN, 24);
-        graph.setFont(genFont);
-        FontMetrics genFontMetric = graph.getFontMetrics();
-        int imageWidth = genFontMetric.stringWidth(text);
-        int imageHeight = genFontMetric.getHeight();
-        graph.dispose();
-
-        bufImage = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_RGB);
-        graph = bufImage.createGraphics();
-
-        graph.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-        graph.setRenderingHint(RenderingHints.KEY_COLOR_RENDERING, RenderingHints.VALUE_COLOR_RENDER_QUALITY);
-        graph.setRenderingHint(RenderingHints.KEY_DITHERING, RenderingHints.VALUE_DITHER_ENABLE);
-        graph.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
-        graph.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-        graph.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-        graph.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
-        graph.setFont(genFont);
-
-        genFontMetric = graph.getFontMetrics();
-        graph.setColor(Color.WHITE);
-        graph.fillRect(0, 0, bufImage.getWidth(), bufImage.getHeight());
-        graph.setColor(Color.RED);
-        graph.drawString(text, 0, genFontMetric.getAscent());
-        graph.dispose();
-
-        ImageIO.write(bufImage, "png", outputFile.toFile());
+    static final String DATA_URI_PREFIX = "data:image/svg+xml;base64,";
+    private static final String BUNDLED_IMAGES_PATH = "/error-images/";
+    private static final Logger log = LogManager.getLogger(ErrorImagesGenerator.class.getSimpleName());
+
+    // shared by all resources directories of the process
+    private static final ConcurrentMap<Integer, byte[]> images = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<Integer, Path> writtenImages = new ConcurrentHashMap<>();
+
+    static String getFileName(int code) {
+        return "err" + (code > 0 ? code : "NO_RESP") + ".png";
+    }
+
+    static String getText(int code) {
+        return "ERR " + (code > 0 ? code : "NO RESP");
+    }
+
+    /**
+     * Writes placeholder image for error code. Hard link to the same image written
+     * into another directory is used when possible, bundled or rendered bytes otherwise.
+     */
+    void writeImage(int code, @NotNull Path outputFile) throws IOException {
+        Path written = writtenImages.get(code);
+        if (written != null && !written.equals(outputFile) && Files.exists(written)) {
+            try {
+                Files.deleteIfExists(outputFile);
+                Files.createLink(outputFile, written);
+                return;
+            } catch (IOException | UnsupportedOperationException | SecurityException err) {
+                log.debug("Unable to link {} to {}: {}", outputFile, written, err.getMessage());
+            }
+        }
+        Files.write(outputFile, getImage(code));
+        writtenImages.putIfAbsent(code, outputFile);
+    }
+
+    @NotNull
+    String getDataUri(int code) {
+        String svg = "<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"" + (getText(code).length() * 15)
+                + "\" height=\"32\"><rect width=\"100%\" height=\"100%\" fill=\"white\"/>"
+                + "<text x=\"0\" y=\"24\" font-family=\"sans-serif\" font-size=\"24\" fill=\"red\">"
+                + getText(code) + "</text></svg>";
+        return DATA_URI_PREFIX + Base64.getEncoder().encodeToString(svg.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @NotNull
+    byte[] getImage(int code) throws IOException {
+        byte[] image = images.get(code);
+        if (image == null) {
+            image = loadBundled(code);
+            if (image == null) {
+                log.info("No bundled image for {}, rendering", getText(code));
+                image = TextRenderer.render(getText(code));
+            }
+            byte[] previous = images.putIfAbsent(code, image);
+            if (previous != null)
+                image = previous;
+        }
+        return image;
+    }
+
+    @Nullable
+    private byte[] loadBundled(int code) throws IOException {
+        try (InputStream in = ErrorImagesGenerator.class.getResourceAsStream(BUNDLED_IMAGES_PATH + getFileName(code))) {
+            if (in == null)
+                return null;
+            ByteArrayOutputStream out = new ByteArrayOutputStream(2048);
+            byte[] buffer = new byte[4096];
+            int readied;
+            while ((readied = in.read(buffer)) > 0) {
+                out.write(buffer, 0, readied);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    // AWT is loaded only for codes without bundled image
+    private static final class TextRenderer {
+
+        private static byte[] render(String text) throws IOException {
+
+            BufferedImage bufImage = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+            Graphics2D graph = bufImage.createGraphics();
+            Font genFont = new Font("Default", Font.PLAIN, 24);
+            graph.setFont(genFont);
+            FontMetrics genFontMetric = graph.getFontMetrics();
+            int imageWidth = genFontMetric.stringWidth(text);
+            int imageHeight = genFontMetric.getHeight();
+            graph.dispose();
+
+            bufImage = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_RGB);
+            graph = bufImage.createGraphics();
+
+            graph.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            graph.setRenderingHint(RenderingHints.KEY_COLOR_RENDERING, RenderingHints.VALUE_COLOR_RENDER_QUALITY);
+            graph.setRenderingHint(RenderingHints.KEY_DITHERING, RenderingHints.VALUE_DITHER_ENABLE);
+            graph.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+            graph.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graph.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graph.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+            graph.setFont(genFont);
+
+            genFontMetric = graph.getFontMetrics();
+            graph.setColor(Color.WHITE);
+            graph.fillRect(0, 0, bufImage.getWidth(), bufImage.getHeight());
+            graph.setColor(Color.RED);
+            graph.drawString(text, 0, genFontMetric.getAscent());
+            graph.dispose();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(bufImage, "png", out);
+            return out.toByteArray();
+        }
     }
 }
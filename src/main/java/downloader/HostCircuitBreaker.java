@@ -0,0 +1,147 @@
+package downloader;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class HostCircuitBreaker {
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final Logger log = LogManager.getLogger(HostCircuitBreaker.class.getSimpleName());
+
+    private final int failuresThreshold;
+    private final long coolDownMillis;
+    private final long ttlMillis;
+    private final Map<String, HostState> hosts = new HashMap<>();
+
+    public HostCircuitBreaker(final int failuresThreshold, final long coolDownMillis, final long ttlMillis) {
+        this.failuresThreshold = failuresThreshold;
+        this.coolDownMillis = coolDownMillis;
+        this.ttlMillis = ttlMillis;
+    }
+
+    public synchronized boolean allowRequest(@NotNull final String host) {
+        HostState state = hosts.get(host);
+        if (state == null)
+            return true;
+        switch (state.state) {
+            case OPEN:
+                if (System.currentTimeMillis() - state.changedAt < coolDownMillis)
+                    return false;
+                log.info("Probing host {} after cool-down", host);
+                setState(host, state, State.HALF_OPEN);
+                state.probeInFlight = true;
+                return true;
+            case HALF_OPEN:
+                if (state.probeInFlight)
+                    return false;
+                state.probeInFlight = true;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    public synchronized void onResult(@NotNull final String host, @NotNull final DownloadResult result) {
+        // no request was made
+        if (result.code == DownloadResult.CIRCUIT_OPEN)
+            return;
+        HostState state = hosts.get(host);
+        if (result.hasResponse()) {
+            if (state != null && (state.state != State.CLOSED || state.failures > 0)) {
+                state.failures = 0;
+                state.probeInFlight = false;
+                if (state.state != State.CLOSED) {
+                    log.info("Host {} responds again, circuit closed", host);
+                    setState(host, state, State.CLOSED);
+                }
+            }
+            return;
+        }
+        // no response, deadline or speed abort
+        if (state == null) {
+            state = new HostState();
+            hosts.put(host, state);
+        }
+        state.failures++;
+        state.changedAt = System.currentTimeMillis();
+        state.probeInFlight = false;
+        if (state.state == State.HALF_OPEN
+                || (state.state == State.CLOSED && state.failures >= failuresThreshold)) {
+            log.warn("Host {} does not respond ({} failures in a row), circuit opened", host, state.failures);
+            setState(host, state, State.OPEN);
+        }
+    }
+
+    public synchronized void load(@NotNull final SqliteHostBreakers table) {
+        for (Snapshot snapshot : table.loadNotOlderThan(System.currentTimeMillis() - ttlMillis)) {
+            HostState state = hosts.get(snapshot.host);
+            if (state != null && state.changedAt >= snapshot.changedAt)
+                continue;
+            if (state == null) {
+                state = new HostState();
+                hosts.put(snapshot.host, state);
+            }
+            state.state = snapshot.state == State.HALF_OPEN ? State.OPEN : snapshot.state;
+            // failures of closed circuit count in a row within one run only
+            state.failures = state.state == State.CLOSED ? 0 : snapshot.failures;
+            state.changedAt = snapshot.changedAt;
+            state.probeInFlight = false;
+        }
+    }
+
+    /**
+     * Saves circuits of hosts whose state changed during the run. Breaker is shared by all documents of the run,
+     * each document saves hosts it requested into database of its own resources directory. Closed circuit is saved
+     * without failures, only to replace open one saved before.
+     */
+    public synchronized void save(@NotNull final SqliteHostBreakers table, @NotNull final Collection<String> usedHosts) {
+        List<Snapshot> snapshots = new ArrayList<>();
+        for (String host : usedHosts) {
+            HostState state = hosts.get(host);
+            if (state != null && state.transitioned)
+                snapshots.add(new Snapshot(host, state.state, state.state == State.CLOSED ? 0 : state.failures,
+                        state.changedAt));
+        }
+        table.putAll(snapshots);
+    }
+
+    private void setState(String host, HostState state, State newState) {
+        state.state = newState;
+        state.changedAt = System.currentTimeMillis();
+        state.transitioned = true;
+    }
+
+    private static class HostState {
+        private State state = State.CLOSED;
+        private int failures = 0;
+        private long changedAt = System.currentTimeMillis();
+        private boolean probeInFlight = false;
+        // state changed during the run, loaded one is already saved
+        private boolean transitioned = false;
+    }
+
+    static class Snapshot {
+
+        final String host;
+        final State state;
+        final int failures;
+        final long changedAt;
+
+        Snapshot(String host, State state, int failures, long changedAt) {
+            this.host = host;
+            this.state = state;
+            this.failures = failures;
+            this.changedAt = changedAt;
+        }
+    }
+}
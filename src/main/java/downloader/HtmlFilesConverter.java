@@ -0,0 +1,176 @@
+package downloader;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Elements;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Converts html files with clients, pools and state databases shared by all files of the run or all jobs of daemon.
+ */
+class HtmlFilesConverter {
+
+    private static final Logger log = LogManager.getLogger(HtmlFilesConverter.class);
+
+    private final ParsedCmdline parsedCmdline;
+    private final SqliteHolder sqliteHolder;
+    private final ResourcePacks resourcePacks;
+    private final ResourceDirLocks dirLocks;
+    private final ContentCache contentCache;
+    private final ImageOptimizer imageOptimizer;
+    private final DownloadClients clients;
+    private final DownloadScheduler scheduler;
+    private final RetryPolicy retryPolicy;
+    private final HostCircuitBreaker circuitBreaker;
+    private final PageVersions pageVersions;
+
+    HtmlFilesConverter(@NotNull final ParsedCmdline parsedCmdline,
+                       @NotNull final SqliteHolder sqliteHolder,
+                       @NotNull final ResourcePacks resourcePacks,
+                       @NotNull final ResourceDirLocks dirLocks,
+                       @Nullable final ContentCache contentCache,
+                       @Nullable final ImageOptimizer imageOptimizer,
+                       @NotNull final DownloadClients clients,
+                       @NotNull final DownloadScheduler scheduler,
+                       @NotNull final RetryPolicy retryPolicy,
+                       @NotNull final HostCircuitBreaker circuitBreaker) {
+        this.parsedCmdline = parsedCmdline;
+        this.sqliteHolder = sqliteHolder;
+        this.resourcePacks = resourcePacks;
+        this.dirLocks = dirLocks;
+        this.contentCache = contentCache;
+        this.imageOptimizer = imageOptimizer;
+        this.clients = clients;
+        this.scheduler = scheduler;
+        this.retryPolicy = retryPolicy;
+        this.circuitBreaker = circuitBreaker;
+        this.pageVersions = new PageVersions(sqliteHolder);
+    }
+
+    /**
+     * @return count of saved files
+     */
+    long convert(@NotNull final List<Path> inputFiles, @NotNull final ProgressReporter progress) {
+        final boolean reverseMode = parsedCmdline.isReverseMode();
+        final InputHtmlFilesReader inputHtmlFilesReader = new InputHtmlFilesReader(reverseMode
+                ? inputFiles
+                : selectChanged(inputFiles, progress));
+        final long totalFilesCount = inputHtmlFilesReader.size();
+        long filesCounter = 0L;
+        long savedCounter = 0L;
+
+        for (Document document : inputHtmlFilesReader) {
+            filesCounter++;
+            log.info("Processing {}", document.location());
+            Document.OutputSettings os = document.outputSettings();
+            os.prettyPrint(false);
+
+            try (ResourceProcessor resourceProcessor = ResourceProcessor.forDocument(sqliteHolder,
+                    resourcePacks,
+                    dirLocks,
+                    contentCache,
+                    imageOptimizer,
+                    clients,
+                    document,
+                    parsedCmdline,
+                    scheduler,
+                    retryPolicy,
+                    circuitBreaker)) {
+
+                final Elements elements = new Elements();
+                elements.addAll(document.getElementsByTag("img"));
+                elements.addAll(document.getElementsByTag("script"));
+                elements.addAll(document.getElementsByTag("link"));
+                elements.addAll(document.getElementsByTag("style"));
+                final long totalUrlsCount = elements.size();
+                long urlsCounter = 0L;
+                progress.startFile(totalUrlsCount);
+
+                // collected before elements are changed to local urls
+                final Set<String> urls = reverseMode ? Collections.emptySet() : StartHere.collectUrls(elements);
+                if (!reverseMode) {
+                    resourceProcessor.prefetch(urls);
+                }
+
+                List<Element> deferredElements = new ArrayList<>();
+                // styles are processed again from original css, local paths of their other urls look like urls too
+                Map<Element, String> deferredStyles = new IdentityHashMap<>();
+                for (Element element : elements) {
+                    urlsCounter++;
+                    log.debug("File {} of {}: processing link {} of {}", filesCounter, totalFilesCount, urlsCounter, totalUrlsCount);
+                    String css = element.tagName().equals("style") ? element.html() : null;
+                    if (StartHere.processElement(resourceProcessor, element, reverseMode)) {
+                        deferredElements.add(element);
+                        if (css != null)
+                            deferredStyles.put(element, css);
+                    } else {
+                        progress.linkDone();
+                    }
+                }
+
+                if (!deferredElements.isEmpty()) {
+                    log.info("Waiting for {} deferred links", deferredElements.size());
+                    resourceProcessor.processDeferred();
+                    for (Element element : deferredElements) {
+                        String css = deferredStyles.get(element);
+                        if (css != null)
+                            element.html(css);
+                        StartHere.processElement(resourceProcessor, element, reverseMode);
+                        progress.linkDone();
+                    }
+                }
+
+                Path newFileName = reverseMode
+                        ? NamesUtils.getOrigPath(Paths.get(document.location()))
+                        : NamesUtils.getDownloadPath(Paths.get(document.location()));
+
+                log.info("Save modified html file to {}", newFileName);
+                try (BufferedWriter bufferedWriter = Files.newBufferedWriter(newFileName, document.charset())) {
+                    bufferedWriter.append(document.outerHtml());
+                    log.info("Success");
+                    Metrics.counter("resdownloader_documents_total").increment();
+                    savedCounter++;
+                    if (!reverseMode)
+                        pageVersions.converted(Paths.get(document.location()), urls);
+                } catch (IOException err) {
+                    log.error("Unable to save output file to {}: {}", newFileName, err.getMessage());
+                }
+                progress.fileDone();
+            }
+        }
+        pageVersions.clear();
+        return savedCounter;
+    }
+
+    /**
+     * Skips pages converted before and not changed since then, their resources are up to date.
+     */
+    private List<Path> selectChanged(List<Path> inputFiles, ProgressReporter progress) {
+        List<Path> changed = new ArrayList<>(inputFiles.size());
+        for (Path inputFile : inputFiles) {
+            if (pageVersions.isChanged(inputFile)) {
+                changed.add(inputFile);
+            } else {
+                log.info("Page {} is not changed since conversion, skipping", inputFile);
+                progress.startFile(0L);
+                progress.fileDone();
+            }
+        }
+        return changed;
+    }
+}
@@ -1,127 +1,770 @@
 package downloader;
 
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.http.Header;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpConnection;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
 import org.apache.http.client.CookieStore;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.DeflateInputStream;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.cookie.Cookie;
 import org.apache.http.cookie.CookieSpecProvider;
 import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.ssl.SSLContextBuilder;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.brotli.dec.BrotliInputStream;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URI;
+import java.net.UnknownHostException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPInputStream;
 
 public class HttpCookieClient
         implements AutoCloseable, Closeable {
 
+    private static final String IDENTITY_ENCODING = "identity";
+    private static final Set<String> SUPPORTED_ENCODINGS = new HashSet<>(Arrays.asList(
+            IDENTITY_ENCODING, "gzip", "x-gzip", "deflate", "br"));
+    static final int PREWARM_THREADS = 8;
+    // pre-warmed connection waits for first request at most this long, servers usually drop idle ones anyway
+    private static final long PREWARM_KEEP_ALIVE = 30_000L;
     private static final Logger log = LogManager.getLogger(HttpCookieClient.class.getSimpleName());
-    private final HttpClientContext clientContext;
+    private final Registry<CookieSpecProvider> cookieSpecRegistry;
+    private final RequestConfig requestConfig;
+    private final CookieStore cookieStore;
+    private final PoolingHttpClientConnectionManager connectionManager;
     private final CloseableHttpClient httpClient;
+    private final PartialDownloads partialDownloads;
+    private final Map<String, Cookie> savedCookies = new HashMap<>();
+    private final Map<HttpRoute, Future<?>> prewarming = new ConcurrentHashMap<>();
+    private final TransferLimits limits;
+    private final int connectTimeout;
+    private ExecutorService segmentsExecutor = null;
+    private ExecutorService prewarmExecutor = null;
+    private ScheduledExecutorService watchdog = null;
 
-    HttpCookieClient(int timeout, boolean ignoreSsl) {
+    /**
+     * @param connectionManager pool shared by clients of all documents, it is not closed with client
+     */
+    HttpCookieClient(int timeout,
+                     @NotNull TransferLimits limits,
+                     @NotNull PoolingHttpClientConnectionManager connectionManager,
+                     @Nullable PartialDownloads partialDownloads) {
 
-        clientContext = HttpClientContext.create();
         timeout *= 1000;
+        this.limits = limits;
+        this.connectTimeout = limits.connectTimeoutMillis;
+        this.connectionManager = connectionManager;
+        this.partialDownloads = partialDownloads;
 
-        Registry<CookieSpecProvider> registry = RegistryBuilder.<CookieSpecProvider>create()
+        cookieSpecRegistry = RegistryBuilder.<CookieSpecProvider>create()
                 .register("easy", new EasyCookieSpecProvider()).build();
-        clientContext.setCookieSpecRegistry(registry);
 
-        RequestConfig requestConfig = RequestConfig.custom()
+        requestConfig = RequestConfig.custom()
                 .setCookieSpec("easy")
-                .setConnectTimeout(timeout)
+                .setConnectTimeout(limits.connectTimeoutMillis)
                 .setConnectionRequestTimeout(timeout)
-                .setSocketTimeout(timeout)
+                // time to first byte, body reads switch to idle timeout, see startBody
+                .setSocketTimeout(limits.ttfbTimeoutMillis)
                 .build();
-        clientContext.setRequestConfig(requestConfig);
 
-        CookieStore cookieStore = new BasicCookieStore();
-        clientContext.setCookieStore(cookieStore);
+        cookieStore = new BasicCookieStore();
+
+        httpClient = HttpClients.custom()
+                .setDefaultHeaders(buildDefaultHeaders())
+                .setConnectionManager(connectionManager)
+                .setConnectionManagerShared(true)
+                .disableContentCompression()
+                .build();
+    }
+
+    /**
+     * Creates pool of connections for {@link HttpCookieClient}, own one instead of default to open connections
+     * ahead of requests, see prewarm.
+     *
+     * @param maxPerRoute connections per host, including segments of resumed downloads
+     * @param maxTotal    connections of all hosts, enough for every download thread and pre-warming
+     */
+    @NotNull
+    static PoolingHttpClientConnectionManager createConnectionManager(boolean ignoreSsl,
+                                                                      int maxPerRoute,
+                                                                      int maxTotal) {
+        Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", new LazySslSocketFactory(ignoreSsl))
+                .build();
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+                socketFactoryRegistry, null, null, DnsCache.getInstance(), -1, TimeUnit.MILLISECONDS);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        connectionManager.setMaxTotal(Math.max(maxTotal, maxPerRoute));
+        connectionManager.setValidateAfterInactivity(2000);
+        return connectionManager;
+    }
+
+    @NotNull
+    private static SSLConnectionSocketFactory createSslSocketFactory(boolean ignoreSsl) {
+        if (!ignoreSsl)
+            return SSLConnectionSocketFactory.getSocketFactory();
+        try {
+            SSLContext sslContext = SSLContextBuilder
+                    .create()
+                    .loadTrustMaterial(new EasySslSpec())
+                    .build();
+            HostnameVerifier allowAllHosts = new NoopHostnameVerifier();
+            return new SSLConnectionSocketFactory(sslContext, allowAllHosts);
+        } catch (NoSuchAlgorithmException | KeyStoreException | KeyManagementException err) {
+            throw new RuntimeException("unable to create api client", err);
+        }
+    }
+
+    /**
+     * Resolves hosts of urls and opens pooled connections to them in background, including TLS handshake,
+     * so first requests to each host do not pay DNS, TCP and TLS serially. Hosts are warmed once per client.
+     * Connections are opened only to as many hosts as fit into free capacity of the pool: over it, every new
+     * connection closes an idle one of another host, warmed ones included. Other hosts are only resolved.
+     */
+    void prewarm(@NotNull final Collection<URI> urls) {
+        PoolStats stats = connectionManager.getTotalStats();
+        int free = stats.getMax() - stats.getLeased() - stats.getAvailable() - stats.getPending();
+        for (Future<?> future : prewarming.values()) {
+            if (!future.isDone())
+                free--;
+        }
+        for (URI url : urls) {
+            HttpRoute route = toRoute(url);
+            if (route == null || prewarming.containsKey(route))
+                continue;
+            if (free <= 0) {
+                Metrics.counter("resdownloader_prewarm_total", "result", "resolved").increment();
+                prewarming.put(route, getPrewarmExecutor().submit(() -> resolve(route)));
+                continue;
+            }
+            prewarming.put(route, getPrewarmExecutor().submit(() -> warm(route)));
+            free--;
+        }
+    }
+
+    /**
+     * Waits for connection to host of url being pre-warmed, so the first request takes it instead of opening another.
+     */
+    private void awaitPrewarm(@NotNull final URI url) {
+        HttpRoute route = toRoute(url);
+        Future<?> future = route != null ? prewarming.get(route) : null;
+        if (future == null || future.isDone())
+            return;
+        try {
+            future.get(connectTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException ignore) {
+        }
+    }
+
+    @Nullable
+    private static HttpRoute toRoute(@NotNull final URI url) {
+        String scheme = url.getScheme() != null ? url.getScheme().toLowerCase(Locale.ROOT) : null;
+        if (url.getHost() == null || !("http".equals(scheme) || "https".equals(scheme)))
+            return null;
+        boolean secure = "https".equals(scheme);
+        int port = url.getPort() > 0 ? url.getPort() : (secure ? 443 : 80);
+        // same route as DefaultRoutePlanner builds for request, so pooled connection is reused
+        return new HttpRoute(new HttpHost(url.getHost(), port, scheme), null, secure);
+    }
+
+    private void resolve(@NotNull final HttpRoute route) {
+        try {
+            DnsCache.getInstance().resolve(route.getTargetHost().getHostName());
+        } catch (UnknownHostException err) {
+            log.debug("Unable to resolve {}: {}", route.getTargetHost(), err.getMessage());
+        }
+    }
 
-        if (ignoreSsl) {
+    private void warm(@NotNull final HttpRoute route) {
+        long started = System.nanoTime();
+        HttpClientConnection connection;
+        try {
+            connection = connectionManager.requestConnection(route, null).get(connectTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException | ConnectionPoolTimeoutException err) {
+            log.debug("Unable to pre-warm connection to {}: {}", route.getTargetHost(), err.getMessage());
+            Metrics.counter("resdownloader_prewarm_total", "result", "error").increment();
+            return;
+        }
+        boolean connected = false;
+        try {
+            if (connection.isOpen()) {
+                Metrics.counter("resdownloader_prewarm_total", "result", "reused").increment();
+                return;
+            }
+            HttpClientContext context = createContext();
+            connectionManager.connect(connection, route, connectTimeout, context);
+            connectionManager.routeComplete(connection, route, context);
+            connected = true;
+            Metrics.counter("resdownloader_prewarm_total", "result", "connected").increment();
+            Metrics.histogram("resdownloader_prewarm_seconds").observeSince(started);
+            log.debug("Pre-warmed connection to {}", route.getTargetHost());
+        } catch (IOException err) {
+            log.debug("Unable to pre-warm connection to {}: {}", route.getTargetHost(), err.getMessage());
+            Metrics.counter("resdownloader_prewarm_total", "result", "error").increment();
             try {
-                SSLContext sslContext = SSLContextBuilder
-                        .create()
-                        .loadTrustMaterial(new EasySslSpec())
-                        .build();
-                HostnameVerifier allowAllHosts = new NoopHostnameVerifier();
-                SSLConnectionSocketFactory connectionFactory = new SSLConnectionSocketFactory(sslContext, allowAllHosts);
-                httpClient = HttpClients.custom()
-                        .setDefaultHeaders(buildDefaultHeaders())
-                        .setSSLSocketFactory(connectionFactory)
-                        .build();
-            } catch (NoSuchAlgorithmException | KeyStoreException | KeyManagementException err) {
-                throw new RuntimeException("unable to create api client", err);
+                connection.shutdown();
+            } catch (IOException ignore) {
             }
-        } else {
-            httpClient = HttpClients.custom()
-                    .setDefaultHeaders(buildDefaultHeaders())
-                    .build();
+        } finally {
+            connectionManager.releaseConnection(connection, null,
+                    connected ? PREWARM_KEEP_ALIVE : 0L, TimeUnit.MILLISECONDS);
         }
     }
 
-    int download(URI inputUrl, Path tempFile, Path outputFile) {
+    DownloadResult download(URI inputUrl, Path tempFile, Path outputFile) {
+        return download(inputUrl, null, tempFile, outputFile, null);
+    }
+
+    /**
+     * Downloads resource from known final location of its redirect chain, if it is given and still works,
+     * otherwise from the url itself. Both attempts share deadline of the resource.
+     *
+     * @param stored record of unchanged file at output path, its validators make the request conditional
+     *               and "not modified" response is returned as {@link DownloadResult#existing}
+     */
+    DownloadResult download(URI inputUrl,
+                            @Nullable URI location,
+                            Path tempFile,
+                            Path outputFile,
+                            @Nullable SqliteLocalFiles.Entry stored) {
+        TransferLimits.Transfer transfer = limits.start(this::getWatchdog);
+        try {
+            if (location != null) {
+                DownloadResult result = downloadFrom(location, tempFile, outputFile, stored, transfer);
+                if (result.isOk())
+                    return result.withLocation(result.location != null ? result.location : location, result.redirects);
+                if (transfer.isAborted())
+                    return result;
+                log.debug("Known location {} of {} does not work, following redirects again", location, inputUrl);
+                Metrics.counter("resdownloader_redirect_cache_lookups_total", "result", "stale").increment();
+            }
+            return downloadFrom(inputUrl, tempFile, outputFile, stored, transfer);
+        } finally {
+            transfer.finish();
+        }
+    }
+
+    private DownloadResult downloadFrom(URI inputUrl,
+                                        Path tempFile,
+                                        Path outputFile,
+                                        @Nullable SqliteLocalFiles.Entry stored,
+                                        TransferLimits.Transfer transfer) {
+        awaitPrewarm(inputUrl);
+        PartialDownloads.Partial partial = partialDownloads != null ? partialDownloads.forUrl(inputUrl) : null;
+        if (partial != null && partial.isStarted()) {
+            log.debug("Resuming {}", inputUrl);
+            DownloadResult resumed = resume(inputUrl, partial, tempFile, 0L, transfer);
+            if (resumed != null)
+                return resumed.withValidators(partial.getEtag(), partial.getLastModified());
+        }
+        HttpClientContext context = createContext();
+        DownloadResult result = download(inputUrl, tempFile, outputFile, stored, partial, context, transfer);
+        List<URI> redirects = context.getRedirectLocations();
+        if (redirects != null && !redirects.isEmpty()) {
+            Metrics.counter("resdownloader_redirected_total").increment();
+            Metrics.counter("resdownloader_redirect_hops_total").add(redirects.size());
+            return result.withLocation(redirects.get(redirects.size() - 1), redirects.size());
+        }
+        return result;
+    }
+
+    private DownloadResult download(URI inputUrl,
+                                    Path tempFile,
+                                    Path outputFile,
+                                    @Nullable SqliteLocalFiles.Entry stored,
+                                    @Nullable PartialDownloads.Partial partial,
+                                    HttpClientContext context,
+                                    TransferLimits.Transfer transfer) {
         HttpGet getRequest = new HttpGet(inputUrl);
-        log.info("Querying " + inputUrl);
-        try (CloseableHttpResponse httpResponse = httpClient.execute(getRequest, clientContext)) {
+        transfer.register(getRequest);
+        boolean conditional = stored != null && stored.hasValidator();
+        if (conditional) {
+            if (stored.etag != null)
+                getRequest.setHeader("If-None-Match", stored.etag);
+            if (stored.lastModified != null)
+                getRequest.setHeader("If-Modified-Since", stored.lastModified);
+        }
+        log.debug("Querying {}", inputUrl);
+        long started = System.currentTimeMillis();
+        try (CloseableHttpResponse httpResponse = httpClient.execute(getRequest, context)) {
+            long responseMillis = System.currentTimeMillis() - started;
             int code = httpResponse.getStatusLine().getStatusCode();
+            if (code == 304 && conditional) {
+                log.debug("Not modified, file already exists");
+                Metrics.counter("resdownloader_conditional_requests_total", "result", "not_modified").increment();
+                return DownloadResult.existing(0L, responseMillis);
+            }
             if (code == 200) {
-                log.info("HTTP OK");
+                log.debug("HTTP OK");
+                if (conditional)
+                    Metrics.counter("resdownloader_conditional_requests_total", "result", "modified").increment();
                 HttpEntity httpEntity = httpResponse.getEntity();
                 if (httpEntity == null)
                     throw new IOException("Empty response, url: " + inputUrl);
-                if (Files.exists(outputFile)) {
-                    long fileSize = Files.size(outputFile);
-                    long contentLength = httpEntity.getContentLength();
-                    if (fileSize == contentLength) {
-                        log.info("File already exists, size match");
-                        Files.copy(outputFile, tempFile, StandardCopyOption.REPLACE_EXISTING);
-                        return code;
-                    }
+                long contentLength = httpEntity.getContentLength();
+                String contentEncoding = getContentEncoding(httpResponse);
+                String etag = getHeader(httpResponse, "ETag");
+                String lastModified = getHeader(httpResponse, "Last-Modified");
+                // file stored before validators were kept, or stored from response without them
+                if (!conditional && contentEncoding == null && Files.exists(outputFile)
+                        && Files.size(outputFile) == contentLength) {
+                    log.debug("File already exists, size match");
+                    return DownloadResult.existing(0L, responseMillis).withValidators(etag, lastModified);
                 }
-                log.info("Writing to file");
-                try (OutputStream bufOut = Files.newOutputStream(tempFile)) {
-                    httpEntity.writeTo(bufOut);
+                if (partial != null
+                        && contentEncoding == null
+                        && partialDownloads.isResumable(contentLength)
+                        && "bytes".equalsIgnoreCase(getHeader(httpResponse, "Accept-Ranges"))
+                        && PartialDownloads.Partial.hasValidator(etag, lastModified)) {
+                    int segments = partialDownloads.getSegments(contentLength);
+                    partial.start(etag, lastModified, contentLength, segments);
+                    if (segments > 1) {
+                        log.debug("Downloading {} in {} segments", inputUrl, segments);
+                        getRequest.abort();
+                        DownloadResult result = resume(inputUrl, partial, tempFile, responseMillis, transfer);
+                        return result != null
+                                ? result.withValidators(etag, lastModified)
+                                : download(inputUrl, tempFile, outputFile, null, null, createContext(), transfer);
+                    }
+                    log.debug("Writing to partial file");
+                    startBody(context);
+                    long written = appendEntity(httpEntity, partial.getSegmentFile(0), contentLength, transfer);
+                    partial.mergeInto(tempFile);
+                    log.debug("Wrote OK");
+                    return new DownloadResult(code, written, responseMillis, 0L).withValidators(etag, lastModified);
                 }
-                log.info("Wrote OK");
-                return code;
+                log.debug("Writing to file");
+                startBody(context);
+                long transferred = writeDecoded(httpEntity, contentEncoding, tempFile, transfer);
+                log.debug("Wrote OK");
+                return new DownloadResult(code, transferred, responseMillis, 0L).withValidators(etag, lastModified);
             }
             log.warn("Response code is " + code + ": " + httpResponse.getStatusLine().getReasonPhrase());
-            return code;
+            Header retryAfter = httpResponse.getFirstHeader("Retry-After");
+            return new DownloadResult(code, 0L, responseMillis,
+                    DownloadResult.parseRetryAfter(retryAfter != null ? retryAfter.getValue() : null));
+        } catch (UnsupportedCodingException err) {
+            log.warn("Unable to decode {}, unsupported content encoding \"{}\"", inputUrl, err.getMessage());
+            return DownloadResult.unsupportedEncoding(System.currentTimeMillis() - started);
         } catch (IOException err) {
+            if (transfer.isAborted())
+                return aborted(inputUrl, transfer);
             log.warn("Unable to download file: " + err.getMessage());
-            return -1;
+            return DownloadResult.noResponse();
+        } finally {
+            transfer.unregister(getRequest);
         }
     }
 
+    /**
+     * Downloads missing ranges of partial file, segments in parallel.
+     *
+     * @return null if resource was changed on server and partial file is discarded
+     */
+    @Nullable
+    private DownloadResult resume(URI inputUrl,
+                                  PartialDownloads.Partial partial,
+                                  Path tempFile,
+                                  long responseMillis,
+                                  TransferLimits.Transfer transfer) {
+        List<Integer> pending = partial.getPendingSegments();
+        List<DownloadResult> results = new ArrayList<>();
+        if (pending.size() == 1) {
+            results.add(downloadRange(inputUrl, partial, pending.get(0), transfer));
+        } else if (!pending.isEmpty()) {
+            List<Future<DownloadResult>> futures = new ArrayList<>();
+            for (int segment : pending) {
+                futures.add(getSegmentsExecutor().submit(() -> downloadRange(inputUrl, partial, segment, transfer)));
+            }
+            for (Future<DownloadResult> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException err) {
+                    log.warn("Unable to download segment of {}: {}", inputUrl, err.getCause().getMessage());
+                    results.add(DownloadResult.noResponse());
+                } catch (InterruptedException err) {
+                    Thread.currentThread().interrupt();
+                    return DownloadResult.noResponse();
+                }
+            }
+        }
+
+        long bytes = 0L;
+        DownloadResult failure = null;
+        for (DownloadResult result : results) {
+            if (responseMillis <= 0L)
+                responseMillis = result.responseMillis;
+            if (result.code == 206) {
+                bytes += result.bytes;
+            } else if (result.code == 200 || result.code == 416) {
+                log.info("Resource {} was changed on server, downloading again", inputUrl);
+                partial.discard();
+                return null;
+            } else if (failure == null) {
+                failure = result;
+            }
+        }
+        if (failure != null)
+            return new DownloadResult(failure.code, bytes, failure.responseMillis, failure.retryAfterMillis);
+        if (!partial.getPendingSegments().isEmpty()) {
+            // server sent shorter ranges than asked, received bytes are kept for the next try
+            log.warn("Ranges of {} are not complete", inputUrl);
+            return new DownloadResult(DownloadResult.NO_RESPONSE, bytes, responseMillis, 0L);
+        }
+        try {
+            partial.mergeInto(tempFile);
+        } catch (IOException err) {
+            log.warn("Unable to merge partial file of {}: {}", inputUrl, err.getMessage());
+            partial.discard();
+            return DownloadResult.noResponse();
+        }
+        return new DownloadResult(200, bytes, responseMillis, 0L);
+    }
+
+    private DownloadResult downloadRange(URI inputUrl,
+                                         PartialDownloads.Partial partial,
+                                         int segment,
+                                         TransferLimits.Transfer transfer) {
+        long from = partial.getNextByte(segment);
+        long to = partial.getSegmentEnd(segment);
+        HttpGet getRequest = new HttpGet(inputUrl);
+        transfer.register(getRequest);
+        getRequest.setHeader("Range", "bytes=" + from + "-" + to);
+        getRequest.setHeader("If-Range", partial.getValidator());
+        // offsets of ranges are offsets in encoded body
+        getRequest.setHeader("Accept-Encoding", "identity");
+        log.debug("Querying {}, bytes {}-{}", inputUrl, from, to);
+        long started = System.currentTimeMillis();
+        HttpClientContext context = createContext();
+        try (CloseableHttpResponse httpResponse = httpClient.execute(getRequest, context)) {
+            long responseMillis = System.currentTimeMillis() - started;
+            int code = httpResponse.getStatusLine().getStatusCode();
+            if (code == 206) {
+                String contentRange = getHeader(httpResponse, "Content-Range");
+                long end = partial.getRangeEnd(contentRange, from, to);
+                if (end < 0L) {
+                    log.warn("Unexpected range \"{}\" for {}", contentRange, inputUrl);
+                    getRequest.abort();
+                    return new DownloadResult(416, 0L, responseMillis, 0L);
+                }
+                startBody(context);
+                long written = appendEntity(httpResponse.getEntity(), partial.getSegmentFile(segment),
+                        end - from + 1, transfer);
+                return new DownloadResult(code, written, responseMillis, 0L);
+            }
+            if (code == 200) {
+                // If-Range did not match, full body follows
+                getRequest.abort();
+                return new DownloadResult(code, 0L, responseMillis, 0L);
+            }
+            log.warn("Response code is " + code + ": " + httpResponse.getStatusLine().getReasonPhrase());
+            Header retryAfter = httpResponse.getFirstHeader("Retry-After");
+            return new DownloadResult(code, 0L, responseMillis,
+                    DownloadResult.parseRetryAfter(retryAfter != null ? retryAfter.getValue() : null));
+        } catch (IOException err) {
+            if (transfer.isAborted())
+                return aborted(inputUrl, transfer);
+            log.warn("Unable to download range of {}: {}", inputUrl, err.getMessage());
+            return DownloadResult.noResponse();
+        } finally {
+            transfer.unregister(getRequest);
+        }
+    }
+
+    private static DownloadResult aborted(URI inputUrl, TransferLimits.Transfer transfer) {
+        DownloadResult result = transfer.getAbortResult(0L, 0L);
+        log.warn("Download of {} aborted: {}", inputUrl, result.getCodeLabel());
+        return result;
+    }
+
+    /**
+     * Response head came within time to first byte, body reads wait for each chunk at most idle timeout.
+     * Socket timeout of pooled connection is set again by the next request.
+     */
+    private void startBody(HttpClientContext context) {
+        HttpConnection connection = context.getConnection();
+        if (connection != null)
+            connection.setSocketTimeout(limits.idleTimeoutMillis);
+    }
+
+    /**
+     * Appends response body to file as it arrives, so interrupted download keeps received bytes.
+     * Bytes beyond the requested range length are not written.
+     */
+    private long appendEntity(HttpEntity httpEntity,
+                              Path file,
+                              long limit,
+                              TransferLimits.Transfer transfer) throws IOException {
+        long written;
+        try (InputStream in = new BoundedInputStream(httpEntity.getContent(), limit);
+             OutputStream out = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            written = copy(in, out, transfer);
+        }
+        countTransfer(IDENTITY_ENCODING, written, written);
+        return written;
+    }
+
+    /**
+     * Writes decoded response body to file, decompressing on the fly.
+     *
+     * @return count of bytes received from server
+     */
+    private long writeDecoded(HttpEntity httpEntity,
+                              @Nullable String contentEncoding,
+                              Path file,
+                              TransferLimits.Transfer transfer) throws IOException {
+        String encoding = contentEncoding != null ? contentEncoding : IDENTITY_ENCODING;
+        try (CountingInputStream received = new CountingInputStream(httpEntity.getContent());
+             InputStream in = decode(received, encoding);
+             OutputStream out = Files.newOutputStream(file)) {
+            long decoded = copy(in, out, transfer);
+            countTransfer(encoding, received.getByteCount(), decoded);
+            return received.getByteCount();
+        }
+    }
+
+    /**
+     * Undoes content codings in reverse order of listing, as the server applied them in listed order.
+     */
+    private static InputStream decode(InputStream in, String encoding) throws IOException {
+        String[] codings = encoding.split(",");
+        // checked before any stream is built, gzip stream reads its header in constructor
+        for (String coding : codings) {
+            if (!SUPPORTED_ENCODINGS.contains(coding))
+                throw new UnsupportedCodingException(encoding);
+        }
+        for (int i = codings.length - 1; i >= 0; i--) {
+            in = decodeOne(in, codings[i]);
+        }
+        return in;
+    }
+
+    private static InputStream decodeOne(InputStream in, String coding) throws IOException {
+        switch (coding) {
+            case IDENTITY_ENCODING:
+                return in;
+            case "gzip":
+            case "x-gzip":
+                return new GZIPInputStream(in, 65536);
+            case "deflate":
+                // zlib wrapped or raw deflate, both are seen in the wild
+                return new DeflateInputStream(in);
+            case "br":
+                return new BrotliInputStream(in);
+            default:
+                throw new UnsupportedCodingException(coding);
+        }
+    }
+
+    private static long copy(InputStream in, OutputStream out, TransferLimits.Transfer transfer) throws IOException {
+        TransferLimits.SpeedMeter speedMeter = transfer.newSpeedMeter();
+        long written = 0L;
+        byte[] buffer = new byte[65536];
+        int readied;
+        try {
+            while ((readied = in.read(buffer)) > 0) {
+                out.write(buffer, 0, readied);
+                written += readied;
+                speedMeter.onRead(readied);
+            }
+        } catch (SocketTimeoutException err) {
+            // server stalled for idle timeout
+            throw transfer.abort(DownloadResult.TOO_SLOW);
+        }
+        return written;
+    }
+
+    private static void countTransfer(String encoding, long received, long decoded) {
+        Metrics.counter("resdownloader_received_bytes_total", "encoding", encoding).add(received);
+        Metrics.counter("resdownloader_decoded_bytes_total", "encoding", encoding).add(decoded);
+    }
+
+    /**
+     * @return lower-cased content codings of response joined by comma, null for identity
+     */
+    @Nullable
+    private static String getContentEncoding(CloseableHttpResponse httpResponse) {
+        String contentEncoding = getHeader(httpResponse, "Content-Encoding");
+        if (contentEncoding == null)
+            return null;
+        StringBuilder codings = new StringBuilder();
+        for (String coding : contentEncoding.split(",")) {
+            coding = coding.trim().toLowerCase(Locale.ROOT);
+            if (coding.isEmpty() || coding.equals(IDENTITY_ENCODING))
+                continue;
+            if (codings.length() > 0)
+                codings.append(',');
+            codings.append(coding);
+        }
+        return codings.length() > 0 ? codings.toString() : null;
+    }
+
+    void discardPartial(URI inputUrl) {
+        if (partialDownloads != null)
+            partialDownloads.discard(inputUrl);
+    }
+
+    @Nullable
+    private static String getHeader(CloseableHttpResponse httpResponse, String name) {
+        Header header = httpResponse.getFirstHeader(name);
+        return header != null ? header.getValue() : null;
+    }
+
+    /**
+     * Adds cookies saved by previous clients of the same resources directory.
+     */
+    void loadCookies(@NotNull final SqliteCookies table) {
+        for (Cookie cookie : table.loadNotExpired(System.currentTimeMillis())) {
+            cookieStore.addCookie(cookie);
+            savedCookies.put(getCookieKey(cookie), cookie);
+        }
+    }
+
+    /**
+     * Saves cookies changed since load, removes ones dropped by servers.
+     */
+    void saveCookies(@NotNull final SqliteCookies table) {
+        cookieStore.clearExpired(new Date());
+        Map<String, Cookie> current = new HashMap<>();
+        for (Cookie cookie : cookieStore.getCookies()) {
+            if (cookie.getDomain() == null)
+                continue;
+            String key = getCookieKey(cookie);
+            current.put(key, cookie);
+            Cookie saved = savedCookies.get(key);
+            if (saved == null || !Objects.equals(saved.getValue(), cookie.getValue())
+                    || !Objects.equals(saved.getExpiryDate(), cookie.getExpiryDate())
+                    || saved.isSecure() != cookie.isSecure())
+                table.put(cookie);
+        }
+        for (Map.Entry<String, Cookie> entry : savedCookies.entrySet()) {
+            if (!current.containsKey(entry.getKey()))
+                table.remove(entry.getValue());
+        }
+        savedCookies.clear();
+        savedCookies.putAll(current);
+    }
+
+    private static String getCookieKey(final Cookie cookie) {
+        return cookie.getName() + ";" + cookie.getDomain() + ";" + cookie.getPath();
+    }
+
+    private synchronized ExecutorService getSegmentsExecutor() {
+        if (segmentsExecutor == null) {
+            segmentsExecutor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "downloader-segment");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return segmentsExecutor;
+    }
+
+    private synchronized ExecutorService getPrewarmExecutor() {
+        if (prewarmExecutor == null) {
+            prewarmExecutor = Executors.newFixedThreadPool(PREWARM_THREADS, runnable -> {
+                Thread thread = new Thread(runnable, "downloader-prewarm");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return prewarmExecutor;
+    }
+
+    private synchronized ScheduledExecutorService getWatchdog() {
+        if (watchdog == null) {
+            watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "downloader-deadline");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return watchdog;
+    }
+
+    private HttpClientContext createContext() {
+        // context is not thread safe, so each request has own one with shared cookies
+        HttpClientContext clientContext = HttpClientContext.create();
+        clientContext.setCookieSpecRegistry(cookieSpecRegistry);
+        clientContext.setRequestConfig(requestConfig);
+        clientContext.setCookieStore(cookieStore);
+        return clientContext;
+    }
+
     @Override
     public void close() throws IOException {
+        synchronized (this) {
+            if (segmentsExecutor != null)
+                segmentsExecutor.shutdownNow();
+            if (prewarmExecutor != null)
+                prewarmExecutor.shutdownNow();
+            if (watchdog != null)
+                watchdog.shutdownNow();
+        }
         httpClient.close();
     }
 
@@ -132,6 +775,66 @@ public class HttpCookieClient
                 "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/99.0.4844.74 Safari/537.36"));
         headers.add(new BasicHeader("DNT", "1"));
         headers.add(new BasicHeader("Accept-Language","ru,en-US;q=0.9,en;q=0.8,ru-RU;q=0.7"));
+        headers.add(new BasicHeader("Accept-Encoding", "gzip, deflate, br"));
         return headers;
     }
+
+    /**
+     * TLS stack takes noticeable part of startup, so it is loaded with the first https connection only.
+     */
+    private static class LazySslSocketFactory
+            implements LayeredConnectionSocketFactory {
+
+        private final boolean ignoreSsl;
+        private volatile SSLConnectionSocketFactory delegate = null;
+
+        LazySslSocketFactory(boolean ignoreSsl) {
+            this.ignoreSsl = ignoreSsl;
+        }
+
+        private SSLConnectionSocketFactory getDelegate() {
+            SSLConnectionSocketFactory result = delegate;
+            if (result == null) {
+                synchronized (this) {
+                    if (delegate == null)
+                        delegate = createSslSocketFactory(ignoreSsl);
+                    result = delegate;
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public Socket createSocket(HttpContext context) throws IOException {
+            return getDelegate().createSocket(context);
+        }
+
+        @Override
+        public Socket connectSocket(int connectTimeout,
+                                    Socket socket,
+                                    HttpHost host,
+                                    InetSocketAddress remoteAddress,
+                                    InetSocketAddress localAddress,
+                                    HttpContext context) throws IOException {
+            return getDelegate().connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+        }
+
+        @Override
+        public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context)
+                throws IOException {
+            return getDelegate().createLayeredSocket(socket, target, port, context);
+        }
+    }
+
+    /**
+     * Response body is coded in a way it can not be decoded, asking again gives the same body.
+     */
+    private static class UnsupportedCodingException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedCodingException(String coding) {
+            super(coding);
+        }
+    }
 }
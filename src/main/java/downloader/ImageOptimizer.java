@@ -0,0 +1,265 @@
+package downloader;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.w3c.dom.Node;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Post-download stage recompressing stored images above size threshold on own pool, one thread per core.
+ * PNG images are recompressed losslessly with the best deflate level, images of any format ImageIO writes are
+ * downscaled only when max dimension is set. Result is written to temp file and moved over the stored file only
+ * if it is smaller, stored file may be a read-only link of content cache blob and is never written in place.
+ */
+public class ImageOptimizer
+        implements Closeable, AutoCloseable {
+
+    private static final Logger log = LogManager.getLogger(ImageOptimizer.class.getSimpleName());
+    // decoded image takes 4 bytes per pixel, several of them are decoded at once
+    private static final long MAX_PIXELS = 25_000_000L;
+    private static final float JPEG_QUALITY = 0.9f;
+    // colour space chunks of PNG and ICC marker of JPEG, drawing into sRGB image would shift colours
+    private static final Set<String> COLOR_PROFILE_NODES = new HashSet<>(Arrays.asList(
+            "iCCP", "gAMA", "cHRM", "app2ICC"));
+
+    private final long threshold;
+    private final int maxDimension;
+    private final ExecutorService executor;
+
+    ImageOptimizer(final long threshold, final int maxDimension) {
+        this.threshold = threshold;
+        this.maxDimension = maxDimension;
+        this.executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable, "image-optimizer");
+            thread.setDaemon(true);
+            // downloads and parsing are not slowed down by encoding
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        log.info("Optimizing images over {} bytes{}", threshold,
+                maxDimension > 0 ? ", downscaling to " + maxDimension + " pixels" : "");
+    }
+
+    boolean isCandidate(final long size) {
+        return size > threshold;
+    }
+
+    /**
+     * Starts optimization of stored file, tempFile is deleted or moved over it when done.
+     *
+     * @return result is null if file is kept as is
+     */
+    @NotNull
+    Future<Result> submit(@NotNull final Path file, @NotNull final Path tempFile) {
+        return executor.submit(() -> {
+            long started = System.nanoTime();
+            try {
+                Result result = optimize(file, tempFile);
+                if (result != null) {
+                    Metrics.counter("resdownloader_images_total", "result", "optimized").increment();
+                    Metrics.counter("resdownloader_image_saved_bytes_total").add(result.originalSize - result.size);
+                    log.info("Optimized image {}: {} -> {} bytes", file, result.originalSize, result.size);
+                }
+                return result;
+            } catch (IOException | RuntimeException err) {
+                Metrics.counter("resdownloader_images_total", "result", "failed").increment();
+                log.warn("Unable to optimize image {}: {}", file, err.getMessage());
+                return null;
+            } finally {
+                Files.deleteIfExists(tempFile);
+                Metrics.histogram("resdownloader_image_optimize_seconds").observeSince(started);
+            }
+        });
+    }
+
+    @Nullable
+    private Result optimize(Path file, Path tempFile) throws IOException {
+        long originalSize = Files.size(file);
+        if (originalSize <= threshold)
+            return skipped();
+        BufferedImage image;
+        IIOMetadata metadata;
+        String format;
+        try (ImageInputStream in = ImageIO.createImageInputStream(file.toFile())) {
+            Iterator<ImageReader> readers = in != null ? ImageIO.getImageReaders(in) : null;
+            if (readers == null || !readers.hasNext())
+                return skipped();
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in);
+                format = reader.getFormatName().toLowerCase();
+                // animation would lose all frames but the first one
+                if (reader.getNumImages(true) != 1)
+                    return skipped();
+                if ((long) reader.getWidth(0) * reader.getHeight(0) > MAX_PIXELS) {
+                    log.debug("Image {} is too large to decode", file);
+                    return skipped();
+                }
+                boolean downscale = maxDimension > 0
+                        && Math.max(reader.getWidth(0), reader.getHeight(0)) > maxDimension;
+                if (!downscale && !format.equals("png"))
+                    return skipped();
+                metadata = reader.getImageMetadata(0);
+                if (downscale && hasColorProfile(metadata))
+                    return skipped();
+                image = reader.read(0);
+                if (downscale) {
+                    image = downscale(image, format.equals("jpeg"));
+                    // describes original pixel layout, writer takes defaults of scaled image instead
+                    metadata = null;
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+        if (!write(image, metadata, format, tempFile))
+            return skipped();
+        long size = Files.size(tempFile);
+        if (size >= originalSize) {
+            Metrics.counter("resdownloader_images_total", "result", "kept").increment();
+            return null;
+        }
+        String md5sum = ResourceProcessor.generateMD5Hash(createDigest(), tempFile);
+        if (md5sum == null)
+            throw new IOException("unable to hash optimized image");
+        try {
+            Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException err) {
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return new Result(originalSize, size, Files.getLastModifiedTime(file).toMillis(), md5sum);
+    }
+
+    private BufferedImage downscale(BufferedImage image, boolean opaque) {
+        double scale = (double) maxDimension / Math.max(image.getWidth(), image.getHeight());
+        int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        boolean alpha = !opaque && image.getColorModel().hasAlpha();
+        BufferedImage scaled = new BufferedImage(width, height,
+                alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaled;
+    }
+
+    private static boolean hasColorProfile(@Nullable IIOMetadata metadata) {
+        if (metadata == null || metadata.getNativeMetadataFormatName() == null)
+            return false;
+        return hasNode(metadata.getAsTree(metadata.getNativeMetadataFormatName()));
+    }
+
+    private static boolean hasNode(Node node) {
+        if (COLOR_PROFILE_NODES.contains(node.getNodeName()))
+            return true;
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (hasNode(child))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param metadata metadata of original image, so colour space, density and text chunks are kept
+     * @return false if ImageIO has no writer for format
+     */
+    private boolean write(BufferedImage image, @Nullable IIOMetadata metadata, String format, Path tempFile)
+            throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext())
+            return false;
+        ImageWriter writer = writers.next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(tempFile.toFile())) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                if (param.getCompressionType() == null && param.getCompressionTypes() != null)
+                    param.setCompressionType(param.getCompressionTypes()[0]);
+                // quality of PNG is deflate level inverted, it is lossless at any value
+                param.setCompressionQuality(format.equals("jpeg") ? JPEG_QUALITY : 0.0f);
+            }
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, metadata), param);
+        } finally {
+            writer.dispose();
+        }
+        return true;
+    }
+
+    @Nullable
+    private static Result skipped() {
+        Metrics.counter("resdownloader_images_total", "result", "skipped").increment();
+        return null;
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException err) {
+            throw new RuntimeException("Your JDK not supported MD5 hashes");
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1L, TimeUnit.MINUTES))
+                log.warn("Image optimization is not finished in time");
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Optimized file replacing stored one: sizes before and after, modification time and MD5 hash of new content.
+     */
+    static class Result {
+
+        final long originalSize;
+        final long size;
+        final long modified;
+        final String md5;
+
+        Result(long originalSize, long size, long modified, @NotNull String md5) {
+            this.originalSize = originalSize;
+            this.size = size;
+            this.modified = modified;
+            this.md5 = md5;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package downloader;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Small resources inlined into pages as data URIs. Each content is encoded once and kept in "inlined" table
+ * by its MD5 hash, converted links and file hashes refer to it as "inline:hash".
+ */
+class InlineResources {
+
+    static final String INLINE_PREFIX = "inline:";
+    // chars of data URIs kept in memory, shared by all resources directories of the process
+    private static final long CACHE_LIMIT = 16L * 1024L * 1024L;
+    private static final Map<String, String> MIME_TYPES = new HashMap<>();
+    private static final LinkedHashMap<String, String> cache = new LinkedHashMap<>(256, 0.75f, true);
+    private static long cachedChars = 0L;
+
+    static {
+        MIME_TYPES.put("css", "text/css");
+        MIME_TYPES.put("js", "text/javascript");
+        MIME_TYPES.put("mjs", "text/javascript");
+        MIME_TYPES.put("json", "application/json");
+        MIME_TYPES.put("svg", "image/svg+xml");
+        MIME_TYPES.put("png", "image/png");
+        MIME_TYPES.put("gif", "image/gif");
+        MIME_TYPES.put("jpg", "image/jpeg");
+        MIME_TYPES.put("jpeg", "image/jpeg");
+        MIME_TYPES.put("webp", "image/webp");
+        MIME_TYPES.put("avif", "image/avif");
+        MIME_TYPES.put("ico", "image/x-icon");
+        MIME_TYPES.put("bmp", "image/bmp");
+        MIME_TYPES.put("woff", "font/woff");
+        MIME_TYPES.put("woff2", "font/woff2");
+        MIME_TYPES.put("ttf", "font/ttf");
+        MIME_TYPES.put("otf", "font/otf");
+        MIME_TYPES.put("eot", "application/vnd.ms-fontobject");
+    }
+
+    private final SqliteMap inlined;
+
+    InlineResources(@NotNull final SqliteMap inlined) {
+        this.inlined = inlined;
+    }
+
+    static boolean isReference(@Nullable final String value) {
+        return value != null && value.startsWith(INLINE_PREFIX);
+    }
+
+    /**
+     * Saves content of file as data URI, once per content hash.
+     *
+     * @return reference to save in converted links and file hashes
+     */
+    @NotNull
+    String store(@NotNull final String md5sum, @NotNull final String fileName, @NotNull final Path file) throws IOException {
+        if (!inlined.containsKey(md5sum)) {
+            String dataUri = "data:" + getMimeType(fileName) + ";base64,"
+                    + Base64.getEncoder().encodeToString(Files.readAllBytes(file));
+            inlined.put(md5sum, dataUri);
+            cache(md5sum, dataUri);
+        }
+        return INLINE_PREFIX + md5sum;
+    }
+
+    /**
+     * @return data URI by reference, value as is if it is not a reference
+     */
+    @Nullable
+    String resolve(@Nullable final String value) {
+        if (!isReference(value))
+            return value;
+        String md5sum = value.substring(INLINE_PREFIX.length());
+        String dataUri;
+        synchronized (cache) {
+            dataUri = cache.get(md5sum);
+        }
+        Metrics.counter("resdownloader_inline_cache_lookups_total", "result", dataUri != null ? "hit" : "miss").increment();
+        if (dataUri == null) {
+            dataUri = inlined.get(md5sum);
+            if (dataUri != null)
+                cache(md5sum, dataUri);
+        }
+        return dataUri;
+    }
+
+    /**
+     * @return reference of inlined data URI, null if data URI was not created by this class
+     */
+    @Nullable
+    String getReference(@NotNull final String dataUri) {
+        String md5sum = inlined.getByValue(dataUri);
+        return md5sum != null ? INLINE_PREFIX + md5sum : null;
+    }
+
+    @NotNull
+    static String getMimeType(@NotNull final String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot >= 0) {
+            String mimeType = MIME_TYPES.get(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+            if (mimeType != null)
+                return mimeType;
+        }
+        String guessed = URLConnection.guessContentTypeFromName(fileName);
+        return guessed != null ? guessed : "application/octet-stream";
+    }
+
+    private static void cache(final String md5sum, final String dataUri) {
+        if (dataUri.length() > CACHE_LIMIT)
+            return;
+        synchronized (cache) {
+            String previous = cache.put(md5sum, dataUri);
+            if (previous != null)
+                cachedChars -= previous.length();
+            cachedChars += dataUri.length();
+            Iterator<String> eldest = cache.values().iterator();
+            while (cachedChars > CACHE_LIMIT && eldest.hasNext()) {
+                cachedChars -= eldest.next().length();
+                eldest.remove();
+            }
+        }
+    }
+}
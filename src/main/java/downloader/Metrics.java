@@ -0,0 +1,195 @@
+package downloader;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+public final class Metrics {
+
+    private static final double[] LATENCY_BUCKETS = {
+            0.0005, 0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1.0, 2.5, 5.0, 10.0, 30.0, 60.0};
+
+    private static final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+    private static final long startedAt = System.nanoTime();
+
+    private Metrics() {
+    }
+
+    public static Counter counter(@NotNull final String name, @NotNull final String... labels) {
+        return counters.computeIfAbsent(key(name, labels), k -> new Counter(name, labelsMap(labels)));
+    }
+
+    public static Histogram histogram(@NotNull final String name, @NotNull final String... labels) {
+        return histograms.computeIfAbsent(key(name, labels), k -> new Histogram(name, labelsMap(labels)));
+    }
+
+    public static void gauge(@NotNull final String name,
+                             @NotNull final DoubleSupplier value,
+                             @NotNull final String... labels) {
+        gauges.put(key(name, labels), new Gauge(name, labelsMap(labels), value));
+    }
+
+    public static long sum(@NotNull final String name) {
+        long result = 0L;
+        for (Counter counter : counters.values()) {
+            if (counter.name.equals(name))
+                result += counter.get();
+        }
+        return result;
+    }
+
+    public static double uptimeSeconds() {
+        return (System.nanoTime() - startedAt) / 1_000_000_000.0;
+    }
+
+    static List<Counter> getCounters() {
+        return sorted(counters);
+    }
+
+    static List<Histogram> getHistograms() {
+        return sorted(histograms);
+    }
+
+    static List<Gauge> getGauges() {
+        return sorted(gauges);
+    }
+
+    static double[] getLatencyBuckets() {
+        return LATENCY_BUCKETS.clone();
+    }
+
+    private static <T> List<T> sorted(Map<String, T> metrics) {
+        return new ArrayList<>(new TreeMap<>(metrics).values());
+    }
+
+    private static String key(String name, String[] labels) {
+        StringBuilder key = new StringBuilder(name);
+        for (String label : labels) {
+            key.append('\u0000').append(label);
+        }
+        return key.toString();
+    }
+
+    private static Map<String, String> labelsMap(String[] labels) {
+        if (labels.length % 2 != 0)
+            throw new IllegalArgumentException("Labels must be name and value pairs");
+        Map<String, String> result = new LinkedHashMap<>();
+        for (int i = 0; i < labels.length; i += 2) {
+            result.put(labels[i], labels[i + 1]);
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    public abstract static class Metric {
+
+        final String name;
+        final Map<String, String> labels;
+
+        private Metric(String name, Map<String, String> labels) {
+            this.name = name;
+            this.labels = labels;
+        }
+    }
+
+    public static final class Counter
+            extends Metric {
+
+        private final LongAdder value = new LongAdder();
+
+        private Counter(String name, Map<String, String> labels) {
+            super(name, labels);
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(final long delta) {
+            value.add(delta);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    public static final class Gauge
+            extends Metric {
+
+        private final DoubleSupplier value;
+
+        private Gauge(String name, Map<String, String> labels, DoubleSupplier value) {
+            super(name, labels);
+            this.value = value;
+        }
+
+        public double get() {
+            return value.getAsDouble();
+        }
+    }
+
+    public static final class Histogram
+            extends Metric {
+
+        private final LongAdder[] buckets = new LongAdder[LATENCY_BUCKETS.length];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        private Histogram(String name, Map<String, String> labels) {
+            super(name, labels);
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void observeNanos(final long nanos) {
+            double seconds = nanos / 1_000_000_000.0;
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                if (seconds <= LATENCY_BUCKETS[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        public void observeMillis(final long millis) {
+            observeNanos(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+
+        public void observeSince(final long startedNanos) {
+            observeNanos(System.nanoTime() - startedNanos);
+        }
+
+        long[] getCumulativeBuckets() {
+            long[] result = new long[buckets.length];
+            long total = 0L;
+            for (int i = 0; i < buckets.length; i++) {
+                total += buckets[i].sum();
+                result[i] = total;
+            }
+            return result;
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+        double getSumSeconds() {
+            return sumNanos.sum() / 1_000_000_000.0;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package downloader;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class MetricsExporter
+        implements Closeable, AutoCloseable {
+
+    private static final Logger log = LogManager.getLogger(MetricsExporter.class.getSimpleName());
+
+    private final Path prometheusFile;
+    private final Path jsonFile;
+    private final ScheduledExecutorService timer;
+
+    public MetricsExporter(@Nullable final Path prometheusFile,
+                           @Nullable final Path jsonFile,
+                           final int intervalSeconds) {
+        this.prometheusFile = prometheusFile;
+        this.jsonFile = jsonFile;
+        if (intervalSeconds > 0 && (prometheusFile != null || jsonFile != null)) {
+            timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "metrics-exporter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timer.scheduleAtFixedRate(this::export, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        } else {
+            timer = null;
+        }
+    }
+
+    public synchronized void export() {
+        if (prometheusFile != null) {
+            writeAtomic(prometheusFile, toPrometheusText());
+        }
+        if (jsonFile != null) {
+            try {
+                ObjectMapper objectMapper = new ObjectMapper();
+                objectMapper.enable(SerializationFeature.INDENT_OUTPUT);
+                writeAtomic(jsonFile, objectMapper.writeValueAsString(toJsonSnapshot()));
+            } catch (IOException err) {
+                log.warn("Unable to serialize metrics: {}", err.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        export();
+    }
+
+    static String toPrometheusText() {
+        StringBuilder out = new StringBuilder();
+        Set<String> typed = new HashSet<>();
+        for (Metrics.Counter counter : Metrics.getCounters()) {
+            appendType(out, typed, counter.name, "counter");
+            out.append(counter.name).append(formatLabels(counter.labels, null))
+                    .append(' ').append(counter.get()).append('\n');
+        }
+        for (Metrics.Gauge gauge : Metrics.getGauges()) {
+            appendType(out, typed, gauge.name, "gauge");
+            out.append(gauge.name).append(formatLabels(gauge.labels, null))
+                    .append(' ').append(formatDouble(gauge.get())).append('\n');
+        }
+        appendType(out, typed, "resdownloader_uptime_seconds", "gauge");
+        out.append("resdownloader_uptime_seconds ").append(formatDouble(Metrics.uptimeSeconds())).append('\n');
+        double[] bounds = Metrics.getLatencyBuckets();
+        for (Metrics.Histogram histogram : Metrics.getHistograms()) {
+            appendType(out, typed, histogram.name, "histogram");
+            long[] buckets = histogram.getCumulativeBuckets();
+            for (int i = 0; i < bounds.length; i++) {
+                out.append(histogram.name).append("_bucket")
+                        .append(formatLabels(histogram.labels, formatDouble(bounds[i])))
+                        .append(' ').append(buckets[i]).append('\n');
+            }
+            out.append(histogram.name).append("_bucket").append(formatLabels(histogram.labels, "+Inf"))
+                    .append(' ').append(histogram.getCount()).append('\n');
+            out.append(histogram.name).append("_sum").append(formatLabels(histogram.labels, null))
+                    .append(' ').append(formatDouble(histogram.getSumSeconds())).append('\n');
+            out.append(histogram.name).append("_count").append(formatLabels(histogram.labels, null))
+                    .append(' ').append(histogram.getCount()).append('\n');
+        }
+        return out.toString();
+    }
+
+    static Map<String, Object> toJsonSnapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        double uptime = Metrics.uptimeSeconds();
+        snapshot.put("timestamp", System.currentTimeMillis());
+        snapshot.put("uptime_seconds", uptime);
+        long documents = Metrics.counter("resdownloader_documents_total").get();
+        snapshot.put("documents_per_second", uptime > 0.0 ? documents / uptime : 0.0);
+
+        List<Map<String, Object>> counters = new ArrayList<>();
+        for (Metrics.Counter counter : Metrics.getCounters()) {
+            Map<String, Object> item = metricItem(counter);
+            item.put("value", counter.get());
+            counters.add(item);
+        }
+        snapshot.put("counters", counters);
+
+        List<Map<String, Object>> gauges = new ArrayList<>();
+        for (Metrics.Gauge gauge : Metrics.getGauges()) {
+            Map<String, Object> item = metricItem(gauge);
+            item.put("value", gauge.get());
+            gauges.add(item);
+        }
+        snapshot.put("gauges", gauges);
+
+        double[] bounds = Metrics.getLatencyBuckets();
+        List<Map<String, Object>> histograms = new ArrayList<>();
+        for (Metrics.Histogram histogram : Metrics.getHistograms()) {
+            Map<String, Object> item = metricItem(histogram);
+            long count = histogram.getCount();
+            item.put("count", count);
+            item.put("sum_seconds", histogram.getSumSeconds());
+            item.put("mean_seconds", count > 0 ? histogram.getSumSeconds() / count : 0.0);
+            Map<String, Long> buckets = new LinkedHashMap<>();
+            long[] cumulative = histogram.getCumulativeBuckets();
+            for (int i = 0; i < bounds.length; i++) {
+                buckets.put(formatDouble(bounds[i]), cumulative[i]);
+            }
+            buckets.put("+Inf", count);
+            item.put("buckets", buckets);
+            histograms.add(item);
+        }
+        snapshot.put("histograms", histograms);
+        return snapshot;
+    }
+
+    private static Map<String, Object> metricItem(Metrics.Metric metric) {
+        Map<String, Object> item = new LinkedHashMap<>();
+        item.put("name", metric.name);
+        item.put("labels", metric.labels);
+        return item;
+    }
+
+    private static void appendType(StringBuilder out, Set<String> typed, String name, String type) {
+        if (typed.add(name)) {
+            out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+    }
+
+    private static String formatLabels(Map<String, String> labels, @Nullable String bucket) {
+        if (labels.isEmpty() && bucket == null)
+            return "";
+        StringBuilder out = new StringBuilder("{");
+        for (Map.Entry<String, String> label : labels.entrySet()) {
+            if (out.length() > 1)
+                out.append(',');
+            out.append(label.getKey()).append("=\"").append(escape(label.getValue())).append('"');
+        }
+        if (bucket != null) {
+            if (out.length() > 1)
+                out.append(',');
+            out.append("le=\"").append(bucket).append('"');
+        }
+        return out.append('}').toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String formatDouble(double value) {
+        return Double.toString(value);
+    }
+
+    private void writeAtomic(Path target, String content) {
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                writer.append(content);
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException err) {
+            log.warn("Unable to write metrics to {}: {}", target, err.getMessage());
+        }
+    }
+}
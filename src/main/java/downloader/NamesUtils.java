@@ -2,6 +2,7 @@ package downloader;
 
 import org.apache.commons.io.FilenameUtils;
 
+import java.net.URI;
 import java.nio.file.Path;
 
 class NamesUtils {
@@ -34,4 +35,9 @@ class NamesUtils {
     static Path getOrigPath(Path inputName) {
         return inputName.resolveSibling(getOrigName(inputName));
     }
+
+    static String getHostKey(URI url) {
+        return (url.getHost() != null ? url.getHost().toLowerCase() : "")
+                + (url.getPort() > 0 ? ":" + url.getPort() : "");
+    }
 }
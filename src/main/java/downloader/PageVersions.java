@@ -0,0 +1,142 @@
+package downloader;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static downloader.NamesUtils.RESOURCES_PATH_NAME;
+import static downloader.NamesUtils.STATE_DB_NAME;
+
+/**
+ * Versions of input pages recorded in state database of their resources directory, so converted page is converted
+ * again only when its content changes. Size and modification time are compared first, content is hashed only when
+ * they differ. Urls each page references are recorded too: converted urls no page references any more are dropped.
+ */
+class PageVersions {
+
+    private static final Logger log = LogManager.getLogger(PageVersions.class.getSimpleName());
+
+    private final SqliteHolder sqliteHolder;
+    private final MessageDigest md5;
+    // versions of pages selected for conversion, recorded once converted page is saved
+    private final Map<Path, SqlitePages.Entry> selected = new HashMap<>();
+
+    PageVersions(@NotNull final SqliteHolder sqliteHolder) {
+        this.sqliteHolder = sqliteHolder;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException err) {
+            throw new RuntimeException("Your JDK not supported MD5 hashes");
+        }
+    }
+
+    /**
+     * @return true if page is not converted yet or its content changed since conversion
+     */
+    boolean isChanged(@NotNull final Path page) {
+        final Path file = page.toAbsolutePath();
+        final Path stateDb = file.resolveSibling(RESOURCES_PATH_NAME).resolve(STATE_DB_NAME);
+        final String name = file.getFileName().toString();
+        final boolean converted = Files.exists(NamesUtils.getDownloadPath(file)) && Files.exists(stateDb);
+        long size;
+        long modified;
+        try {
+            size = Files.size(file);
+            modified = Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException err) {
+            // reader reports unreadable file
+            return true;
+        }
+        SqlitePages pages = converted ? sqliteHolder.getPages(stateDb) : null;
+        SqlitePages.Entry previous = pages != null ? pages.get(name) : null;
+        if (previous != null && previous.isSameFile(size, modified)) {
+            Metrics.counter("resdownloader_pages_total", "result", "unchanged").increment();
+            return false;
+        }
+        String md5sum = ResourceProcessor.generateMD5Hash(md5, file);
+        if (md5sum == null)
+            return true;
+        if (pages != null) {
+            if (previous == null) {
+                // converted before versions were recorded, current content is taken as converted one
+                pages.put(name, new SqlitePages.Entry(size, modified, md5sum, null));
+                log.info("Recorded version of already converted page {}", file);
+                Metrics.counter("resdownloader_pages_total", "result", "unchanged").increment();
+                return false;
+            }
+            if (previous.md5.equals(md5sum)) {
+                // touched only, next check is done by metadata again
+                pages.put(name, new SqlitePages.Entry(size, modified, md5sum, previous.urls));
+                Metrics.counter("resdownloader_pages_total", "result", "unchanged").increment();
+                return false;
+            }
+        }
+        Metrics.counter("resdownloader_pages_total", "result", previous != null ? "changed" : "new").increment();
+        selected.put(file, new SqlitePages.Entry(size, modified, md5sum,
+                previous != null ? previous.urls : null));
+        return true;
+    }
+
+    /**
+     * Records version of saved page and urls it references now. Urls only the previous version referenced are
+     * removed from converted ones unless another page of the directory references them, so the table does not
+     * grow with every edit and a link added back later is downloaded again. Nothing is removed while urls of
+     * some page are unknown, it may reference any of them.
+     */
+    void converted(@NotNull final Path page, @NotNull final Collection<String> urls) {
+        final Path file = page.toAbsolutePath();
+        SqlitePages.Entry version = selected.remove(file);
+        if (version == null)
+            return;
+        if (version.urls != null && !version.urls.isEmpty()) {
+            long known = 0L;
+            for (String url : urls) {
+                if (version.urls.contains(url))
+                    known++;
+            }
+            log.info("Page {} changed: {} links, {} of them new since previous conversion", file, urls.size(),
+                    urls.size() - known);
+        }
+        Path stateDb = file.resolveSibling(RESOURCES_PATH_NAME).resolve(STATE_DB_NAME);
+        SqlitePages pages = sqliteHolder.getPages(stateDb);
+        pages.put(file.getFileName().toString(), new SqlitePages.Entry(version.size, version.modified, version.md5, urls));
+
+        if (version.urls == null)
+            return;
+        Set<String> removed = new LinkedHashSet<>(version.urls);
+        removed.removeAll(urls);
+        if (removed.isEmpty() || pages.hasPagesWithUnknownUrls())
+            return;
+        removed.removeAll(pages.getReferencedUrls());
+        SqliteMap convertedUrls = sqliteHolder.getConnection(stateDb).getConverted();
+        long dropped = 0L;
+        for (String url : removed) {
+            if (convertedUrls.containsKey(url)) {
+                convertedUrls.remove(url);
+                dropped++;
+            }
+        }
+        if (dropped > 0L) {
+            Metrics.counter("resdownloader_pages_dropped_urls_total").add(dropped);
+            log.info("Dropped {} urls no page references any more", dropped);
+        }
+    }
+
+    /**
+     * Forgets pages which were not saved, they are checked again next time.
+     */
+    void clear() {
+        selected.clear();
+    }
+}
@@ -19,6 +19,45 @@ class ParsedCmdline {
     private String externalPassword = null;
     private int externalPort = 22;
     private Path externalKeyFile = null;
+    private int jobs = 1;
+    private int hostConnections = 4;
+    private int retryDelay = 1;
+    private int retryBudget = 20;
+    private int breakerFailures = 5;
+    private int breakerCoolDown = 300;
+    private int breakerTtl = 60;
+    private Path metricsFile = null;
+    private Path metricsJsonFile = null;
+    private int metricsInterval = 0;
+    private int progressInterval = 10;
+    private boolean inlineErrorImages = false;
+    private boolean resume = true;
+    private int resumeThreshold = 1024;
+    private int segments = 1;
+    private int segmentThreshold = 8192;
+    private boolean packResources = false;
+    private boolean unpack = false;
+    private int inlineThreshold = 0;
+    private boolean prewarm = true;
+    private int dnsTtl = DnsCache.DEFAULT_TTL;
+    private Path hostsFile = null;
+    private Path cacheDir = null;
+    private int cacheSize = ContentCache.DEFAULT_SIZE;
+    private int redirectTtl = 24;
+    private int connectTimeout = 60;
+    private int ttfbTimeout = 60;
+    private int idleTimeout = 60;
+    private int deadline = 0;
+    private int minSpeed = 0;
+    private int minSpeedTime = TransferLimits.DEFAULT_MIN_SPEED_TIME;
+    private int daemonPort = 0;
+    private int queueSize = DaemonServer.DEFAULT_QUEUE_SIZE;
+    private boolean watch = false;
+    private int debounce = DirectoryWatcher.DEFAULT_DEBOUNCE;
+    private List<Path> watchDirs = Collections.emptyList();
+    private int openDatabases = SqliteHolder.DEFAULT_MAX_CONNECTIONS;
+    private int optimizeImages = 0;
+    private int maxImageDimension = 0;
 
     boolean isShowHelp() {
         return showHelp;
@@ -107,4 +146,316 @@ class ParsedCmdline {
     public void setExternalPassword(String externalPassword) {
         this.externalPassword = externalPassword;
     }
+
+    int getJobs() {
+        return jobs;
+    }
+
+    void setJobs(int jobs) {
+        this.jobs = jobs;
+    }
+
+    int getHostConnections() {
+        return hostConnections;
+    }
+
+    void setHostConnections(int hostConnections) {
+        this.hostConnections = hostConnections;
+    }
+
+    int getRetryDelay() {
+        return retryDelay;
+    }
+
+    void setRetryDelay(int retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    int getRetryBudget() {
+        return retryBudget;
+    }
+
+    void setRetryBudget(int retryBudget) {
+        this.retryBudget = retryBudget;
+    }
+
+    int getBreakerFailures() {
+        return breakerFailures;
+    }
+
+    void setBreakerFailures(int breakerFailures) {
+        this.breakerFailures = breakerFailures;
+    }
+
+    int getBreakerCoolDown() {
+        return breakerCoolDown;
+    }
+
+    void setBreakerCoolDown(int breakerCoolDown) {
+        this.breakerCoolDown = breakerCoolDown;
+    }
+
+    int getBreakerTtl() {
+        return breakerTtl;
+    }
+
+    void setBreakerTtl(int breakerTtl) {
+        this.breakerTtl = breakerTtl;
+    }
+
+    Path getMetricsFile() {
+        return metricsFile;
+    }
+
+    void setMetricsFile(Path metricsFile) {
+        this.metricsFile = metricsFile;
+    }
+
+    Path getMetricsJsonFile() {
+        return metricsJsonFile;
+    }
+
+    void setMetricsJsonFile(Path metricsJsonFile) {
+        this.metricsJsonFile = metricsJsonFile;
+    }
+
+    int getMetricsInterval() {
+        return metricsInterval;
+    }
+
+    void setMetricsInterval(int metricsInterval) {
+        this.metricsInterval = metricsInterval;
+    }
+
+    int getProgressInterval() {
+        return progressInterval;
+    }
+
+    void setProgressInterval(int progressInterval) {
+        this.progressInterval = progressInterval;
+    }
+
+    boolean isInlineErrorImages() {
+        return inlineErrorImages;
+    }
+
+    void setInlineErrorImages(boolean inlineErrorImages) {
+        this.inlineErrorImages = inlineErrorImages;
+    }
+
+    boolean isResume() {
+        return resume;
+    }
+
+    void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    int getResumeThreshold() {
+        return resumeThreshold;
+    }
+
+    void setResumeThreshold(int resumeThreshold) {
+        this.resumeThreshold = resumeThreshold;
+    }
+
+    int getSegments() {
+        return segments;
+    }
+
+    void setSegments(int segments) {
+        this.segments = segments;
+    }
+
+    int getSegmentThreshold() {
+        return segmentThreshold;
+    }
+
+    void setSegmentThreshold(int segmentThreshold) {
+        this.segmentThreshold = segmentThreshold;
+    }
+
+    boolean isPackResources() {
+        return packResources;
+    }
+
+    void setPackResources(boolean packResources) {
+        this.packResources = packResources;
+    }
+
+    boolean isUnpack() {
+        return unpack;
+    }
+
+    void setUnpack(boolean unpack) {
+        this.unpack = unpack;
+    }
+
+    int getInlineThreshold() {
+        return inlineThreshold;
+    }
+
+    void setInlineThreshold(int inlineThreshold) {
+        this.inlineThreshold = inlineThreshold;
+    }
+
+    boolean isPrewarm() {
+        return prewarm;
+    }
+
+    void setPrewarm(boolean prewarm) {
+        this.prewarm = prewarm;
+    }
+
+    int getDnsTtl() {
+        return dnsTtl;
+    }
+
+    void setDnsTtl(int dnsTtl) {
+        this.dnsTtl = dnsTtl;
+    }
+
+    Path getHostsFile() {
+        return hostsFile;
+    }
+
+    void setHostsFile(Path hostsFile) {
+        this.hostsFile = hostsFile;
+    }
+
+    Path getCacheDir() {
+        return cacheDir;
+    }
+
+    void setCacheDir(Path cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    int getCacheSize() {
+        return cacheSize;
+    }
+
+    void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    int getRedirectTtl() {
+        return redirectTtl;
+    }
+
+    void setRedirectTtl(int redirectTtl) {
+        this.redirectTtl = redirectTtl;
+    }
+
+    int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    int getTtfbTimeout() {
+        return ttfbTimeout;
+    }
+
+    void setTtfbTimeout(int ttfbTimeout) {
+        this.ttfbTimeout = ttfbTimeout;
+    }
+
+    int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    void setIdleTimeout(int idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    int getDeadline() {
+        return deadline;
+    }
+
+    void setDeadline(int deadline) {
+        this.deadline = deadline;
+    }
+
+    int getMinSpeed() {
+        return minSpeed;
+    }
+
+    void setMinSpeed(int minSpeed) {
+        this.minSpeed = minSpeed;
+    }
+
+    int getMinSpeedTime() {
+        return minSpeedTime;
+    }
+
+    void setMinSpeedTime(int minSpeedTime) {
+        this.minSpeedTime = minSpeedTime;
+    }
+
+    int getDaemonPort() {
+        return daemonPort;
+    }
+
+    void setDaemonPort(int daemonPort) {
+        this.daemonPort = daemonPort;
+    }
+
+    int getQueueSize() {
+        return queueSize;
+    }
+
+    void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    boolean isWatch() {
+        return watch;
+    }
+
+    void setWatch(boolean watch) {
+        this.watch = watch;
+    }
+
+    int getDebounce() {
+        return debounce;
+    }
+
+    void setDebounce(int debounce) {
+        this.debounce = debounce;
+    }
+
+    List<Path> getWatchDirs() {
+        return watchDirs;
+    }
+
+    void setWatchDirs(List<Path> watchDirs) {
+        this.watchDirs = watchDirs;
+    }
+
+    int getOpenDatabases() {
+        return openDatabases;
+    }
+
+    void setOpenDatabases(int openDatabases) {
+        this.openDatabases = openDatabases;
+    }
+
+    int getOptimizeImages() {
+        return optimizeImages;
+    }
+
+    void setOptimizeImages(int optimizeImages) {
+        this.optimizeImages = optimizeImages;
+    }
+
+    int getMaxImageDimension() {
+        return maxImageDimension;
+    }
+
+    void setMaxImageDimension(int maxImageDimension) {
+        this.maxImageDimension = maxImageDimension;
+    }
 }
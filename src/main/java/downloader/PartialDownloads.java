@@ -0,0 +1,268 @@
+package downloader;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Partially downloaded resources kept in resources directory between tries and runs.
+ * Each resource has a properties file with validators and length, and one file per range segment.
+ */
+public class PartialDownloads {
+
+    static final String PARTIAL_DIR_NAME = ".partial";
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)",
+            Pattern.CASE_INSENSITIVE);
+    private static final Logger log = LogManager.getLogger(PartialDownloads.class.getSimpleName());
+
+    private final Path directory;
+    private final long resumeThreshold;
+    private final int segments;
+    private final long segmentThreshold;
+
+    PartialDownloads(@NotNull final Path directory,
+                     final long resumeThreshold,
+                     final int segments,
+                     final long segmentThreshold) {
+        this.directory = directory;
+        this.resumeThreshold = resumeThreshold;
+        this.segments = segments;
+        this.segmentThreshold = segmentThreshold;
+    }
+
+    boolean isResumable(final long length) {
+        return length >= resumeThreshold;
+    }
+
+    int getSegments(final long length) {
+        return segments > 1 && length >= segmentThreshold ? segments : 1;
+    }
+
+    @NotNull
+    Partial forUrl(@NotNull final URI url) {
+        Partial partial = new Partial(directory.resolve(urlHash(url)), url.toString());
+        partial.load();
+        return partial;
+    }
+
+    void discard(@NotNull final URI url) {
+        new Partial(directory.resolve(urlHash(url)), url.toString()).discard();
+    }
+
+    static String urlHash(@NotNull final URI url) {
+        return sha1Hex(url.toString());
+    }
+
+    static String sha1Hex(@NotNull final String value) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return String.format("%040x", new BigInteger(1, sha1.digest(value.getBytes(StandardCharsets.UTF_8))));
+        } catch (NoSuchAlgorithmException err) {
+            throw new RuntimeException("Your JDK not supported SHA-1 hashes");
+        }
+    }
+
+    static class Partial {
+
+        private final Path base;
+        private final Path metaFile;
+        private final String url;
+        private String etag = null;
+        private String lastModified = null;
+        private long length = -1L;
+        private int segments = 0;
+
+        private Partial(Path base, String url) {
+            this.base = base;
+            this.metaFile = base.resolveSibling(base.getFileName() + ".properties");
+            this.url = url;
+        }
+
+        boolean isStarted() {
+            return segments > 0;
+        }
+
+        /**
+         * Strong ETag or Last-Modified date, suitable for If-Range header.
+         */
+        @Nullable
+        String getValidator() {
+            return etag != null ? etag : lastModified;
+        }
+
+        @Nullable
+        String getEtag() {
+            return etag;
+        }
+
+        @Nullable
+        String getLastModified() {
+            return lastModified;
+        }
+
+        static boolean hasValidator(@Nullable String etag, @Nullable String lastModified) {
+            return (etag != null && !etag.startsWith("W/")) || lastModified != null;
+        }
+
+        void start(@Nullable final String etag,
+                   @Nullable final String lastModified,
+                   final long length,
+                   final int segments) throws IOException {
+            discard();
+            this.etag = etag != null && !etag.startsWith("W/") ? etag : null;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.segments = segments;
+            Files.createDirectories(base.getParent());
+            Properties properties = new Properties();
+            properties.setProperty("url", url);
+            if (this.etag != null)
+                properties.setProperty("etag", this.etag);
+            if (this.lastModified != null)
+                properties.setProperty("last_modified", this.lastModified);
+            properties.setProperty("length", String.valueOf(length));
+            properties.setProperty("segments", String.valueOf(segments));
+            try (OutputStream out = Files.newOutputStream(metaFile)) {
+                properties.store(out, null);
+            }
+        }
+
+        List<Integer> getPendingSegments() {
+            List<Integer> result = new ArrayList<>();
+            for (int segment = 0; segment < segments; segment++) {
+                if (getNextByte(segment) <= getSegmentEnd(segment))
+                    result.add(segment);
+            }
+            return result;
+        }
+
+        Path getSegmentFile(final int segment) {
+            return base.resolveSibling(base.getFileName() + ".seg" + segment);
+        }
+
+        long getNextByte(final int segment) {
+            Path segmentFile = getSegmentFile(segment);
+            try {
+                long done = Files.exists(segmentFile) ? Files.size(segmentFile) : 0L;
+                return length * segment / segments + done;
+            } catch (IOException err) {
+                return length * segment / segments;
+            }
+        }
+
+        long getSegmentEnd(final int segment) {
+            return length * (segment + 1) / segments - 1;
+        }
+
+        /**
+         * Checks Content-Range of 206 response: range starts at requested byte, ends within requested segment
+         * and belongs to resource of the same length.
+         *
+         * @return last byte of received range, -1 if it is not the requested range
+         */
+        long getRangeEnd(@Nullable final String contentRange, final long from, final long to) {
+            if (contentRange == null)
+                return -1L;
+            Matcher matcher = CONTENT_RANGE.matcher(contentRange.trim());
+            if (!matcher.matches())
+                return -1L;
+            try {
+                long start = Long.parseLong(matcher.group(1));
+                long end = Long.parseLong(matcher.group(2));
+                String total = matcher.group(3);
+                if (start != from || end < from || end > to)
+                    return -1L;
+                if (!total.equals("*") && Long.parseLong(total) != length)
+                    return -1L;
+                return end;
+            } catch (NumberFormatException err) {
+                return -1L;
+            }
+        }
+
+        void mergeInto(@NotNull final Path target) throws IOException {
+            for (int segment = 0; segment < segments; segment++) {
+                long expected = getSegmentEnd(segment) - length * segment / segments + 1;
+                long size = Files.size(getSegmentFile(segment));
+                if (size != expected)
+                    throw new IOException("segment " + segment + " has " + size + " bytes instead of " + expected);
+            }
+            if (segments == 1) {
+                Files.move(getSegmentFile(0), target, StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    for (int segment = 0; segment < segments; segment++) {
+                        try (FileChannel in = FileChannel.open(getSegmentFile(segment), StandardOpenOption.READ)) {
+                            long position = 0L;
+                            long size = in.size();
+                            while (position < size) {
+                                position += in.transferTo(position, size - position, out);
+                            }
+                        }
+                    }
+                }
+                long merged = Files.size(target);
+                if (merged != length) {
+                    Files.delete(target);
+                    throw new IOException("merged file has " + merged + " bytes instead of " + length);
+                }
+            }
+            discard();
+        }
+
+        void discard() {
+            segments = 0;
+            if (!Files.isDirectory(base.getParent()))
+                return;
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(base.getParent(), base.getFileName() + ".*")) {
+                for (Path file : files) {
+                    Files.deleteIfExists(file);
+                }
+            } catch (IOException err) {
+                log.warn("Unable to delete partial download of {}: {}", url, err.getMessage());
+            }
+        }
+
+        private void load() {
+            if (!Files.exists(metaFile))
+                return;
+            Properties properties = new Properties();
+            try (InputStream in = Files.newInputStream(metaFile)) {
+                properties.load(in);
+                if (!url.equals(properties.getProperty("url")))
+                    return;
+                etag = properties.getProperty("etag");
+                lastModified = properties.getProperty("last_modified");
+                length = Long.parseLong(properties.getProperty("length", "-1"));
+                segments = Integer.parseInt(properties.getProperty("segments", "0"));
+                if (length <= 0L)
+                    segments = 0;
+            } catch (IOException | NumberFormatException err) {
+                log.warn("Unable to load partial download of {}: {}", url, err.getMessage());
+                segments = 0;
+            }
+        }
+    }
+}
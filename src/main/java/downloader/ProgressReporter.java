@@ -0,0 +1,100 @@
+package downloader;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ProgressReporter
+        implements Closeable, AutoCloseable {
+
+    private static final Logger log = LogManager.getLogger(ProgressReporter.class.getSimpleName());
+
+    private final AtomicLong filesTotal = new AtomicLong();
+    private final AtomicLong filesDone = new AtomicLong();
+    private final AtomicLong linksTotal = new AtomicLong();
+    private final AtomicLong linksDone = new AtomicLong();
+    private final long startedAt = System.nanoTime();
+    private final ScheduledExecutorService timer;
+
+    public ProgressReporter(final long filesTotal, final int intervalSeconds) {
+        this.filesTotal.set(filesTotal);
+        if (intervalSeconds > 0) {
+            timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "progress-reporter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timer.scheduleAtFixedRate(this::report, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        } else {
+            timer = null;
+        }
+    }
+
+    public void startFile(final long linksCount) {
+        linksTotal.addAndGet(linksCount);
+    }
+
+    public void linkDone() {
+        linksDone.incrementAndGet();
+    }
+
+    public void fileDone() {
+        filesDone.incrementAndGet();
+    }
+
+    public long getFilesTotal() {
+        return filesTotal.get();
+    }
+
+    public long getFilesDone() {
+        return filesDone.get();
+    }
+
+    public long getLinksTotal() {
+        return linksTotal.get();
+    }
+
+    public long getLinksDone() {
+        return linksDone.get();
+    }
+
+    public void report() {
+        double seconds = (System.nanoTime() - startedAt) / 1_000_000_000.0;
+        long files = filesDone.get();
+        long totalFiles = filesTotal.get();
+        long links = linksDone.get();
+        long bytes = Metrics.sum("resdownloader_bytes_total");
+        double linksRate = seconds > 0.0 ? links / seconds : 0.0;
+        double bytesRate = seconds > 0.0 ? bytes / 1024.0 / seconds : 0.0;
+        long totalLinks = linksTotal.get();
+        String eta;
+        if (files >= totalFiles) {
+            eta = formatDuration(0L);
+        } else if (files > 0) {
+            eta = formatDuration((long) (seconds / files * (totalFiles - files)));
+        } else if (links > 0 && totalLinks > links) {
+            eta = formatDuration((long) ((totalLinks - links) / linksRate));
+        } else {
+            eta = "--:--:--";
+        }
+        log.info(String.format("Progress: files %d of %d, links %d of %d, %.1f links/s, %.1f KB/s, ETA %s",
+                files, totalFiles, links, totalLinks, linksRate, bytesRate, eta));
+    }
+
+    @Override
+    public void close() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        report();
+    }
+
+    private static String formatDuration(long seconds) {
+        return String.format("%02d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+}
@@ -0,0 +1,138 @@
+package downloader;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Lock files of resources directories used by this run. Run writes its owner id into journal entries and names
+ * of its temp files and holds lock file named after the id until it exits, so leftovers of another run are
+ * recovered only when that run does not hold its lock any more.
+ */
+public class ResourceDirLocks
+        implements Closeable, AutoCloseable {
+
+    static final String LOCK_FILE_PREFIX = "run_";
+    static final String LOCK_FILE_SUFFIX = ".lock";
+
+    private static final Logger log = LogManager.getLogger(ResourceDirLocks.class.getSimpleName());
+    private final String owner;
+    private final Map<Path, FileLock> locks = new HashMap<>();
+
+    public ResourceDirLocks() {
+        this(UUID.randomUUID().toString().replace("-", ""));
+    }
+
+    ResourceDirLocks(@NotNull final String owner) {
+        this.owner = owner;
+    }
+
+    @NotNull
+    public String getOwner() {
+        return owner;
+    }
+
+    /**
+     * Takes lock of directory for the rest of the run.
+     *
+     * @return true on the first call for directory, leftovers of previous runs are to be recovered then
+     */
+    public synchronized boolean lock(@NotNull final Path resourcesDir) {
+        if (locks.containsKey(resourcesDir))
+            return false;
+        Path lockFile = getLockFile(resourcesDir, owner);
+        try {
+            while (true) {
+                FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                FileLock lock = channel.lock();
+                // another run may delete the file found unlocked right before it was locked here
+                if (Files.exists(lockFile)) {
+                    locks.put(resourcesDir, lock);
+                    return true;
+                }
+                channel.close();
+            }
+        } catch (IOException err) {
+            throw new RuntimeException("Unable to lock resources directory \"" + resourcesDir + "\": " + err.getMessage(), err);
+        }
+    }
+
+    /**
+     * @return true if files of owner are left by run that exited, also for entries of versions without owner
+     */
+    public boolean isAbandoned(@NotNull final Path resourcesDir, @Nullable final String otherOwner) {
+        if (owner.equals(otherOwner))
+            return false;
+        if (otherOwner == null)
+            return true;
+        Path lockFile = getLockFile(resourcesDir, otherOwner);
+        if (Files.notExists(lockFile))
+            return true;
+        try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.WRITE);
+             FileLock lock = channel.tryLock()) {
+            return lock != null;
+        } catch (OverlappingFileLockException err) {
+            // held by this JVM
+            return false;
+        } catch (IOException err) {
+            log.warn("Unable to check lock file {}: {}", lockFile, err.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Deletes lock files of exited runs, after their leftovers are recovered.
+     */
+    public void removeAbandoned(@NotNull final Path resourcesDir) {
+        try (DirectoryStream<Path> lockFiles = Files.newDirectoryStream(resourcesDir,
+                LOCK_FILE_PREFIX + "*" + LOCK_FILE_SUFFIX)) {
+            for (Path lockFile : lockFiles) {
+                if (lockFile.equals(getLockFile(resourcesDir, owner)))
+                    continue;
+                try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.WRITE);
+                     FileLock lock = channel.tryLock()) {
+                    if (lock != null)
+                        Files.deleteIfExists(lockFile);
+                } catch (OverlappingFileLockException ignore) {
+                } catch (IOException err) {
+                    log.warn("Unable to remove lock file {}: {}", lockFile, err.getMessage());
+                }
+            }
+        } catch (IOException err) {
+            log.warn("Unable to list lock files in {}: {}", resourcesDir, err.getMessage());
+        }
+    }
+
+    @NotNull
+    static Path getLockFile(@NotNull final Path resourcesDir, @NotNull final String owner) {
+        return resourcesDir.resolve(LOCK_FILE_PREFIX + owner + LOCK_FILE_SUFFIX);
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Map.Entry<Path, FileLock> entry : locks.entrySet()) {
+            Path lockFile = getLockFile(entry.getKey(), owner);
+            try {
+                entry.getValue().channel().close();
+                Files.deleteIfExists(lockFile);
+            } catch (IOException err) {
+                log.error("Unable to release lock file \"" + lockFile + "\": " + err.getMessage());
+            }
+        }
+        locks.clear();
+    }
+}
@@ -0,0 +1,302 @@
+package downloader;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.zip.CRC32;
+
+/**
+ * Resources of one resources directory appended to single ZIP file with stored (not compressed) entries.
+ * Positions of entries are kept in {@link SqlitePackIndex}, central directory is written on close
+ * and rebuilt from index if previous run was interrupted, so the pack is readable by any ZIP tool.
+ */
+public class ResourcePack
+        implements Closeable, AutoCloseable {
+
+    static final String PACK_FILE_NAME = "resources.zip";
+    private static final Logger log = LogManager.getLogger(ResourcePack.class.getSimpleName());
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_SIZE = 22;
+    private static final int UTF8_FLAG = 0x0800;
+    private static final long MAX_ENTRY_SIZE = 0xFFFFFFFEL;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    private final Path packFile;
+    private final SqlitePackIndex index;
+    private final FileChannel channel;
+    private final long dosTime;
+    private long dataEnd;
+    private boolean truncated = false;
+    private boolean changed;
+
+    ResourcePack(@NotNull final Path resourcesDir, @NotNull final SqlitePackIndex index) throws IOException {
+        this.packFile = resourcesDir.resolve(PACK_FILE_NAME);
+        this.index = index;
+        this.channel = FileChannel.open(packFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.dosTime = toDosTime(LocalDateTime.now());
+        long size = channel.size();
+        dataEnd = index.getDataEnd();
+        if (size < dataEnd) {
+            log.warn("Pack {} is shorter than its index, entries after {} bytes are lost", packFile, size);
+            index.deleteAfter(size);
+            dataEnd = index.getDataEnd();
+        }
+        // no valid end record after indexed data: run was interrupted before close
+        changed = dataEnd > 0L && !hasEndRecord(size);
+    }
+
+    @NotNull
+    Path getPackFile() {
+        return packFile;
+    }
+
+    boolean contains(@NotNull final String name) {
+        return index.contains(toEntryName(name));
+    }
+
+    void add(@NotNull final String name, @NotNull final Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            add(name, in);
+        }
+    }
+
+    void add(@NotNull final String name, @NotNull final byte[] data) throws IOException {
+        add(name, new ByteArrayInputStream(data));
+    }
+
+    /**
+     * Appends entry after the last indexed one. Data is written first and indexed after,
+     * so interrupted append leaves only garbage after indexed data, truncated by the next append.
+     */
+    void add(@NotNull final String name, @NotNull final InputStream in) throws IOException {
+        if (!truncated) {
+            // drops central directory of previous run and data of interrupted appends
+            channel.truncate(dataEnd);
+            truncated = true;
+        }
+        String entryName = toEntryName(name);
+        byte[] nameBytes = entryName.getBytes(StandardCharsets.UTF_8);
+        long offset = dataEnd;
+        ByteBuffer header = newBuffer(LOCAL_HEADER_SIZE + nameBytes.length);
+        header.putInt(LOCAL_HEADER_SIGNATURE)
+                .putShort((short) 20)
+                .putShort((short) UTF8_FLAG)
+                .putShort((short) 0)
+                .putInt((int) dosTime)
+                .putInt(0)
+                .putInt(0)
+                .putInt(0)
+                .putShort((short) nameBytes.length)
+                .putShort((short) 0)
+                .put(nameBytes);
+        header.flip();
+        long position = writeFully(header, offset);
+
+        CRC32 crc = new CRC32();
+        long size = 0L;
+        byte[] buffer = new byte[65536];
+        int readied;
+        while ((readied = in.read(buffer)) > 0) {
+            crc.update(buffer, 0, readied);
+            size += readied;
+            if (size > MAX_ENTRY_SIZE) {
+                channel.truncate(offset);
+                throw new IOException("Resource " + name + " is too large for pack");
+            }
+            position = writeFully(ByteBuffer.wrap(buffer, 0, readied), position);
+        }
+
+        ByteBuffer sizes = newBuffer(12);
+        sizes.putInt((int) crc.getValue()).putInt((int) size).putInt((int) size);
+        sizes.flip();
+        writeFully(sizes, offset + 14);
+
+        index.put(new SqlitePackIndex.Entry(entryName, offset, size, crc.getValue(), dosTime), position);
+        dataEnd = position;
+        changed = true;
+    }
+
+    /**
+     * Extracts all indexed entries into directory, using index instead of central directory.
+     *
+     * @return count of extracted entries
+     */
+    long extractTo(@NotNull final Path directory) throws IOException {
+        final Path root = directory.toAbsolutePath().normalize();
+        final long[] count = {0L};
+        index.forEach(entry -> {
+            Path target = root.resolve(entry.name).normalize();
+            if (!target.startsWith(root) || target.equals(root)) {
+                log.warn("Skipping entry {} outside of {}", entry.name, root);
+                return;
+            }
+            ByteBuffer header = newBuffer(LOCAL_HEADER_SIZE);
+            readFully(header, entry.offset);
+            header.flip();
+            if (header.getInt(0) != LOCAL_HEADER_SIGNATURE)
+                throw new IOException("Broken entry " + entry.name + " in " + packFile);
+            long dataStart = entry.offset + LOCAL_HEADER_SIZE
+                    + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+            Files.createDirectories(target.getParent());
+            try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                long done = 0L;
+                while (done < entry.size) {
+                    long transferred = channel.transferTo(dataStart + done, entry.size - done, out);
+                    if (transferred <= 0L)
+                        throw new IOException("Unexpected end of " + packFile);
+                    done += transferred;
+                }
+            }
+            count[0]++;
+        });
+        return count[0];
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (changed)
+                writeCentralDirectory();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        channel.truncate(dataEnd);
+        final long centralStart = dataEnd;
+        final long[] state = {centralStart, 0L}; // position, entries
+        final ByteBuffer out = newBuffer(65536);
+        index.forEach(entry -> {
+            byte[] nameBytes = entry.name.getBytes(StandardCharsets.UTF_8);
+            boolean zip64 = entry.offset >= ZIP64_MAGIC;
+            int length = CENTRAL_HEADER_SIZE + nameBytes.length + (zip64 ? 12 : 0);
+            if (out.remaining() < length) {
+                out.flip();
+                state[0] = writeFully(out, state[0]);
+                out.clear();
+            }
+            ByteBuffer target = out.remaining() < length ? newBuffer(length) : out;
+            target.putInt(CENTRAL_HEADER_SIGNATURE)
+                    .putShort((short) (zip64 ? 45 : 20))
+                    .putShort((short) (zip64 ? 45 : 20))
+                    .putShort((short) UTF8_FLAG)
+                    .putShort((short) 0)
+                    .putInt((int) entry.dosTime)
+                    .putInt((int) entry.crc)
+                    .putInt((int) entry.size)
+                    .putInt((int) entry.size)
+                    .putShort((short) nameBytes.length)
+                    .putShort((short) (zip64 ? 12 : 0))
+                    .putShort((short) 0)
+                    .putShort((short) 0)
+                    .putShort((short) 0)
+                    .putInt(0)
+                    .putInt((int) (zip64 ? ZIP64_MAGIC : entry.offset))
+                    .put(nameBytes);
+            if (zip64) {
+                target.putShort((short) 0x0001).putShort((short) 8).putLong(entry.offset);
+            }
+            if (target != out) {
+                target.flip();
+                state[0] = writeFully(target, state[0]);
+            }
+            state[1]++;
+        });
+        out.flip();
+        long position = writeFully(out, state[0]);
+        long entries = state[1];
+        long centralSize = position - centralStart;
+
+        ByteBuffer end = newBuffer(56 + 20 + END_SIZE);
+        boolean zip64 = entries >= 0xFFFF || centralStart >= ZIP64_MAGIC || centralSize >= ZIP64_MAGIC;
+        if (zip64) {
+            end.putInt(ZIP64_END_SIGNATURE)
+                    .putLong(44L)
+                    .putShort((short) 45)
+                    .putShort((short) 45)
+                    .putInt(0)
+                    .putInt(0)
+                    .putLong(entries)
+                    .putLong(entries)
+                    .putLong(centralSize)
+                    .putLong(centralStart);
+            end.putInt(ZIP64_LOCATOR_SIGNATURE)
+                    .putInt(0)
+                    .putLong(position)
+                    .putInt(1);
+        }
+        end.putInt(END_SIGNATURE)
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putShort((short) (zip64 ? 0xFFFF : entries))
+                .putShort((short) (zip64 ? 0xFFFF : entries))
+                .putInt((int) (zip64 ? ZIP64_MAGIC : centralSize))
+                .putInt((int) (zip64 ? ZIP64_MAGIC : centralStart))
+                .putShort((short) 0);
+        end.flip();
+        writeFully(end, position);
+        changed = false;
+    }
+
+    private boolean hasEndRecord(final long size) throws IOException {
+        if (size < dataEnd + END_SIZE)
+            return false;
+        ByteBuffer end = newBuffer(4);
+        readFully(end, size - END_SIZE);
+        return end.getInt(0) == END_SIGNATURE;
+    }
+
+    private long writeFully(final ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return position;
+    }
+
+    private void readFully(final ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int readied = channel.read(buffer, position);
+            if (readied < 0)
+                throw new IOException("Unexpected end of " + packFile);
+            position += readied;
+        }
+    }
+
+    private static ByteBuffer newBuffer(final int capacity) {
+        return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static String toEntryName(final String name) {
+        return name.replace('\\', '/');
+    }
+
+    private static long toDosTime(final LocalDateTime time) {
+        int year = Math.max(time.getYear(), 1980);
+        long date = ((year - 1980) << 9) | (time.getMonthValue() << 5) | time.getDayOfMonth();
+        long dayTime = (time.getHour() << 11) | (time.getMinute() << 5) | (time.getSecond() >> 1);
+        return (date << 16) | dayTime;
+    }
+}
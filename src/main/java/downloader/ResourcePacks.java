@@ -0,0 +1,65 @@
+package downloader;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Packs opened during run, one per resources directory. Central directories are written once, on close.
+ */
+public class ResourcePacks
+        implements Closeable, AutoCloseable {
+
+    private static final Logger log = LogManager.getLogger(ResourcePacks.class.getSimpleName());
+    private final Map<Path, ResourcePack> packs = new HashMap<>();
+
+    public ResourcePack getPack(@NotNull final Path resourcesDir, @NotNull final SqliteState sqliteState) {
+        ResourcePack pack = packs.get(resourcesDir);
+        if (pack == null) {
+            try {
+                pack = new ResourcePack(resourcesDir, sqliteState.getPackIndex());
+                packs.put(resourcesDir, pack);
+            } catch (IOException err) {
+                throw new RuntimeException("Unable to open resources pack in \"" + resourcesDir + "\": " + err.getMessage(), err);
+            }
+        }
+        return pack;
+    }
+
+    /**
+     * Writes central directory and closes pack of resources directory, the next getPack opens it again.
+     */
+    void closePack(@NotNull final Path resourcesDir) {
+        ResourcePack pack = packs.remove(resourcesDir);
+        if (pack == null)
+            return;
+        try {
+            pack.close();
+        } catch (Exception err) {
+            log.error("Unable to close pack \"" + pack.getPackFile() + "\": " + err.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        boolean hasError = false;
+        for (ResourcePack pack : packs.values()) {
+            try {
+                pack.close();
+            } catch (Exception err) {
+                log.error("Unable to close pack \"" + pack.getPackFile() + "\": " + err.getMessage());
+                hasError = true;
+            }
+        }
+        packs.clear();
+        if (hasError) {
+            throw new RuntimeException("Unable to close one or more packs");
+        }
+    }
+}
@@ -3,6 +3,7 @@ package downloader;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jsoup.nodes.Document;
 
@@ -14,13 +15,32 @@ import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 import static downloader.NamesUtils.*;
 
@@ -29,27 +49,54 @@ public class ResourceProcessor
 
     private static final Logger log = LogManager.getLogger(ResourceProcessor.class);
     private static final String TEMP_FILE_NAME = "temp.dat";
+    private static final String TEMP_FILE_PREFIX = "temp_";
+    private static final String TEMP_FILE_SUFFIX = ".dat";
+    private static final String TEMP_FILE_OWNER_SEPARATOR = "_";
 
     private final Path baseLocation;
-    private final Path tmpFile;
     //private final HashMap<String, String> reverseConversion = new HashMap<>();
+    @Nullable
     private final HttpCookieClient httpClient;
     private final SSHWgetClient sshWgetClient;
     private final int tries;
+    private final DownloadScheduler scheduler;
+    private final RetryPolicy retryPolicy;
+    private final HostCircuitBreaker circuitBreaker;
+    // hosts requested for the document, their circuits are saved into its state database
+    private final Set<String> usedHosts = new HashSet<>();
+    private final DelayQueue<DeferredDownload> deferred = new DelayQueue<>();
+    private final Set<String> deferredUrls = new LinkedHashSet<>();
+    private final Map<String, Integer> attempts = new HashMap<>();
+    private final boolean prefetchEnabled;
+    private final boolean prewarmEnabled;
+    private final boolean inlineErrorImages;
+    private final Map<String, PendingDownload> prefetched = new HashMap<>();
     private final MessageDigest md5;
     private final ErrorImagesGenerator errorImagesGenerator = new ErrorImagesGenerator();
     private final SqliteState sqliteState;
+    private final ResourcePack pack;
+    private final InlineResources inlineResources;
+    private final long inlineThreshold;
+    private final ContentCache contentCache;
+    @Nullable
+    private final ImageOptimizer imageOptimizer;
+    // stored files being optimized, by path in resources directory
+    private final Map<String, Future<ImageOptimizer.Result>> optimizing = new HashMap<>();
+    private final long redirectTtl;
+    private final ResourceDirLocks dirLocks;
+    private final String owner;
 
     private ResourceProcessor(final SqliteHolder sqliteHolder,
+                              final ResourcePacks resourcePacks,
+                              final ResourceDirLocks dirLocks,
+                              @Nullable final ContentCache contentCache,
+                              @Nullable final ImageOptimizer imageOptimizer,
+                              final DownloadClients clients,
                               final Path baseLocation,
-                              final int tries,
-                              final int timeout,
-                              final boolean reverseMode,
-                              final String externalHost,
-                              final int externalPort,
-                              final String externalUserName,
-                              final String externalPassword,
-                              final Path externalKey) {
+                              final ParsedCmdline parsedCmdline,
+                              final DownloadScheduler scheduler,
+                              final RetryPolicy retryPolicy,
+                              final HostCircuitBreaker circuitBreaker) {
 
         try {
             md5 = MessageDigest.getInstance("MD5");
@@ -60,9 +107,31 @@ public class ResourceProcessor
         this.baseLocation = baseLocation;
         Path stateFilePath = baseLocation.resolve(STATE_FILE_NAME);
         Path sqlitePath = baseLocation.resolve(STATE_DB_NAME);
-        this.tmpFile = baseLocation.resolve(TEMP_FILE_NAME);
-        this.httpClient = new HttpCookieClient(timeout, true);
-        this.tries = tries;
+        PartialDownloads partialDownloads = null;
+        if (parsedCmdline.isResume() && !parsedCmdline.isReverseMode()) {
+            partialDownloads = new PartialDownloads(baseLocation.resolve(PartialDownloads.PARTIAL_DIR_NAME),
+                    parsedCmdline.getResumeThreshold() * 1024L,
+                    parsedCmdline.getSegments(),
+                    parsedCmdline.getSegmentThreshold() * 1024L);
+        }
+        // reverse mode only renames urls back, http stack is not loaded at all
+        this.httpClient = parsedCmdline.isReverseMode()
+                ? null
+                : new HttpCookieClient(parsedCmdline.getTimeout(), clients.getTransferLimits(),
+                clients.getConnectionManager(), partialDownloads);
+        this.tries = parsedCmdline.getTries();
+        this.scheduler = scheduler;
+        this.retryPolicy = retryPolicy;
+        this.circuitBreaker = circuitBreaker;
+        this.prefetchEnabled = parsedCmdline.getJobs() > 1 && !parsedCmdline.isReverseMode();
+        this.inlineErrorImages = parsedCmdline.isInlineErrorImages();
+        this.inlineThreshold = parsedCmdline.getInlineThreshold() * 1024L;
+        this.contentCache = contentCache;
+        this.redirectTtl = parsedCmdline.getRedirectTtl() * 3_600_000L;
+        this.dirLocks = dirLocks;
+        this.owner = dirLocks.getOwner();
+
+        final boolean reverseMode = parsedCmdline.isReverseMode();
 
         StateData stateData = new StateData();
         /*this.stateData.setConverted(new HashMap<>());
@@ -72,19 +141,11 @@ public class ResourceProcessor
 
         if (!reverseMode) {
             createDirectoriesSilent(baseLocation);
-            if (externalHost != null && externalUserName != null) {
-                try {
-                    sshWgetClient = new SSHWgetClient(externalHost, externalPort, externalUserName, externalPassword, externalKey,
-                            timeout, true);
-                } catch (Exception err) {
-                    throw new RuntimeException("Unable to use external SSH downloader host \"" + externalHost + "\":" + err.getMessage(), err);
-                }
-            } else {
-                sshWgetClient = null;
-            }
-        } else {
-            sshWgetClient = null;
         }
+        // shared by documents, closed with clients
+        sshWgetClient = clients.getSshWgetClient();
+        // external host downloads through own network, nothing to warm up here
+        this.prewarmEnabled = parsedCmdline.isPrewarm() && !reverseMode && sshWgetClient == null;
 
         if (Files.exists(stateFilePath) && Files.notExists(sqlitePath)) {
             try (BufferedReader bufferedReader = Files.newBufferedReader(stateFilePath, StandardCharsets.UTF_8)) {
@@ -109,6 +170,19 @@ public class ResourceProcessor
         sqliteState.getConverted().putAll(stateData.getConverted());
         sqliteState.getUrlFileHashes().putAll(stateData.getUrlFileHashes());
         stateData.getErrCodesImages().forEach(v -> sqliteState.getErrCodesImages().add(v));
+        inlineResources = new InlineResources(sqliteState.getInlined());
+        pack = parsedCmdline.isPackResources() && !reverseMode
+                ? resourcePacks.getPack(baseLocation, sqliteState)
+                : null;
+        // packed resources are not stored as files to replace
+        this.imageOptimizer = pack == null ? imageOptimizer : null;
+        if (!reverseMode) {
+            circuitBreaker.load(sqliteState.getHostBreakers());
+            httpClient.loadCookies(sqliteState.getCookies());
+            // once per directory in run, other documents of the directory find nothing to recover
+            if (dirLocks.lock(baseLocation))
+                recoverJournal();
+        }
 
         /*if (reverseMode) {
             stateData.getConverted().forEach((url, localName) -> reverseConversion.put(localName, url));
@@ -116,35 +190,101 @@ public class ResourceProcessor
     }
 
     static ResourceProcessor forDocument(final SqliteHolder sqliteHolder,
+                                         final ResourcePacks resourcePacks,
+                                         final ResourceDirLocks dirLocks,
+                                         @Nullable final ContentCache contentCache,
+                                         @Nullable final ImageOptimizer imageOptimizer,
+                                         final DownloadClients clients,
                                          final Document document,
-                                         final int tries,
-                                         final int timeout,
-                                         final boolean reverseMode,
-                                         final String externalHost,
-                                         final int externalPort,
-                                         final String externalUserName,
-                                         final String externalPassword,
-                                         final Path externalKey) {
+                                         final ParsedCmdline parsedCmdline,
+                                         final DownloadScheduler scheduler,
+                                         final RetryPolicy retryPolicy,
+                                         final HostCircuitBreaker circuitBreaker) {
         Path documentPath = Paths.get(document.location());
         Path baseLocation = documentPath.resolveSibling(RESOURCES_PATH_NAME);
 
-        return new ResourceProcessor(sqliteHolder, baseLocation, tries, timeout, reverseMode,
-                externalHost, externalPort, externalUserName, externalPassword, externalKey);
+        return new ResourceProcessor(sqliteHolder, resourcePacks, dirLocks, contentCache, imageOptimizer, clients, baseLocation,
+                parsedCmdline, scheduler, retryPolicy, circuitBreaker);
+    }
+
+    void prefetch(@NotNull final Collection<String> urls) {
+        if (!prefetchEnabled && !prewarmEnabled)
+            return;
+        Map<String, URI> pending = new LinkedHashMap<>();
+        for (String url : urls) {
+            if (prefetched.containsKey(url)
+                    || sqliteState.getConverted().containsKey(url)
+                    || sqliteState.getFailed().contains(url))
+                continue;
+            try {
+                URI remote = new URI(url);
+                if (isDownloadable(remote))
+                    pending.put(url, remote);
+            } catch (URISyntaxException ignore) {
+            }
+        }
+        if (prewarmEnabled)
+            httpClient.prewarm(pending.values());
+        if (!prefetchEnabled)
+            return;
+        for (Map.Entry<String, URI> entry : pending.entrySet()) {
+            if (!startPending(entry.getKey(), entry.getValue()))
+                return;
+        }
+    }
+
+    boolean isDeferred(@NotNull final String url) {
+        return deferredUrls.contains(url);
+    }
+
+    void processDeferred() {
+        while (!deferredUrls.isEmpty()) {
+            startDueRetries();
+            boolean handled = false;
+            for (String url : new ArrayList<>(deferredUrls)) {
+                if (prefetched.containsKey(url)) {
+                    deferredUrls.remove(url);
+                    replaceToLocal(url);
+                    handled = true;
+                }
+            }
+            if (!handled) {
+                try {
+                    DeferredDownload next = deferred.take();
+                    startRetry(next);
+                } catch (InterruptedException err) {
+                    Thread.currentThread().interrupt();
+                    log.error("Interrupted while waiting for deferred downloads");
+                    return;
+                }
+            }
+        }
     }
 
     @Override
     public void close() {
-        try {
-            httpClient.close();
-        } catch (IOException err) {
-            log.error("Unable to close http client: {}", err.getMessage());
+        for (Map.Entry<String, PendingDownload> entry : prefetched.entrySet()) {
+            String url = entry.getKey();
+            PendingDownload pending = entry.getValue();
+            try {
+                awaitDownload(pending.result);
+            } catch (RuntimeException ignore) {
+            }
+            discardTemp(url, pending.tmpFile);
         }
-        try {
-            if (sshWgetClient != null) {
-                sshWgetClient.close();
+        prefetched.clear();
+        for (Map.Entry<String, Future<ImageOptimizer.Result>> entry : optimizing.entrySet()) {
+            saveOptimized(entry.getKey(), entry.getValue());
+        }
+        optimizing.clear();
+        circuitBreaker.save(sqliteState.getHostBreakers(), usedHosts);
+        if (httpClient != null) {
+            httpClient.saveCookies(sqliteState.getCookies());
+            try {
+                httpClient.close();
+            } catch (IOException err) {
+                log.error("Unable to close http client: {}", err.getMessage());
             }
-        } catch (IOException err) {
-            log.error("Unable to close SSH client: {}", err.getMessage());
         }
         /*if (!reverseConversion.isEmpty())
             return;*/
@@ -161,12 +301,14 @@ public class ResourceProcessor
     @Nullable
     private String replaceToLocal(String remoteUrl) {
         if (sqliteState.getConverted().containsKey(remoteUrl)) {
-            return sqliteState.getConverted().get(remoteUrl);
+            Metrics.counter("resdownloader_url_lookups_total", "result", "converted").increment();
+            return inlineResources.resolve(sqliteState.getConverted().get(remoteUrl));
         }
 
-        if (sqliteState.getFailed().contains(remoteUrl)) {
+        if (sqliteState.getFailed().contains(remoteUrl) || deferredUrls.contains(remoteUrl)) {
             return null;
         }
+        Metrics.counter("resdownloader_url_lookups_total", "result", "new").increment();
 
         URI remote;
         try {
@@ -176,79 +318,286 @@ public class ResourceProcessor
             sqliteState.getFailed().add(remoteUrl);
             return null;
         }
-        String subPath = (remote.getHost() != null ? remote.getHost() : "")
-                + (remote.getPath() != null ? remote.getPath() : "")
-                .replaceAll("[^a-zA-Z0-9а-яА-Я%_.\\-\\\\/]", "_");
+        if (!isDownloadable(remote)) {
+            log.warn("Unable to download {}: no host or unsupported scheme", remoteUrl);
+            sqliteState.getFailed().add(remoteUrl);
+            return null;
+        }
+        String subPath = getLocalSubPath(remote);
         Path local = baseLocation.resolve(subPath);
 
-        int retCode = -1;
-        for (int i = 1; i <= tries; i++) {
-            retCode = sshWgetClient != null
-                    ? sshWgetClient.download(remote, tmpFile, local)
-                    : httpClient.download(remote, tmpFile, local);
-            if (retCode >= HttpURLConnection.HTTP_OK) {
-                break;
+        startDueRetries();
+        PendingDownload pending = prefetched.remove(remoteUrl);
+        if (pending == null) {
+            pending = createPending(remoteUrl, remote);
+            if (pending == null) {
+                sqliteState.getFailed().add(remoteUrl);
+                return null;
             }
         }
+        Path tmpFile = pending.tmpFile;
+        DownloadResult result = awaitDownload(pending.result);
+        if (!pending.cached)
+            saveRedirect(remoteUrl, result);
+        int attempt = attempts.merge(remoteUrl, 1, Integer::sum);
+        int retCode = result.code;
+
+        if (retCode != HttpURLConnection.HTTP_OK
+                && retryPolicy.isRetryable(result)
+                && attempt < tries
+                && retryPolicy.tryAcquireRetry()) {
+            discardTemp(remoteUrl, tmpFile);
+            long delay = retryPolicy.getDelayMillis(attempt, result.retryAfterMillis);
+            log.info("Download of {} deferred for {} ms (try {} of {})", remoteUrl, delay, attempt, tries);
+            deferred.add(new DeferredDownload(remoteUrl, remote, delay));
+            deferredUrls.add(remoteUrl);
+            return null;
+        }
+        attempts.remove(remoteUrl);
 
         if (retCode != HttpURLConnection.HTTP_OK) {
-            String errCodeFileName = "err" + (retCode > 0 ? retCode : "NO_RESP") + ".png";
+            discardTemp(remoteUrl, tmpFile);
+            httpClient.discardPartial(remote);
+            if (retCode < 0) {
+                retCode = DownloadResult.NO_RESPONSE;
+            }
+            if (inlineErrorImages) {
+                String dataUri = errorImagesGenerator.getDataUri(retCode);
+                sqliteState.getConverted().put(remoteUrl, dataUri);
+                return dataUri;
+            }
+            String errCodeFileName = ErrorImagesGenerator.getFileName(retCode);
             String errCodeEscaped = RESOURCES_PATH_NAME + "/" + errCodeFileName;
             if (sqliteState.getErrCodesImages().contains(retCode)) {
                 sqliteState.getConverted().put(remoteUrl, errCodeEscaped);
                 return errCodeEscaped;
             }
-            String renderText = "ERR " + (retCode > 0 ? retCode : "NO RESP");
             try {
-                log.warn("Generating error message for {}", errCodeEscaped);
-                errorImagesGenerator.generateImageFromText(renderText, baseLocation.resolve(errCodeFileName));
+                log.warn("Writing error message image {}", errCodeEscaped);
+                if (pack != null) {
+                    pack.add(errCodeFileName, errorImagesGenerator.getImage(retCode));
+                } else {
+                    errorImagesGenerator.writeImage(retCode, baseLocation.resolve(errCodeFileName));
+                }
                 sqliteState.getConverted().put(remoteUrl, errCodeEscaped);
                 sqliteState.getErrCodesImages().add(retCode);
                 return errCodeEscaped;
             } catch (Exception err) {
-                log.warn("Unable to generate error message image: {}", err.getMessage());
+                log.warn("Unable to write error message image: {}", err.getMessage());
                 sqliteState.getFailed().add(remoteUrl);
                 return null;
             }
+        } else if (result.existing) {
+            return reuseExisting(remoteUrl, tmpFile, subPath, result);
         } else {
-            String md5sum = generateMD5Hash(tmpFile);
-            if (md5sum != null && sqliteState.getUrlFileHashes().containsKey(md5sum)) {
+            String md5sum = generateMD5Hash(md5, tmpFile);
+            sqliteState.getJournal().markDownloaded(remoteUrl, owner, md5sum);
+            if (contentCache != null && md5sum != null && !pending.cached)
+                contentCache.put(remoteUrl, md5sum, tmpFile);
+            boolean hashExists = md5sum != null && sqliteState.getUrlFileHashes().containsKey(md5sum);
+            Metrics.counter("resdownloader_dedup_lookups_total", "result", hashExists ? "hit" : "miss").increment();
+            if (hashExists) {
                 String alreadyExistsEscaped = sqliteState.getUrlFileHashes().get(md5sum);
-                log.info("File already present in another link: {}", alreadyExistsEscaped);
+                log.debug("File already present in another link: {}", alreadyExistsEscaped);
+                deleteSilent(tmpFile);
                 if (alreadyExistsEscaped != null)
                     sqliteState.getConverted().put(remoteUrl, alreadyExistsEscaped);
-                return alreadyExistsEscaped;
+                sqliteState.getJournal().remove(remoteUrl, owner);
+                return inlineResources.resolve(alreadyExistsEscaped);
+            }
+            if (md5sum != null && isInlined(tmpFile)) {
+                try {
+                    String reference = inlineResources.store(md5sum, subPath, tmpFile);
+                    deleteSilent(tmpFile);
+                    sqliteState.getConverted().put(remoteUrl, reference);
+                    sqliteState.getUrlFileHashes().put(md5sum, reference);
+                    sqliteState.getJournal().remove(remoteUrl, owner);
+                    return inlineResources.resolve(reference);
+                } catch (IOException err) {
+                    log.warn("Unable to inline {}, saving as file: {}", remoteUrl, err.getMessage());
+                }
             }
             try {
-                createDirectoriesSilent(local.getParent());
+                if (pack == null)
+                    createDirectoriesSilent(local.getParent());
             } catch (RuntimeException err) {
                 log.error("Unable to create directory {}: {}",
                         local.getParent(), err.getMessage());
+                discardTemp(remoteUrl, tmpFile);
                 sqliteState.getFailed().add(remoteUrl);
                 return null;
             }
             try {
-                Files.move(tmpFile, local,
-                        StandardCopyOption.REPLACE_EXISTING);
+                awaitOptimized(subPath);
+                storeResource(tmpFile, subPath);
                 String escaped = RESOURCES_PATH_NAME + "/" + subPath;
                 sqliteState.getConverted().put(remoteUrl, escaped);
-                if (md5sum != null)
+                if (md5sum != null) {
                     sqliteState.getUrlFileHashes().put(md5sum, escaped);
+                    recordLocalFile(subPath, md5sum, result);
+                }
+                startOptimization(subPath);
+                sqliteState.getJournal().remove(remoteUrl, owner);
                 return escaped;
             } catch (IOException err) {
                 log.error("Unable to move file to end destination {}: {}",
                         local, err.getMessage());
+                discardTemp(remoteUrl, tmpFile);
                 sqliteState.getFailed().add(remoteUrl);
                 return null;
             }
         }
     }
 
+    /**
+     * Saves url as file already at its local path, nothing was written to temp file. Hash of the file is taken
+     * from its record while size and modification time match, so populated resources directory is not read again.
+     */
+    @Nullable
+    private String reuseExisting(final String remoteUrl,
+                                 final Path tmpFile,
+                                 final String subPath,
+                                 final DownloadResult result) {
+        discardTemp(remoteUrl, tmpFile);
+        awaitOptimized(subPath);
+        String md5sum = getLocalMd5(subPath);
+        if (md5sum == null) {
+            sqliteState.getFailed().add(remoteUrl);
+            return null;
+        }
+        if (result.etag != null || result.lastModified != null)
+            recordLocalFile(subPath, md5sum, result);
+        String escaped = RESOURCES_PATH_NAME + "/" + subPath;
+        String alreadyExistsEscaped = sqliteState.getUrlFileHashes().get(md5sum);
+        if (alreadyExistsEscaped != null && !alreadyExistsEscaped.equals(escaped)) {
+            log.debug("File already present in another link: {}", alreadyExistsEscaped);
+            sqliteState.getConverted().put(remoteUrl, alreadyExistsEscaped);
+            return inlineResources.resolve(alreadyExistsEscaped);
+        }
+        sqliteState.getConverted().put(remoteUrl, escaped);
+        if (alreadyExistsEscaped == null)
+            sqliteState.getUrlFileHashes().put(md5sum, escaped);
+        return escaped;
+    }
+
+    /**
+     * @return MD5 hash of file at local path, from its record if size and modification time did not change
+     */
+    @Nullable
+    private String getLocalMd5(final String subPath) {
+        Path local = baseLocation.resolve(subPath);
+        long size;
+        long modified;
+        try {
+            size = Files.size(local);
+            modified = Files.getLastModifiedTime(local).toMillis();
+        } catch (IOException err) {
+            log.warn("Unable to read attributes of {}: {}", local, err.getMessage());
+            return null;
+        }
+        SqliteLocalFiles.Entry record = sqliteState.getLocalFiles().get(subPath);
+        if (record != null && record.isSameFile(size, modified)) {
+            Metrics.counter("resdownloader_existing_files_total", "check", "metadata").increment();
+            return record.md5;
+        }
+        Metrics.counter("resdownloader_existing_files_total", "check", "hash").increment();
+        String md5sum = generateMD5Hash(md5, local);
+        if (md5sum != null)
+            sqliteState.getLocalFiles().put(subPath, new SqliteLocalFiles.Entry(size, modified, md5sum));
+        return md5sum;
+    }
+
+    /**
+     * Remembers size, modification time and hash of resource just stored as file, with validators of response.
+     */
+    private void recordLocalFile(final String subPath, final String md5sum, final DownloadResult result) {
+        if (pack != null)
+            return;
+        Path local = baseLocation.resolve(subPath);
+        try {
+            sqliteState.getLocalFiles().put(subPath, new SqliteLocalFiles.Entry(Files.size(local),
+                    Files.getLastModifiedTime(local).toMillis(), md5sum, result.etag, result.lastModified));
+        } catch (IOException err) {
+            log.warn("Unable to read attributes of {}: {}", local, err.getMessage());
+        }
+    }
+
+    /**
+     * @return record of file at local path, if it has validators and file did not change since it was stored
+     */
+    @Nullable
+    private SqliteLocalFiles.Entry getStoredFile(final String subPath) {
+        if (pack != null || sshWgetClient != null)
+            return null;
+        SqliteLocalFiles.Entry record = sqliteState.getLocalFiles().get(subPath);
+        if (record == null || !record.hasValidator())
+            return null;
+        Path local = baseLocation.resolve(subPath);
+        try {
+            return record.isSameFile(Files.size(local), Files.getLastModifiedTime(local).toMillis()) ? record : null;
+        } catch (IOException err) {
+            // file was removed
+            return null;
+        }
+    }
+
+    private void startOptimization(final String subPath) {
+        if (imageOptimizer == null)
+            return;
+        Path local = baseLocation.resolve(subPath);
+        try {
+            if (!imageOptimizer.isCandidate(Files.size(local)))
+                return;
+            optimizing.put(subPath, imageOptimizer.submit(local, createTempFile()));
+        } catch (IOException err) {
+            log.warn("Unable to optimize {}: {}", local, err.getMessage());
+        }
+    }
+
+    // file at the same path is not replaced while it is optimized
+    private void awaitOptimized(final String subPath) {
+        Future<ImageOptimizer.Result> future = optimizing.remove(subPath);
+        if (future != null)
+            saveOptimized(subPath, future);
+    }
+
+    /**
+     * Records optimized file. Hash of downloaded content stays in file hashes, so the same download is still
+     * deduplicated to optimized file, hash of optimized content is added for files already at local path.
+     */
+    private void saveOptimized(final String subPath, final Future<ImageOptimizer.Result> future) {
+        ImageOptimizer.Result result;
+        try {
+            result = future.get();
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException err) {
+            log.warn("Unable to optimize {}: {}", subPath, err.getCause().getMessage());
+            return;
+        }
+        if (result == null)
+            return;
+        // optimized file stands for the same server content, so it is still requested conditionally
+        SqliteLocalFiles.Entry stored = sqliteState.getLocalFiles().get(subPath);
+        sqliteState.getLocalFiles().put(subPath, new SqliteLocalFiles.Entry(result.size, result.modified, result.md5,
+                stored != null ? stored.etag : null, stored != null ? stored.lastModified : null));
+        if (!sqliteState.getUrlFileHashes().containsKey(result.md5))
+            sqliteState.getUrlFileHashes().put(result.md5, RESOURCES_PATH_NAME + "/" + subPath);
+    }
+
     @Nullable
     private String replaceToRevert(String localUrl) {
-        if (localUrl.startsWith("resources/err"))
+        String value = localUrl;
+        if (localUrl.startsWith("data:")) {
+            // error images and data URIs of original page are not in the table
+            value = inlineResources.getReference(localUrl);
+            if (value == null)
+                return localUrl;
+        } else if (localUrl.startsWith("resources/err")) {
             return localUrl;
-        String url = sqliteState.getConverted().getByValue(localUrl);
+        }
+        String url = sqliteState.getConverted().getByValue(value);
         return url != null ? url : localUrl;
         //return reverseConversion.getOrDefault(localUrl, localUrl);
     }
@@ -258,6 +607,275 @@ public class ResourceProcessor
         return revertMode ? replaceToRevert(url) : replaceToLocal(url);
     }
 
+    /**
+     * Relative, schemeless, data and other urls the client can not fetch fail the same way on every try.
+     * They are failed at once, without retries from the budget or breaker failures of an empty host.
+     */
+    private boolean isDownloadable(@NotNull final URI remote) {
+        String scheme = remote.getScheme();
+        if (scheme == null || remote.getHost() == null)
+            return false;
+        scheme = scheme.toLowerCase(Locale.ROOT);
+        return scheme.equals("http") || scheme.equals("https")
+                || (sshWgetClient != null && scheme.equals("ftp"));
+    }
+
+    @NotNull
+    private String getLocalSubPath(@NotNull final URI remote) {
+        return (remote.getHost() != null ? remote.getHost() : "")
+                + (remote.getPath() != null ? remote.getPath() : "")
+                .replaceAll("[^a-zA-Z0-9а-яА-Я%_.\\-\\\\/]", "_");
+    }
+
+    private boolean startPending(final String url, final URI remote) {
+        PendingDownload pending = createPending(url, remote);
+        if (pending == null)
+            return false;
+        prefetched.put(url, pending);
+        return true;
+    }
+
+    /**
+     * Starts download into unique temp file, registered in journal until result is saved.
+     */
+    @Nullable
+    private PendingDownload createPending(final String url, final URI remote) {
+        Path pendingFile;
+        try {
+            pendingFile = createTempFile();
+        } catch (IOException err) {
+            log.warn("Unable to create temp file in {}: {}", baseLocation, err.getMessage());
+            return null;
+        }
+        String subPath = getLocalSubPath(remote);
+        sqliteState.getJournal().begin(url, pendingFile.getFileName().toString(), subPath, owner);
+        if (contentCache != null && contentCache.materialize(url, pendingFile)) {
+            log.debug("Taken from content cache: {}", url);
+            return new PendingDownload(pendingFile, CompletableFuture.completedFuture(
+                    new DownloadResult(HttpURLConnection.HTTP_OK, 0L, 0L, 0L)), true);
+        }
+        Path local = baseLocation.resolve(subPath);
+        return new PendingDownload(pendingFile, startDownload(remote, pendingFile, local, getStoredFile(subPath)), false);
+    }
+
+    // unlike Files.createTempFile, keeps default permissions for the file moved into place later
+    private Path createTempFile() throws IOException {
+        while (true) {
+            Path file = baseLocation.resolve(TEMP_FILE_PREFIX + owner + TEMP_FILE_OWNER_SEPARATOR
+                    + Long.toUnsignedString(ThreadLocalRandom.current().nextLong()) + TEMP_FILE_SUFFIX);
+            try {
+                return Files.createFile(file);
+            } catch (FileAlreadyExistsException ignore) {
+            }
+        }
+    }
+
+    private void discardTemp(final String url, final Path tmpFile) {
+        deleteSilent(tmpFile);
+        sqliteState.getJournal().remove(url, owner);
+    }
+
+    /**
+     * @return owner id in name of temp file, null for temp files of versions without owner
+     */
+    @Nullable
+    static String getTempFileOwner(@NotNull final String fileName) {
+        int separator = fileName.lastIndexOf(TEMP_FILE_OWNER_SEPARATOR);
+        return separator > TEMP_FILE_PREFIX.length()
+                ? fileName.substring(TEMP_FILE_PREFIX.length(), separator)
+                : null;
+    }
+
+    private boolean isInlined(final Path tmpFile) {
+        try {
+            return inlineThreshold > 0L && Files.size(tmpFile) <= inlineThreshold;
+        } catch (IOException err) {
+            return false;
+        }
+    }
+
+    private void storeResource(final Path tmpFile, final String subPath) throws IOException {
+        if (pack != null) {
+            pack.add(subPath, tmpFile);
+            deleteSilent(tmpFile);
+        } else {
+            moveIntoPlace(tmpFile, baseLocation.resolve(subPath));
+        }
+    }
+
+    private void moveIntoPlace(final Path tmpFile, final Path local) throws IOException {
+        try {
+            Files.move(tmpFile, local, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException err) {
+            Files.move(tmpFile, local, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Reconciles downloads interrupted by runs that exited: downloaded files are moved into place
+     * and saved as converted, unfinished ones are deleted and will be downloaded (or resumed) again.
+     * Entries and temp files of runs still holding their lock of directory are left to them.
+     */
+    private void recoverJournal() {
+        SqliteJournal journal = sqliteState.getJournal();
+        int completed = 0;
+        int discarded = 0;
+        for (SqliteJournal.Entry entry : journal.getEntries()) {
+            if (!dirLocks.isAbandoned(baseLocation, entry.owner))
+                continue;
+            Path tempFile = baseLocation.resolve(entry.tempFile);
+            if (entry.isDownloaded() && completeRecovered(entry, tempFile)) {
+                completed++;
+            } else {
+                deleteSilent(tempFile);
+                discarded++;
+            }
+            journal.remove(entry.url, entry.owner);
+        }
+        // temp files created right before the crash, without journal entry yet
+        try (DirectoryStream<Path> orphans = Files.newDirectoryStream(baseLocation, TEMP_FILE_PREFIX + "*" + TEMP_FILE_SUFFIX)) {
+            for (Path orphan : orphans) {
+                if (!dirLocks.isAbandoned(baseLocation, getTempFileOwner(orphan.getFileName().toString())))
+                    continue;
+                deleteSilent(orphan);
+                discarded++;
+            }
+        } catch (IOException err) {
+            log.warn("Unable to list temp files in {}: {}", baseLocation, err.getMessage());
+        }
+        deleteSilent(baseLocation.resolve(TEMP_FILE_NAME));
+        dirLocks.removeAbandoned(baseLocation);
+        Metrics.counter("resdownloader_journal_recovered_total", "result", "completed").add(completed);
+        Metrics.counter("resdownloader_journal_recovered_total", "result", "discarded").add(discarded);
+        if (completed > 0 || discarded > 0) {
+            log.info("Recovered interrupted downloads in {}: {} completed, {} discarded",
+                    baseLocation, completed, discarded);
+        }
+    }
+
+    private boolean completeRecovered(final SqliteJournal.Entry entry, final Path tempFile) {
+        String escaped = RESOURCES_PATH_NAME + "/" + entry.localPath;
+        String sameHash = entry.md5 != null ? sqliteState.getUrlFileHashes().get(entry.md5) : null;
+        if (sameHash != null && !sameHash.equals(escaped)) {
+            deleteSilent(tempFile);
+            sqliteState.getConverted().put(entry.url, sameHash);
+            return true;
+        }
+        Path local = baseLocation.resolve(entry.localPath);
+        try {
+            if (Files.exists(tempFile)) {
+                if (pack == null)
+                    createDirectoriesSilent(local.getParent());
+                storeResource(tempFile, entry.localPath);
+            } else if (pack != null ? !pack.contains(entry.localPath) : Files.notExists(local)) {
+                return false;
+            }
+        } catch (IOException | RuntimeException err) {
+            log.warn("Unable to recover {}: {}", local, err.getMessage());
+            return false;
+        }
+        // packed entry is verified by CRC of ZIP readers, file moved before the crash keeps its record
+        if (pack == null && entry.md5 != null && !entry.md5.equals(getLocalMd5(entry.localPath)))
+            return false;
+        sqliteState.getConverted().put(entry.url, escaped);
+        if (entry.md5 != null)
+            sqliteState.getUrlFileHashes().put(entry.md5, escaped);
+        return true;
+    }
+
+    private void startDueRetries() {
+        DeferredDownload due;
+        while ((due = deferred.poll()) != null) {
+            startRetry(due);
+        }
+    }
+
+    private void startRetry(final DeferredDownload retry) {
+        if (!startPending(retry.url, retry.remote)) {
+            deferredUrls.remove(retry.url);
+            sqliteState.getFailed().add(retry.url);
+        }
+    }
+
+    /**
+     * @return not expired final location of redirects of url, known from previous downloads
+     */
+    @Nullable
+    private URI getRedirect(final URI remote) {
+        if (redirectTtl <= 0L || sshWgetClient != null)
+            return null;
+        SqliteRedirects.Entry redirect = sqliteState.getRedirects().get(remote.toString());
+        boolean hit = redirect != null && !redirect.isExpired(System.currentTimeMillis());
+        Metrics.counter("resdownloader_redirect_cache_lookups_total", "result", hit ? "hit" : "miss").increment();
+        if (!hit)
+            return null;
+        try {
+            return new URI(redirect.location);
+        } catch (URISyntaxException err) {
+            return null;
+        }
+    }
+
+    private void saveRedirect(final String url, final DownloadResult result) {
+        if (redirectTtl <= 0L)
+            return;
+        if (result.location != null && result.redirects > 0) {
+            sqliteState.getRedirects().put(url, new SqliteRedirects.Entry(result.location.toString(),
+                    result.redirects, System.currentTimeMillis() + redirectTtl));
+        } else if (result.location == null && sqliteState.getRedirects().get(url) != null) {
+            // served by url itself or known location failed
+            sqliteState.getRedirects().remove(url);
+        }
+    }
+
+    @NotNull
+    private Future<DownloadResult> startDownload(final URI remote,
+                                                 final Path tmpFile,
+                                                 final Path local,
+                                                 @Nullable final SqliteLocalFiles.Entry stored) {
+        retryPolicy.onRequest();
+        final String host = NamesUtils.getHostKey(remote);
+        usedHosts.add(host);
+        final URI location = getRedirect(remote);
+        return scheduler.submit(remote, () -> {
+            if (!circuitBreaker.allowRequest(host)) {
+                log.info("Skipping {}, host {} does not respond", remote, host);
+                return DownloadResult.circuitOpen();
+            }
+            DownloadResult result = DownloadResult.noResponse();
+            try {
+                result = sshWgetClient != null
+                        ? sshWgetClient.download(remote, tmpFile, local)
+                        : httpClient.download(remote, location, tmpFile, local, stored);
+                return result;
+            } finally {
+                circuitBreaker.onResult(host, result);
+            }
+        });
+    }
+
+    @NotNull
+    private DownloadResult awaitDownload(@NotNull final Future<DownloadResult> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+            return DownloadResult.noResponse();
+        } catch (ExecutionException err) {
+            if (err.getCause() instanceof RuntimeException)
+                throw (RuntimeException) err.getCause();
+            throw new RuntimeException(err.getCause());
+        }
+    }
+
+    private void deleteSilent(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException err) {
+            log.warn("Unable to delete temp file {}: {}", file, err.getMessage());
+        }
+    }
+
     private void createDirectoriesSilent(Path dir) {
         try {
             if (!Files.exists(dir))
@@ -268,7 +886,8 @@ public class ResourceProcessor
     }
 
     @Nullable
-    private String generateMD5Hash(Path inputFile) {
+    static String generateMD5Hash(MessageDigest md5, Path inputFile) {
+        long started = System.nanoTime();
         md5.reset();
         try (InputStream bufIo = Files.newInputStream(inputFile)) {
             int readied;
@@ -280,6 +899,45 @@ public class ResourceProcessor
         } catch (IOException err) {
             log.warn("Unable to calc MD5 sum for temp file: {}", err.getMessage());
             return null;
+        } finally {
+            Metrics.histogram("resdownloader_md5_seconds").observeSince(started);
+        }
+    }
+
+    private static class PendingDownload {
+
+        private final Path tmpFile;
+        private final Future<DownloadResult> result;
+        private final boolean cached;
+
+        private PendingDownload(Path tmpFile, Future<DownloadResult> result, boolean cached) {
+            this.tmpFile = tmpFile;
+            this.result = result;
+            this.cached = cached;
+        }
+    }
+
+    private static class DeferredDownload
+            implements Delayed {
+
+        private final String url;
+        private final URI remote;
+        private final long dueAt;
+
+        private DeferredDownload(String url, URI remote, long delayMillis) {
+            this.url = url;
+            this.remote = remote;
+            this.dueAt = System.currentTimeMillis() + delayMillis;
+        }
+
+        @Override
+        public long getDelay(@NotNull TimeUnit unit) {
+            return unit.convert(dueAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(@NotNull Delayed other) {
+            return Long.compare(getDelay(TimeUnit.MILLISECONDS), other.getDelay(TimeUnit.MILLISECONDS));
         }
     }
 }
@@ -0,0 +1,69 @@
+package downloader;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+public class RetryPolicy {
+
+    private static final Logger log = LogManager.getLogger(RetryPolicy.class.getSimpleName());
+    private static final long MAX_DELAY_MILLIS = 120_000L;
+    private static final int MIN_RETRIES_RESERVE = 10;
+
+    private final long baseDelayMillis;
+    private final double budgetRatio;
+    private long requests = 0L;
+    private long retries = 0L;
+    private boolean exhaustedReported = false;
+
+    public RetryPolicy(final long baseDelayMillis, final int budgetPercent) {
+        this.baseDelayMillis = baseDelayMillis;
+        this.budgetRatio = budgetPercent / 100.0;
+    }
+
+    public boolean isRetryable(@NotNull final DownloadResult result) {
+        // document would wait for the retry longer than for any backoff, e.g. Retry-After of a day
+        if (result.retryAfterMillis > MAX_DELAY_MILLIS)
+            return false;
+        switch (result.code) {
+            case DownloadResult.NO_RESPONSE:
+            case DownloadResult.DEADLINE_EXCEEDED:
+            case DownloadResult.TOO_SLOW:
+            case 408:
+            case 425:
+            case 429:
+            case 500:
+            case 502:
+            case 503:
+            case 504:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public synchronized void onRequest() {
+        requests++;
+    }
+
+    public synchronized boolean tryAcquireRetry() {
+        if (retries < MIN_RETRIES_RESERVE + budgetRatio * requests) {
+            retries++;
+            return true;
+        }
+        if (!exhaustedReported) {
+            log.warn("Retry budget exhausted: {} retries for {} requests", retries, requests);
+            exhaustedReported = true;
+        }
+        return false;
+    }
+
+    public long getDelayMillis(final int attempt, final long retryAfterMillis) {
+        long delay = Math.min(MAX_DELAY_MILLIS, baseDelayMillis << Math.min(attempt - 1, 16));
+        // equal jitter: half of delay is fixed, other half is random
+        long jittered = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        return Math.max(jittered, Math.min(retryAfterMillis, MAX_DELAY_MILLIS));
+    }
+}
@@ -17,14 +17,16 @@ import java.io.OutputStream;
 import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class SSHWgetClient
         implements Closeable, AutoCloseable {
 
     private final JSch jSch = new JSch();
-    private Session session = null;
-    private boolean closed = false;
+    private volatile Session session = null;
+    private volatile boolean closed = false;
     private final String hostname;
     private final int port;
     private final String user;
@@ -32,8 +34,20 @@ public class SSHWgetClient
     private final boolean hasKeyFile;
     private final String connectionString;
     private final int timeout;
+    private final TransferLimits limits;
     private final boolean ignoreSSL;
+    private final boolean resume;
     private static final Logger log = LogManager.getLogger(SSHWgetClient.class.getSimpleName());
+    private static final int DEADLINE_EXIT_CODE = 124;
+    // lock of remote part file left by killed client is taken over after this time
+    private static final int STALE_LOCK_MINUTES = 60;
+    private static final Pattern WGET_ERROR_CODE = Pattern.compile("ERROR (\\d{3}):");
+    private static final Pattern WGET_RETRY_AFTER = Pattern.compile("^\\s*Retry-After:\\s*(.+)$",
+            Pattern.MULTILINE | Pattern.CASE_INSENSITIVE);
+    private static final Pattern WGET_ETAG = Pattern.compile("^\\s*ETag:\\s*(.+?)\\s*$",
+            Pattern.MULTILINE | Pattern.CASE_INSENSITIVE);
+    private static final Pattern WGET_LAST_MODIFIED = Pattern.compile("^\\s*Last-Modified:\\s*(.+?)\\s*$",
+            Pattern.MULTILINE | Pattern.CASE_INSENSITIVE);
 
     public SSHWgetClient(@NotNull final String hostname,
                          final int port,
@@ -41,7 +55,9 @@ public class SSHWgetClient
                          @Nullable final String password,
                          @Nullable final Path keyFile,
                          final int timeout,
-                         final boolean ignoreSsl) throws Exception {
+                         @NotNull final TransferLimits limits,
+                         final boolean ignoreSsl,
+                         final boolean resume) throws Exception {
 
         this.hostname = hostname;
         this.port = port;
@@ -49,16 +65,22 @@ public class SSHWgetClient
         this.password = password;
         this.hasKeyFile = keyFile != null;
         this.timeout = timeout;
+        this.limits = limits;
         this.ignoreSSL = ignoreSsl;
+        this.resume = resume;
         this.connectionString = String.format("%s@%s:%d", user, hostname, port);
         log.info("Using SSH client for downloading, host: {}}", connectionString);
         if (hasKeyFile) {
             jSch.addIdentity(keyFile.toString(), password);
         }
-        connectReconnect();
+        connectReconnect(null);
     }
 
-    private void connectReconnect() {
+    private synchronized void connectReconnect(@Nullable final Session failed) {
+        if (failed != null && session != failed) {
+            // another thread already reconnected
+            return;
+        }
         if (session != null) {
             log.info("Disconnecting from {}", connectionString);
             try {
@@ -103,8 +125,9 @@ public class SSHWgetClient
     private @NotNull ExecResult executeCommand(final @NotNull String command) {
         while (!closed) {
             ChannelExec exec = null;
+            Session current = session;
             try {
-                exec = (ChannelExec) session.openChannel("exec");
+                exec = (ChannelExec) current.openChannel("exec");
                 ByteArrayOutputStream stdErr = new ByteArrayOutputStream();
                 ByteArrayOutputStream stdOut = new ByteArrayOutputStream();
                 exec.setOutputStream(stdOut);
@@ -122,7 +145,7 @@ public class SSHWgetClient
                 return new ExecResult(stdOut.toByteArray(), stdErr.toByteArray(), exec.getExitStatus());
             } catch (JSchException cerr) {
                 log.error("Unable to execute command \"{}\" on {}: {}", command, connectionString, cerr.getMessage());
-                connectReconnect();
+                connectReconnect(current);
             } finally {
                 try {
                     if (exec != null) {
@@ -135,30 +158,63 @@ public class SSHWgetClient
         return ExecResult.SSH_CLOSED_RESULT;
     }
 
-    int download(URI inputUrl, Path tempFile, Path outputFile) {
-        log.info("Querying " + inputUrl);
+    DownloadResult download(URI inputUrl, Path tempFile, Path outputFile) {
+        log.debug("Querying {}", inputUrl);
+        String partPath = null;
         try {
-            String mktempCommand = "mktemp -p /tmp resdownloader_XXXXXXXXXXXXX";
-            ExecResult mktemp = executeCommand(mktempCommand);
-            String remoteTempPath = mktemp.getStdoutString().replaceAll("(\r\n|\r|\n)", "");
-            log.info(mktempCommand);
-            log.info(remoteTempPath);
-            String mktempStderr = mktemp.getStderrString();
-            if (mktempStderr.length() > 0) {
-                log.warn(mktempStderr);
+            String remoteTempPath = null;
+            if (resume) {
+                // stable name per local file and url, so "wget -c" continues it on the next try and run
+                String part = "/tmp/resdownloader_"
+                        + PartialDownloads.sha1Hex(outputFile.toAbsolutePath() + "\n" + inputUrl) + ".part";
+                if (lockPart(part)) {
+                    partPath = part;
+                    remoteTempPath = part;
+                } else {
+                    log.debug("Partial download of {} is locked by another process", inputUrl);
+                }
             }
-            if (mktemp.hasBadExitCode()) {
-                throw new RuntimeException("\"" + mktempCommand + "\" exited with non-zero code");
-            } else if (mktemp.isConnectionClosed()) {
-                throw new RuntimeException("SSH connection is closed");
+            if (remoteTempPath == null) {
+                String mktempCommand = "mktemp -p /tmp resdownloader_XXXXXXXXXXXXX";
+                ExecResult mktemp = executeCommand(mktempCommand);
+                remoteTempPath = mktemp.getStdoutString().replaceAll("(\r\n|\r|\n)", "");
+                log.debug(mktempCommand);
+                log.debug(remoteTempPath);
+                String mktempStderr = mktemp.getStderrString();
+                if (mktempStderr.length() > 0) {
+                    log.warn(mktempStderr);
+                }
+                if (mktemp.hasBadExitCode()) {
+                    throw new RuntimeException("\"" + mktempCommand + "\" exited with non-zero code");
+                } else if (mktemp.isConnectionClosed()) {
+                    throw new RuntimeException("SSH connection is closed");
+                }
             }
+            boolean resumable = partPath != null;
+            // part file without validator can not be checked against the server, it is dropped
+            String previous = resumable ? readPartValidator(partPath) : null;
 
-            StringBuilder commandBuilder = new StringBuilder()
-                    .append("wget -O ")
+            StringBuilder commandBuilder = new StringBuilder();
+            if (limits.deadlineMillis > 0L) {
+                // wget itself has no total limit, coreutils timeout kills it and exits with DEADLINE_EXIT_CODE
+                commandBuilder.append("timeout ")
+                        .append(TimeUnit.MILLISECONDS.toSeconds(limits.deadlineMillis))
+                        .append(' ');
+            }
+            commandBuilder.append("wget -O ")
                     .append(remoteTempPath)
                     .append(" --timeout=")
                     .append(timeout)
-                    .append(" --tries=1 ");
+                    .append(" --connect-timeout=")
+                    .append(TimeUnit.MILLISECONDS.toSeconds(limits.connectTimeoutMillis))
+                    // wget has one read timeout for response head and body
+                    .append(" --read-timeout=")
+                    .append(TimeUnit.MILLISECONDS.toSeconds(
+                            Math.max(limits.ttfbTimeoutMillis, limits.idleTimeoutMillis)))
+                    .append(" --tries=1 --server-response ");
+            if (resumable) {
+                commandBuilder.append("-c ");
+            }
             if (ignoreSSL) {
                 commandBuilder.append("--no-check-certificate ");
             }
@@ -166,28 +222,64 @@ public class SSHWgetClient
                     .append(inputUrl.toString())
                     .append("'");
             String wgetExecComand = commandBuilder.toString();
-            log.info(wgetExecComand);
+            log.debug(wgetExecComand);
             ExecResult wgetResult = executeCommand(commandBuilder.toString());
             if (wgetResult.isConnectionClosed()) {
                 throw new RuntimeException("SSH connection is closed");
             }
             String wgetStderrOutput = wgetResult.getStderrString();
-            log.info(wgetStderrOutput);
+            log.debug(wgetStderrOutput);
+            boolean wgetOk = wgetResult.hasGoodExitCode()
+                    && (wgetStderrOutput.contains("200 OK")
+                    || wgetStderrOutput.contains("206 Partial Content")
+                    || wgetStderrOutput.contains("fully retrieved"));
+            Matcher errorMatcher = WGET_ERROR_CODE.matcher(wgetStderrOutput);
+            boolean httpError = errorMatcher.find();
+
+            String validator = resumable ? getValidator(wgetStderrOutput) : null;
+            // 200 restarts the part with the whole body, it is a fresh copy. Appended tail and part found complete
+            // must belong to the same content as the kept head, 206 without validator can not be checked
+            boolean partialContent = wgetStderrOutput.contains("206 Partial Content");
+            boolean reusedPart = partialContent || wgetStderrOutput.contains("fully retrieved");
+            boolean changed = previous != null && reusedPart
+                    && (validator != null ? !previous.equals(validator) : partialContent);
+            if (changed) {
+                log.info("Resource {} changed since partial download, downloading it again", inputUrl);
+                String rmCommand = "rm -f -- \"" + remoteTempPath + "\" \"" + remoteTempPath + ".validator\"";
+                log.debug(rmCommand);
+                ExecResult rmPart = executeCommand(rmCommand);
+                if (rmPart.isConnectionClosed()) {
+                    throw new RuntimeException("SSH connection is closed");
+                } else if (rmPart.hasBadExitCode()) {
+                    throw new RuntimeException("rm exited with non-zero code");
+                }
+                unlockPart(partPath);
+                partPath = null;
+                return download(inputUrl, tempFile, outputFile);
+            }
 
             String catCommand = "cat \"" + remoteTempPath + "\"";
-            log.info(catCommand);
+            log.debug(catCommand);
             ExecResult catTmp = executeCommand(catCommand);
             String catStderr = catTmp.getStderrString();
             if (catStderr.length() > 0) {
                 log.warn(catStderr);
             }
 
-            String rmCommand = "rm -f -- \"" + remoteTempPath + "\"";
-            log.info(rmCommand);
-            ExecResult rmTmp = executeCommand(rmCommand);
-            String rmStderr = rmTmp.getStderrString();
-            if (rmStderr.length() > 0) {
-                log.warn(rmStderr);
+            // interrupted transfer is kept on remote host for the next try, if it can be validated then
+            String keptValidator = validator != null ? validator : previous;
+            boolean keepRemote = resumable && !wgetOk && !httpError && keptValidator != null
+                    && writePartValidator(remoteTempPath, keptValidator);
+            ExecResult rmTmp = null;
+            if (!keepRemote) {
+                String rmCommand = "rm -f -- \"" + remoteTempPath + "\""
+                        + (resumable ? " \"" + remoteTempPath + ".validator\"" : "");
+                log.debug(rmCommand);
+                rmTmp = executeCommand(rmCommand);
+                String rmStderr = rmTmp.getStderrString();
+                if (rmStderr.length() > 0) {
+                    log.warn(rmStderr);
+                }
             }
 
             if (catTmp.hasBadExitCode()) {
@@ -196,49 +288,120 @@ public class SSHWgetClient
                 throw new RuntimeException("SSH connection is closed");
             }
 
-            if (rmTmp.hasBadExitCode()) {
+            if (rmTmp != null && rmTmp.hasBadExitCode()) {
                 log.warn("rm exited with non-zero code");
-            } else if (rmTmp.isConnectionClosed()) {
+            } else if (rmTmp != null && rmTmp.isConnectionClosed()) {
                 throw new RuntimeException("SSH connection is closed");
             }
 
-            if (wgetResult.hasGoodExitCode() && wgetStderrOutput.contains("200 OK")) {
-                log.info("HTTP OK");
+            if (wgetOk) {
+                log.debug("HTTP OK");
                 if (Files.exists(outputFile)) {
                     long fileSize = Files.size(outputFile);
                     long contentLength = catTmp.stdout.length;
                     if (fileSize == contentLength) {
-                        log.info("File already exists, size match");
-                        Files.copy(outputFile, tempFile, StandardCopyOption.REPLACE_EXISTING);
-                        return 200;
+                        log.debug("File already exists, size match");
+                        return DownloadResult.existing(catTmp.stdout.length, 0L);
                     }
                 }
-                log.info("Writing to file");
+                log.debug("Writing to file");
                 try (OutputStream bufOut = Files.newOutputStream(tempFile)) {
                     bufOut.write(catTmp.stdout);
                 }
-                log.info("Wrote OK");
-                return 200;
+                log.debug("Wrote OK");
+                return new DownloadResult(200, catTmp.stdout.length, 0L, 0L);
             } else {
-                if (wgetStderrOutput.contains("404: Not Found")) {
-                    return 404;
-                } else if (wgetStderrOutput.contains("403: Forbidden")) {
-                    return 403;
-                } else if (wgetStderrOutput.contains("503: Service Temporarily Unavailable")) {
-                    return 503;
-                } else if (wgetStderrOutput.contains("451: Unavailable For Legal Reasons")) {
-                    return 451;
-                } else {
-                    return -1;
+                long retryAfter = 0L;
+                Matcher retryAfterMatcher = WGET_RETRY_AFTER.matcher(wgetStderrOutput);
+                if (retryAfterMatcher.find()) {
+                    retryAfter = DownloadResult.parseRetryAfter(retryAfterMatcher.group(1));
+                }
+                int code = httpError ? Integer.parseInt(errorMatcher.group(1)) : DownloadResult.NO_RESPONSE;
+                if (!httpError && limits.deadlineMillis > 0L && wgetResult.exitStatus == DEADLINE_EXIT_CODE) {
+                    Metrics.counter("resdownloader_download_aborts_total", "reason", "deadline").increment();
+                    log.warn("Download of {} aborted: deadline", inputUrl);
+                    code = DownloadResult.DEADLINE_EXCEEDED;
                 }
+                return new DownloadResult(code, 0L, 0L, retryAfter);
             }
         } catch (IOException err) {
             log.warn("Unable to download file: " + err.getMessage());
-            return -1;
+            return DownloadResult.noResponse();
         } catch (Exception err) {
             log.error("Connection error: " + err.getMessage());
             throw new RuntimeException(err);
+        } finally {
+            if (partPath != null)
+                unlockPart(partPath);
+        }
+    }
+
+    /**
+     * Lock directory keeps other processes and threads from appending to the same remote part file.
+     *
+     * @return false if part is locked by someone else
+     */
+    private boolean lockPart(@NotNull final String partPath) {
+        String lockPath = partPath + ".lock";
+        String lockCommand = "mkdir \"" + lockPath + "\" 2>/dev/null"
+                + " || { find \"" + lockPath + "\" -maxdepth 0 -mmin +" + STALE_LOCK_MINUTES + " | grep -q ."
+                + " && touch \"" + lockPath + "\"; }";
+        log.debug(lockCommand);
+        ExecResult lock = executeCommand(lockCommand);
+        if (lock.isConnectionClosed())
+            throw new RuntimeException("SSH connection is closed");
+        return lock.hasGoodExitCode();
+    }
+
+    private void unlockPart(@NotNull final String partPath) {
+        String unlockCommand = "rmdir \"" + partPath + ".lock\"";
+        log.debug(unlockCommand);
+        ExecResult unlock = executeCommand(unlockCommand);
+        if (unlock.hasBadExitCode())
+            log.warn("Unable to unlock {} on {}: {}", partPath, connectionString, unlock.getStderrString());
+    }
+
+    /**
+     * @return validator of part file kept by previous try or run, null if there is none and part file is removed
+     */
+    @Nullable
+    private String readPartValidator(@NotNull final String partPath) {
+        String readCommand = "cat \"" + partPath + ".validator\" 2>/dev/null || rm -f -- \"" + partPath + "\"";
+        log.debug(readCommand);
+        ExecResult read = executeCommand(readCommand);
+        if (read.isConnectionClosed())
+            throw new RuntimeException("SSH connection is closed");
+        String validator = read.getStdoutString().trim();
+        return validator.isEmpty() ? null : validator;
+    }
+
+    private boolean writePartValidator(@NotNull final String partPath, @NotNull final String validator) {
+        String writeCommand = "printf '%s' '" + validator.replace("'", "'\\''") + "' > \"" + partPath + ".validator\"";
+        log.debug(writeCommand);
+        ExecResult write = executeCommand(writeCommand);
+        if (write.isConnectionClosed())
+            throw new RuntimeException("SSH connection is closed");
+        return write.hasGoodExitCode();
+    }
+
+    /**
+     * @return strong ETag or Last-Modified date of the last response printed by wget
+     */
+    @Nullable
+    private static String getValidator(@NotNull final String wgetOutput) {
+        String etag = null;
+        Matcher etagMatcher = WGET_ETAG.matcher(wgetOutput);
+        while (etagMatcher.find()) {
+            etag = etagMatcher.group(1);
+        }
+        String lastModified = null;
+        Matcher lastModifiedMatcher = WGET_LAST_MODIFIED.matcher(wgetOutput);
+        while (lastModifiedMatcher.find()) {
+            lastModified = lastModifiedMatcher.group(1);
         }
+        if (etag != null && !etag.startsWith("W/"))
+            return etag;
+        return lastModified;
     }
 
     @Override
@@ -17,6 +17,8 @@ public abstract class SqliteCollection {
     protected final Logger log;
 
     private static final String CHECK_EXISTS_TABLE_QUERY = "select count(1) from sqlite_schema where type = 'table' and name = ?";
+    private static final String TABLE_INFO_QUERY_TEMPLATE = "pragma table_info(`%%`)";
+    private static final String ADD_COLUMN_QUERY_TEMPLATE = "alter table `%%` add column ";
 
     public SqliteCollection(@NotNull final Connection connection,
                             @NotNull final String objectName) {
@@ -25,6 +27,11 @@ public abstract class SqliteCollection {
         this.log = LogManager.getLogger(objectName);
     }
 
+    protected void observe(@NotNull final String operation, final long startedNanos) {
+        Metrics.histogram("resdownloader_sqlite_seconds", "table", objectName, "operation", operation)
+                .observeSince(startedNanos);
+    }
+
     private boolean checkExistsTable() {
         try (PreparedStatement stat = sqlite.prepareStatement(CHECK_EXISTS_TABLE_QUERY)) {
             stat.setString(1, objectName);
@@ -49,8 +56,35 @@ public abstract class SqliteCollection {
         }
     }
 
+    /**
+     * Adds column missing in table created by previous version.
+     *
+     * @return true if column was added, existing rows may need to be updated then
+     */
+    protected boolean addColumn(@NotNull final String column, @NotNull final String definition) {
+        try (PreparedStatement stat = sqlite.prepareStatement(TABLE_INFO_QUERY_TEMPLATE.replace("%%", objectName));
+             ResultSet rs = stat.executeQuery()) {
+            while (rs.next()) {
+                if (column.equals(rs.getString("name")))
+                    return false;
+            }
+        } catch (SQLException err) {
+            log.error(String.format("Unable to read columns of table \"%s\": %s", objectName, err.getMessage()));
+            throw new RuntimeException(err);
+        }
+        String query = ADD_COLUMN_QUERY_TEMPLATE.replace("%%", objectName) + "`" + column + "` " + definition;
+        try (PreparedStatement stat = sqlite.prepareStatement(query)) {
+            stat.executeUpdate();
+            return true;
+        } catch (SQLException err) {
+            log.error(String.format("Unable to add column \"%s\" to table \"%s\": %s", column, objectName, err.getMessage()));
+            throw new RuntimeException(err);
+        }
+    }
+
     protected boolean checkExists(@NotNull final String countQuery,
                                   @NotNull final String value) {
+        long started = System.nanoTime();
         try (PreparedStatement stat = sqlite.prepareStatement(countQuery)) {
             stat.setString(1, value);
             try (ResultSet rs = stat.executeQuery()) {
@@ -59,12 +93,15 @@ public abstract class SqliteCollection {
         } catch (SQLException err) {
             log.error("Unable to check value \"" + value + "\" in table \"" + objectName + "\": " + err.getMessage());
             throw new RuntimeException(err);
+        } finally {
+            observe("select", started);
         }
     }
 
     @Nullable
     protected String getValue(@NotNull final String query,
                               @NotNull final String key) {
+        long started = System.nanoTime();
         try (PreparedStatement stat = sqlite.prepareStatement(query)) {
             stat.setString(1, key);
             try (ResultSet rs = stat.executeQuery()) {
@@ -75,6 +112,8 @@ public abstract class SqliteCollection {
         } catch (SQLException err) {
             log.error("Unable to get value by \"" + key + "\" in table \"" + objectName + "\": " + err.getMessage());
             throw new RuntimeException(err);
+        } finally {
+            observe("select", started);
         }
         return null;
     }
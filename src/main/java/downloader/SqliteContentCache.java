@@ -0,0 +1,157 @@
+package downloader;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Index of {@link ContentCache}: url, MD5 hash of its content and usage time. Urls with the same content share one blob.
+ */
+public class SqliteContentCache
+        extends SqliteCollection {
+
+    private static final String CREATE_CACHE_TABLE_QUERY = "create table `%%` (`url` text not null primary key, "
+            + "`md5` text not null, `size` integer not null, `last_used` integer not null)";
+    private static final String CREATE_MD5_INDEX_QUERY_TEMPLATE = "create index if not exists `%%_md5` on `%%` (`md5`)";
+    private static final String PUT_QUERY_TEMPLATE = "insert or replace into `%%` (`url`, `md5`, `size`, `last_used`) values (?, ?, ?, ?)";
+    private static final String GET_QUERY_TEMPLATE = "select `md5` from `%%` where `url` = ?";
+    private static final String CHECK_EXISTS_QUERY_TEMPLATE = "select count(1) from `%%` where `md5` = ?";
+    private static final String TOUCH_QUERY_TEMPLATE = "update `%%` set `last_used` = ? where `md5` = ?";
+    private static final String REMOVE_QUERY_TEMPLATE = "delete from `%%` where `md5` = ?";
+    private static final String TOTAL_SIZE_QUERY_TEMPLATE = "select coalesce(sum(`size`), 0) from "
+            + "(select max(`size`) as `size` from `%%` group by `md5`)";
+    private static final String OLDEST_QUERY_TEMPLATE = "select `md5`, max(`size`), max(`last_used`) as `used` from `%%` "
+            + "group by `md5` order by `used` limit ?";
+
+    private final String putQuery;
+    private final String getQuery;
+    private final String countQuery;
+    private final String touchQuery;
+    private final String removeQuery;
+    private final String totalSizeQuery;
+    private final String oldestQuery;
+
+    public SqliteContentCache(@NotNull final Connection connection,
+                              @NotNull final String objectName) {
+        super(connection, objectName);
+        createTable(CREATE_CACHE_TABLE_QUERY);
+        try (PreparedStatement stat = sqlite.prepareStatement(CREATE_MD5_INDEX_QUERY_TEMPLATE.replace("%%", objectName))) {
+            stat.executeUpdate();
+        } catch (SQLException err) {
+            log.error("Unable to create index of table \"" + objectName + "\": " + err.getMessage());
+            throw new RuntimeException(err);
+        }
+        putQuery = PUT_QUERY_TEMPLATE.replace("%%", objectName);
+        getQuery = GET_QUERY_TEMPLATE.replace("%%", objectName);
+        countQuery = CHECK_EXISTS_QUERY_TEMPLATE.replace("%%", objectName);
+        touchQuery = TOUCH_QUERY_TEMPLATE.replace("%%", objectName);
+        removeQuery = REMOVE_QUERY_TEMPLATE.replace("%%", objectName);
+        totalSizeQuery = TOTAL_SIZE_QUERY_TEMPLATE.replace("%%", objectName);
+        oldestQuery = OLDEST_QUERY_TEMPLATE.replace("%%", objectName);
+    }
+
+    public void put(@NotNull final String url, @NotNull final String md5, final long size) {
+        long started = System.nanoTime();
+        try (PreparedStatement stat = sqlite.prepareStatement(putQuery)) {
+            stat.setString(1, url);
+            stat.setString(2, md5);
+            stat.setLong(3, size);
+            stat.setLong(4, System.currentTimeMillis());
+            stat.executeUpdate();
+        } catch (SQLException err) {
+            log.error("Unable to add url \"" + url + "\" to table \"" + objectName + "\": " + err.getMessage());
+            throw new RuntimeException(err);
+        } finally {
+            observe("insert", started);
+        }
+    }
+
+    @Nullable
+    public String getMd5(@NotNull final String url) {
+        return super.getValue(getQuery, url);
+    }
+
+    public boolean containsMd5(@NotNull final String md5) {
+        return super.checkExists(countQuery, md5);
+    }
+
+    public void touch(@NotNull final String md5) {
+        long started = System.nanoTime();
+        try (PreparedStatement stat = sqlite.prepareStatement(touchQuery)) {
+            stat.setLong(1, System.currentTimeMillis());
+            stat.setString(2, md5);
+            stat.executeUpdate();
+        } catch (SQLException err) {
+            log.error("Unable to update hash \"" + md5 + "\" in table \"" + objectName + "\": " + err.getMessage());
+            throw new RuntimeException(err);
+        } finally {
+            observe("update", started);
+        }
+    }
+
+    public void remove(@NotNull final String md5) {
+        long started = System.nanoTime();
+        try (PreparedStatement stat = sqlite.prepareStatement(removeQuery)) {
+            stat.setString(1, md5);
+            stat.executeUpdate();
+        } catch (SQLException err) {
+            log.error("Unable to delete hash \"" + md5 + "\" from table \"" + objectName + "\": " + err.getMessage());
+            throw new RuntimeException(err);
+        } finally {
+            observe("delete", started);
+        }
+    }
+
+    /**
+     * @return size of all blobs, each counted once
+     */
+    public long getTotalSize() {
+        long started = System.nanoTime();
+        try (PreparedStatement stat = sqlite.prepareStatement(totalSizeQuery);
+             ResultSet rs = stat.executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0L;
+        } catch (SQLException err) {
+            log.error("Unable to get total size from table \"" + objectName + "\": " + err.getMessage());
+            throw new RuntimeException(err);
+        } finally {
+            observe("select", started);
+        }
+    }
+
+    @NotNull
+    public List<Blob> getLeastRecentlyUsed(final int limit) {
+        List<Blob> result = new ArrayList<>();
+        long started = System.nanoTime();
+        try (PreparedStatement stat = sqlite.prepareStatement(oldestQuery)) {
+            stat.setInt(1, limit);
+            try (ResultSet rs = stat.executeQuery()) {
+                while (rs.next()) {
+                    result.add(new Blob(rs.getString(1), rs.getLong(2)));
+                }
+            }
+        } catch (SQLException err) {
+            log.error("Unable to load blobs from table \"" + objectName + "\": " + err.getMessage());
+            throw new RuntimeException(err);
+        } finally {
+            observe("select", started);
+        }
+        return result;
+    }
+
+    public static class Blob {
+
+        final String md5;
+        final long size;
+
+        Blob(String md5, long size) {
+            this.md5 = md5;
+            this.size = size;
+        }
+    }
+}
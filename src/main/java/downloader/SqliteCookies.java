@@ -0,0 +1,128 @@
+package downloader;
+
+import org.apache.http.cookie.ClientCookie;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.impl.cookie.BasicClientCookie;
+import org.jetbrains.annotations.NotNull;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Cookies of all documents of resources directory, kept between runs. Session cookies are kept too,
+ * until replaced by server.
+ */
+public class SqliteCookies
+        extends SqliteCollection {
+
+    private static final String CREATE_COOKIES_TABLE_QUERY = "create table `%%` (`name` text not null, "
+            + "`domain` text not null, `path` text not null, `value` text not null, `expires_at` integer, "
+            + "`secure` integer not null, `host_only` integer not null, primary key (`name`, `domain`, `path`))";
+    private static final String PUT_QUERY_TEMPLATE = "insert or replace into `%%` (`name`, `domain`, `path`, `value`, "
+            + "`expires_at`, `secure`, `host_only`) values (?, ?, ?, ?, ?, ?, ?)";
+    private static final String REMOVE_QUERY_TEMPLATE = "delete from `%%` where `name` = ? and `domain` = ? and `path` = ?";
+    private static final String SELECT_QUERY_TEMPLATE = "select `name`, `domain`, `path`, `value`, `expires_at`, `secure`, "
+            + "`host_only` from `%%`";
+    private static final String DELETE_EXPIRED_QUERY_TEMPLATE = "delete from `%%` where `expires_at` < ?";
+
+    private final String putQuery;
+    private final String removeQuery;
+    private final String selectQuery;
+    private final String deleteExpiredQuery;
+
+    public SqliteCookies(@NotNull final Connection connection,
+                         @NotNull final String objectName) {
+        super(connection, objectName);
+        createTable(CREATE_COOKIES_TABLE_QUERY);
+        putQuery = PUT_QUERY_TEMPLATE.replace("%%", objectName);
+        removeQuery = REMOVE_QUERY_TEMPLATE.replace("%%", objectName);
+        selectQuery = SELECT_QUERY_TEMPLATE.replace("%%", objectName);
+        deleteExpiredQuery = DELETE_EXPIRED_QUERY_TEMPLATE.replace("%%", objectName);
+    }
+
+    public void put(@NotNull final Cookie cookie) {
+        long started = System.nanoTime();
+        try (PreparedStatement stat = sqlite.prepareStatement(putQuery)) {
+            stat.setString(1, cookie.getName());
+            stat.setString(2, cookie.getDomain());
+            stat.setString(3, getPath(cookie));
+            stat.setString(4, cookie.getValue() != null ? cookie.getValue() : "");
+            if (cookie.getExpiryDate() != null) {
+                stat.setLong(5, cookie.getExpiryDate().getTime());
+            } else {
+                stat.setNull(5, Types.INTEGER);
+            }
+            stat.setInt(6, cookie.isSecure() ? 1 : 0);
+            stat.setInt(7, isHostOnly(cookie) ? 1 : 0);
+            stat.executeUpdate();
+        } catch (SQLException err) {
+            log.error("Unable to save cookie \"" + cookie.getName() + "\" to table \"" + objectName + "\": " + err.getMessage());
+            throw new RuntimeException(err);
+        } finally {
+            observe("insert", started);
+        }
+    }
+
+    public void remove(@NotNull final Cookie cookie) {
+        long started = System.nanoTime();
+        try (PreparedStatement stat = sqlite.prepareStatement(removeQuery)) {
+            stat.setString(1, cookie.getName());
+            stat.setString(2, cookie.getDomain());
+            stat.setString(3, getPath(cookie));
+            stat.executeUpdate();
+        } catch (SQLException err) {
+            log.error("Unable to delete cookie \"" + cookie.getName() + "\" from table \"" + objectName + "\": " + err.getMessage());
+            throw new RuntimeException(err);
+        } finally {
+            observe("delete", started);
+        }
+    }
+
+    public List<Cookie> loadNotExpired(final long now) {
+        List<Cookie> result = new ArrayList<>();
+        long started = System.nanoTime();
+        try (PreparedStatement delete = sqlite.prepareStatement(deleteExpiredQuery)) {
+            delete.setLong(1, now);
+            delete.executeUpdate();
+        } catch (SQLException err) {
+            log.error("Unable to delete expired cookies from table \"" + objectName + "\": " + err.getMessage());
+            throw new RuntimeException(err);
+        }
+        try (PreparedStatement stat = sqlite.prepareStatement(selectQuery);
+             ResultSet rs = stat.executeQuery()) {
+            while (rs.next()) {
+                BasicClientCookie cookie = new BasicClientCookie(rs.getString(1), rs.getString(4));
+                cookie.setDomain(rs.getString(2));
+                cookie.setPath(rs.getString(3));
+                long expiresAt = rs.getLong(5);
+                if (!rs.wasNull())
+                    cookie.setExpiryDate(new Date(expiresAt));
+                cookie.setSecure(rs.getInt(6) != 0);
+                // without domain attribute cookie matches its host only
+                if (rs.getInt(7) == 0)
+                    cookie.setAttribute(ClientCookie.DOMAIN_ATTR, rs.getString(2));
+                result.add(cookie);
+            }
+        } catch (SQLException err) {
+            log.error("Unable to load cookies from table \"" + objectName + "\": " + err.getMessage());
+            throw new RuntimeException(err);
+        } finally {
+            observe("select", started);
+        }
+        return result;
+    }
+
+    private static String getPath(final Cookie cookie) {
+        return cookie.getPath() != null ? cookie.getPath() : "/";
+    }
+
+    private static boolean isHostOnly(final Cookie cookie) {
+        return !(cookie instanceof ClientCookie && ((ClientCookie) cookie).containsAttribute(ClientCookie.DOMAIN_ATTR));
+    }
+}
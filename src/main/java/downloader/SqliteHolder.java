@@ -9,31 +9,114 @@ import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 
+/**
+ * Connections to state databases, at most maxConnections are open. Least recently used one is closed when
+ * another database is needed and opened again transparently by the next {@link #getConnection}, so trees with
+ * thousands of resources directories do not run out of file descriptors. {@link SqliteState} stays valid while
+ * its database is not the least recently used one, which holds for the document being processed.
+ */
 public class SqliteHolder
     implements Closeable, AutoCloseable {
 
-    private static final String JDBC_PREFIX = "jdbc:sqlite:";
+    static final String JDBC_PREFIX = "jdbc:sqlite:";
+    static final int DEFAULT_MAX_CONNECTIONS = 64;
+    // evicted databases remembered for reopen metric, older ones are counted as opened again
+    private static final int MAX_EVICTED = 4096;
     private static final Logger log = LogManager.getLogger(SqliteHolder.class.getSimpleName());
-    private final Map<Path, Connection> connections = new HashMap<>();
+    private final int maxConnections;
+    // access order: the first entry is the least recently used one
+    private final Map<Path, Connection> connections = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<Path> evicted = Collections.newSetFromMap(new LinkedHashMap<Path, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Boolean> eldest) {
+            return size() > MAX_EVICTED;
+        }
+    });
+    private final List<Consumer<Path>> evictionListeners = new ArrayList<>();
+
+    public SqliteHolder() {
+        this(DEFAULT_MAX_CONNECTIONS);
+    }
+
+    public SqliteHolder(final int maxConnections) {
+        this.maxConnections = maxConnections;
+        Metrics.gauge("resdownloader_sqlite_open_connections", this::getOpenCount);
+    }
+
+    /**
+     * @param listener called with location of database before its connection is closed by eviction,
+     *                 while the connection still works
+     */
+    void addEvictionListener(@NotNull final Consumer<Path> listener) {
+        evictionListeners.add(listener);
+    }
+
+    public synchronized SqliteState getConnection(@NotNull final Path sqliteLocation) {
+        return new SqliteState(open(sqliteLocation));
+    }
+
+    /**
+     * Pages table alone, without checking tables of the whole state, for selection of changed input pages.
+     */
+    public synchronized SqlitePages getPages(@NotNull final Path sqliteLocation) {
+        return new SqlitePages(open(sqliteLocation), SqliteState.PAGES_TABLE_NAME);
+    }
 
-    public SqliteState getConnection(@NotNull final Path sqliteLocation) {
-        if (!connections.containsKey(sqliteLocation)) {
+    private Connection open(@NotNull final Path sqliteLocation) {
+        Connection connection = connections.get(sqliteLocation);
+        if (connection == null) {
+            evictOverLimit();
             try {
                 String jdbcUrl = JDBC_PREFIX + sqliteLocation.toString().replace('\\', '/');
-                Connection connection = DriverManager.getConnection(jdbcUrl);
-                connections.put(sqliteLocation, connection);
+                connection = DriverManager.getConnection(jdbcUrl);
             } catch (SQLException err) {
                 throw new RuntimeException("Unable to open/create database \"" + sqliteLocation + "\": " + err.getMessage());
             }
+            connections.put(sqliteLocation, connection);
+            Metrics.counter("resdownloader_sqlite_connections_total", "event",
+                    evicted.remove(sqliteLocation) ? "reopen" : "open").increment();
+        }
+        return connection;
+    }
+
+    private synchronized int getOpenCount() {
+        return connections.size();
+    }
+
+    private void evictOverLimit() {
+        Iterator<Map.Entry<Path, Connection>> iterator = connections.entrySet().iterator();
+        while (connections.size() >= maxConnections && iterator.hasNext()) {
+            Map.Entry<Path, Connection> eldest = iterator.next();
+            for (Consumer<Path> listener : evictionListeners) {
+                listener.accept(eldest.getKey());
+            }
+            closeConnection(eldest.getKey(), eldest.getValue());
+            iterator.remove();
+            evicted.add(eldest.getKey());
+            Metrics.counter("resdownloader_sqlite_connections_total", "event", "evict").increment();
+            log.debug("Closed least recently used database {}", eldest.getKey());
+        }
+    }
+
+    private void closeConnection(Path sqliteLocation, Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException err) {
+            log.error("Unable to close connection \"" + sqliteLocation + "\": " + err.getMessage());
         }
-        return new SqliteState(connections.get(sqliteLocation));
     }
 
     @Override
-    public void close() {
+    public synchronized void close() {
         boolean hasError = false;
         for (Map.Entry<Path, Connection> entry : connections.entrySet()) {
             try {
@@ -43,6 +126,7 @@ public class SqliteHolder
                 hasError = true;
             }
         }
+        connections.clear();
         if (hasError) {
             throw new RuntimeException("Unable to close one or more connections");
         }
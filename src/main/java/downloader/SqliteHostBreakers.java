@@ -0,0 +1,100 @@
+package downloader;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+public class SqliteHostBreakers
+        extends SqliteCollection {
+
+    private static final String CREATE_BREAKERS_TABLE_QUERY = "create table `%%` (`host` text not null primary key, "
+            + "`state` text not null, `failures` integer not null, `changed_at` integer not null)";
+    private static final String PUT_QUERY_TEMPLATE = "insert or replace into `%%` (`host`, `state`, `failures`, `changed_at`) values (?, ?, ?, ?)";
+    private static final String SELECT_QUERY_TEMPLATE = "select `host`, `state`, `failures`, `changed_at` from `%%` where `changed_at` >= ?";
+    private static final String DELETE_EXPIRED_QUERY_TEMPLATE = "delete from `%%` where `changed_at` < ?";
+
+    private final String putQuery;
+    private final String selectQuery;
+    private final String deleteExpiredQuery;
+
+    public SqliteHostBreakers(@NotNull final Connection connection,
+                              @NotNull final String objectName) {
+        super(connection, objectName);
+        createTable(CREATE_BREAKERS_TABLE_QUERY);
+        putQuery = PUT_QUERY_TEMPLATE.replace("%%", objectName);
+        selectQuery = SELECT_QUERY_TEMPLATE.replace("%%", objectName);
+        deleteExpiredQuery = DELETE_EXPIRED_QUERY_TEMPLATE.replace("%%", objectName);
+    }
+
+    /**
+     * Saves hosts in one transaction.
+     */
+    public void putAll(@NotNull final Collection<HostCircuitBreaker.Snapshot> snapshots) {
+        if (snapshots.isEmpty())
+            return;
+        long started = System.nanoTime();
+        try {
+            sqlite.setAutoCommit(false);
+            try (PreparedStatement stat = sqlite.prepareStatement(putQuery)) {
+                for (HostCircuitBreaker.Snapshot snapshot : snapshots) {
+                    stat.setString(1, snapshot.host);
+                    stat.setString(2, snapshot.state.name());
+                    stat.setInt(3, snapshot.failures);
+                    stat.setLong(4, snapshot.changedAt);
+                    stat.addBatch();
+                }
+                stat.executeBatch();
+            }
+            sqlite.commit();
+        } catch (SQLException err) {
+            log.error("Unable to save hosts to table \"" + objectName + "\": " + err.getMessage());
+            try {
+                sqlite.rollback();
+            } catch (SQLException ignore) {
+            }
+            throw new RuntimeException(err);
+        } finally {
+            try {
+                sqlite.setAutoCommit(true);
+            } catch (SQLException err) {
+                log.error("Unable to restore autocommit of table \"" + objectName + "\": " + err.getMessage());
+            }
+            observe("insert", started);
+        }
+    }
+
+    public List<HostCircuitBreaker.Snapshot> loadNotOlderThan(final long changedAfter) {
+        List<HostCircuitBreaker.Snapshot> result = new ArrayList<>();
+        long started = System.nanoTime();
+        try (PreparedStatement delete = sqlite.prepareStatement(deleteExpiredQuery)) {
+            delete.setLong(1, changedAfter);
+            delete.executeUpdate();
+        } catch (SQLException err) {
+            log.error("Unable to delete expired hosts from table \"" + objectName + "\": " + err.getMessage());
+            throw new RuntimeException(err);
+        }
+        try (PreparedStatement stat = sqlite.prepareStatement(selectQuery)) {
+            stat.setLong(1, changedAfter);
+            try (ResultSet rs = stat.executeQuery()) {
+                while (rs.next()) {
+                    result.add(new HostCircuitBreaker.Snapshot(rs.getString(1),
+                            HostCircuitBreaker.State.valueOf(rs.getString(2)),
+                            rs.getInt(3),
+                            rs.getLong(4)));
+                }
+            }
+        } catch (SQLException | IllegalArgumentException err) {
+            log.error("Unable to load hosts from table \"" + objectName + "\": " + err.getMessage());
+            throw new RuntimeException(err);
+        } finally {
+            observe("select", started);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,141 @@
+package downloader;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Write-ahead journal of in-flight downloads. Entry is added before download starts,
+ * marked as downloaded with file hash before temp file is moved into place
+ * and removed after conversion is saved. Every entry keeps owner id of the run that added it,
+ * so runs sharing resources directory change only their own entries.
+ */
+public class SqliteJournal
+        extends SqliteCollection {
+
+    static final String STATE_DOWNLOADING = "downloading";
+    static final String STATE_DOWNLOADED = "downloaded";
+
+    private static final String CREATE_JOURNAL_TABLE_QUERY = "create table `%%` (`url` text not null primary key, "
+            + "`temp_file` text not null, `local_path` text not null, `state` text not null, `md5` text, "
+            + "`started_at` integer not null, `owner` text)";
+    private static final String BEGIN_QUERY_TEMPLATE = "insert or replace into `%%` (`url`, `temp_file`, `local_path`, `state`, `md5`, `started_at`, `owner`) "
+            + "values (?, ?, ?, '" + STATE_DOWNLOADING + "', null, ?, ?)";
+    private static final String DOWNLOADED_QUERY_TEMPLATE = "update `%%` set `state` = '" + STATE_DOWNLOADED + "', `md5` = ? "
+            + "where `url` = ? and `owner` is ?";
+    private static final String REMOVE_QUERY_TEMPLATE = "delete from `%%` where `url` = ? and `owner` is ?";
+    private static final String SELECT_QUERY_TEMPLATE = "select `url`, `temp_file`, `local_path`, `state`, `md5`, `owner` from `%%`";
+
+    private final String beginQuery;
+    private final String downloadedQuery;
+    private final String removeQuery;
+    private final String selectQuery;
+
+    public SqliteJournal(@NotNull final Connection connection,
+                         @NotNull final String objectName) {
+        super(connection, objectName);
+        createTable(CREATE_JOURNAL_TABLE_QUERY);
+        // entries of previous versions have no owner
+        addColumn("owner", "text");
+        beginQuery = BEGIN_QUERY_TEMPLATE.replace("%%", objectName);
+        downloadedQuery = DOWNLOADED_QUERY_TEMPLATE.replace("%%", objectName);
+        removeQuery = REMOVE_QUERY_TEMPLATE.replace("%%", objectName);
+        selectQuery = SELECT_QUERY_TEMPLATE.replace("%%", objectName);
+    }
+
+    public void begin(@NotNull final String url,
+                      @NotNull final String tempFile,
+                      @NotNull final String localPath,
+                      @NotNull final String owner) {
+        long started = System.nanoTime();
+        try (PreparedStatement stat = sqlite.prepareStatement(beginQuery)) {
+            stat.setString(1, url);
+            stat.setString(2, tempFile);
+            stat.setString(3, localPath);
+            stat.setLong(4, System.currentTimeMillis());
+            stat.setString(5, owner);
+            stat.executeUpdate();
+        } catch (SQLException err) {
+            log.error("Unable to add url \"" + url + "\" to table \"" + objectName + "\": " + err.getMessage());
+            throw new RuntimeException(err);
+        } finally {
+            observe("insert", started);
+        }
+    }
+
+    public void markDownloaded(@NotNull final String url, @Nullable final String owner, @Nullable final String md5) {
+        long started = System.nanoTime();
+        try (PreparedStatement stat = sqlite.prepareStatement(downloadedQuery)) {
+            stat.setString(1, md5);
+            stat.setString(2, url);
+            stat.setString(3, owner);
+            stat.executeUpdate();
+        } catch (SQLException err) {
+            log.error("Unable to update url \"" + url + "\" in table \"" + objectName + "\": " + err.getMessage());
+            throw new RuntimeException(err);
+        } finally {
+            observe("update", started);
+        }
+    }
+
+    public void remove(@NotNull final String url, @Nullable final String owner) {
+        long started = System.nanoTime();
+        try (PreparedStatement stat = sqlite.prepareStatement(removeQuery)) {
+            stat.setString(1, url);
+            stat.setString(2, owner);
+            stat.executeUpdate();
+        } catch (SQLException err) {
+            log.error("Unable to delete url \"" + url + "\" from table \"" + objectName + "\": " + err.getMessage());
+            throw new RuntimeException(err);
+        } finally {
+            observe("delete", started);
+        }
+    }
+
+    public List<Entry> getEntries() {
+        List<Entry> result = new ArrayList<>();
+        long started = System.nanoTime();
+        try (PreparedStatement stat = sqlite.prepareStatement(selectQuery);
+             ResultSet rs = stat.executeQuery()) {
+            while (rs.next()) {
+                result.add(new Entry(rs.getString(1), rs.getString(2), rs.getString(3),
+                        rs.getString(4), rs.getString(5), rs.getString(6)));
+            }
+        } catch (SQLException err) {
+            log.error("Unable to load entries from table \"" + objectName + "\": " + err.getMessage());
+            throw new RuntimeException(err);
+        } finally {
+            observe("select", started);
+        }
+        return result;
+    }
+
+    public static class Entry {
+
+        final String url;
+        final String tempFile;
+        final String localPath;
+        final String state;
+        final String md5;
+        final String owner;
+
+        Entry(String url, String tempFile, String localPath, String state, String md5, String owner) {
+            this.url = url;
+            this.tempFile = tempFile;
+            this.localPath = localPath;
+            this.state = state;
+            this.md5 = md5;
+            this.owner = owner;
+        }
+
+        boolean isDownloaded() {
+            return STATE_DOWNLOADED.equals(state);
+        }
+    }
+}
@@ -35,12 +35,15 @@ public class SqliteList
 
     public void add(@NotNull final String value) {
         if (!contains(value)) {
+            long started = System.nanoTime();
             try (PreparedStatement stat = super.sqlite.prepareStatement(insertQuery)) {
                 stat.setString(1, value);
                 stat.executeUpdate();
             } catch (SQLException err) {
                 log.error("Unable to add value \"" + value + "\" to table \"" + objectName + "\": " + err.getMessage());
                 throw new RuntimeException(err);
+            } finally {
+                observe("insert", started);
             }
         }
     }
@@ -0,0 +1,105 @@
+package downloader;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Resources stored as files: path relative to resources directory, size and modification time when stored
+ * and MD5 hash of content, so existing file is recognized without reading it while size and time match.
+ * ETag and Last-Modified of the response it was stored from let the next run ask server for changes only.
+ */
+public class SqliteLocalFiles
+        extends SqliteCollection {
+
+    private static final String CREATE_LOCAL_FILES_TABLE_QUERY = "create table `%%` (`path` text not null primary key, "
+            + "`size` integer not null, `modified` integer not null, `md5` text not null, `etag` text, `last_modified` text)";
+    private static final String PUT_QUERY_TEMPLATE = "insert or replace into `%%` (`path`, `size`, `modified`, `md5`, "
+            + "`etag`, `last_modified`) values (?, ?, ?, ?, ?, ?)";
+    private static final String GET_QUERY_TEMPLATE = "select `size`, `modified`, `md5`, `etag`, `last_modified` from `%%` "
+            + "where `path` = ?";
+
+    private final String putQuery;
+    private final String getQuery;
+
+    public SqliteLocalFiles(@NotNull final Connection connection,
+                            @NotNull final String objectName) {
+        super(connection, objectName);
+        createTable(CREATE_LOCAL_FILES_TABLE_QUERY);
+        addColumn("etag", "text");
+        addColumn("last_modified", "text");
+        putQuery = PUT_QUERY_TEMPLATE.replace("%%", objectName);
+        getQuery = GET_QUERY_TEMPLATE.replace("%%", objectName);
+    }
+
+    public void put(@NotNull final String path, @NotNull final Entry entry) {
+        long started = System.nanoTime();
+        try (PreparedStatement stat = sqlite.prepareStatement(putQuery)) {
+            stat.setString(1, path);
+            stat.setLong(2, entry.size);
+            stat.setLong(3, entry.modified);
+            stat.setString(4, entry.md5);
+            stat.setString(5, entry.etag);
+            stat.setString(6, entry.lastModified);
+            stat.executeUpdate();
+        } catch (SQLException err) {
+            log.error("Unable to add file \"" + path + "\" to table \"" + objectName + "\": " + err.getMessage());
+            throw new RuntimeException(err);
+        } finally {
+            observe("insert", started);
+        }
+    }
+
+    @Nullable
+    public Entry get(@NotNull final String path) {
+        long started = System.nanoTime();
+        try (PreparedStatement stat = sqlite.prepareStatement(getQuery)) {
+            stat.setString(1, path);
+            try (ResultSet rs = stat.executeQuery()) {
+                return rs.next()
+                        ? new Entry(rs.getLong(1), rs.getLong(2), rs.getString(3), rs.getString(4), rs.getString(5))
+                        : null;
+            }
+        } catch (SQLException err) {
+            log.error("Unable to get file \"" + path + "\" from table \"" + objectName + "\": " + err.getMessage());
+            throw new RuntimeException(err);
+        } finally {
+            observe("select", started);
+        }
+    }
+
+    public static class Entry {
+
+        final long size;
+        final long modified;
+        final String md5;
+        @Nullable
+        final String etag;
+        @Nullable
+        final String lastModified;
+
+        Entry(long size, long modified, @NotNull String md5) {
+            this(size, modified, md5, null, null);
+        }
+
+        Entry(long size, long modified, @NotNull String md5, @Nullable String etag, @Nullable String lastModified) {
+            this.size = size;
+            this.modified = modified;
+            this.md5 = md5;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        boolean isSameFile(final long size, final long modified) {
+            return this.size == size && this.modified == modified;
+        }
+
+        boolean hasValidator() {
+            return etag != null || lastModified != null;
+        }
+    }
+}
@@ -18,6 +18,7 @@ public class SqliteMap
     private static final String UPDATE_QUERY_TEMPLATE = "update `%%` set `value` = ? where `name` = ?";
     private static final String GET_QUERY_TEMPLATE = "select `value` from `%%` where `name` = ?";
     private static final String GET_BY_VALUE_QUERY_TEMPLATE = "select `name` from `%%` where `value` = ?";
+    private static final String REMOVE_QUERY_TEMPLATE = "delete from `%%` where `name` = ?";
 
     private final String countByKeyQuery;
     private final String countByValueQuery;
@@ -25,6 +26,7 @@ public class SqliteMap
     private final String updateQuery;
     private final String getQuery;
     private final String getByValueQuery;
+    private final String removeQuery;
 
     public SqliteMap(@NotNull final Connection connection,
                      @NotNull final String objectName) {
@@ -36,6 +38,7 @@ public class SqliteMap
         updateQuery = UPDATE_QUERY_TEMPLATE.replace("%%", objectName);
         getQuery = GET_QUERY_TEMPLATE.replace("%%", objectName);
         getByValueQuery = GET_BY_VALUE_QUERY_TEMPLATE.replace("%%", objectName);
+        removeQuery = REMOVE_QUERY_TEMPLATE.replace("%%", objectName);
     }
 
     public boolean containsKey(@NotNull final String key) {
@@ -48,6 +51,7 @@ public class SqliteMap
 
     public void put(@NotNull final String key, @NotNull final String value) {
         if (containsKey(key)) {
+            long started = System.nanoTime();
             try (PreparedStatement stat = super.sqlite.prepareStatement(updateQuery)) {
                 stat.setString(1, value);
                 stat.setString(2, key);
@@ -55,8 +59,11 @@ public class SqliteMap
             } catch (SQLException err) {
                 log.error("Unable to update value \"" + value + "\" by key \"" + key + "\" in table \"" + objectName + "\": " + err.getMessage());
                 throw new RuntimeException(err);
+            } finally {
+                observe("update", started);
             }
         } else {
+            long started = System.nanoTime();
             try (PreparedStatement stat = super.sqlite.prepareStatement(insertQuery)) {
                 stat.setString(1, key);
                 stat.setString(2, value);
@@ -64,6 +71,8 @@ public class SqliteMap
             } catch (SQLException err) {
                 log.error("Unable to add value \"" + key + "\",\"" + value + "\" to table \"" + objectName + "\": " + err.getMessage());
                 throw new RuntimeException(err);
+            } finally {
+                observe("insert", started);
             }
         }
     }
@@ -81,4 +90,17 @@ public class SqliteMap
     public String getByValue(@NotNull final String value) {
         return super.getValue(getByValueQuery, value);
     }
+
+    public void remove(@NotNull final String key) {
+        long started = System.nanoTime();
+        try (PreparedStatement stat = super.sqlite.prepareStatement(removeQuery)) {
+            stat.setString(1, key);
+            stat.executeUpdate();
+        } catch (SQLException err) {
+            log.error("Unable to delete key \"" + key + "\" from table \"" + objectName + "\": " + err.getMessage());
+            throw new RuntimeException(err);
+        } finally {
+            observe("delete", started);
+        }
+    }
 }
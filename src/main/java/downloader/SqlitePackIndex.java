@@ -0,0 +1,132 @@
+package downloader;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Index of entries appended to {@link ResourcePack}: position of local header and stored data.
+ */
+public class SqlitePackIndex
+        extends SqliteCollection {
+
+    private static final String CREATE_INDEX_TABLE_QUERY = "create table `%%` (`name` text not null primary key, "
+            + "`offset` integer not null, `size` integer not null, `crc` integer not null, "
+            + "`dos_time` integer not null, `end` integer not null)";
+    private static final String PUT_QUERY_TEMPLATE = "insert or replace into `%%` (`name`, `offset`, `size`, `crc`, `dos_time`, `end`) "
+            + "values (?, ?, ?, ?, ?, ?)";
+    private static final String CHECK_EXISTS_QUERY_TEMPLATE = "select count(1) from `%%` where `name` = ?";
+    private static final String DATA_END_QUERY_TEMPLATE = "select coalesce(max(`end`), 0) from `%%`";
+    private static final String DELETE_AFTER_QUERY_TEMPLATE = "delete from `%%` where `end` > ?";
+    private static final String SELECT_QUERY_TEMPLATE = "select `name`, `offset`, `size`, `crc`, `dos_time` from `%%` order by `offset`";
+
+    private final String putQuery;
+    private final String countQuery;
+    private final String dataEndQuery;
+    private final String deleteAfterQuery;
+    private final String selectQuery;
+
+    public SqlitePackIndex(@NotNull final Connection connection,
+                           @NotNull final String objectName) {
+        super(connection, objectName);
+        createTable(CREATE_INDEX_TABLE_QUERY);
+        putQuery = PUT_QUERY_TEMPLATE.replace("%%", objectName);
+        countQuery = CHECK_EXISTS_QUERY_TEMPLATE.replace("%%", objectName);
+        dataEndQuery = DATA_END_QUERY_TEMPLATE.replace("%%", objectName);
+        deleteAfterQuery = DELETE_AFTER_QUERY_TEMPLATE.replace("%%", objectName);
+        selectQuery = SELECT_QUERY_TEMPLATE.replace("%%", objectName);
+    }
+
+    public void put(@NotNull final Entry entry, final long end) {
+        long started = System.nanoTime();
+        try (PreparedStatement stat = sqlite.prepareStatement(putQuery)) {
+            stat.setString(1, entry.name);
+            stat.setLong(2, entry.offset);
+            stat.setLong(3, entry.size);
+            stat.setLong(4, entry.crc);
+            stat.setLong(5, entry.dosTime);
+            stat.setLong(6, end);
+            stat.executeUpdate();
+        } catch (SQLException err) {
+            log.error("Unable to add entry \"" + entry.name + "\" to table \"" + objectName + "\": " + err.getMessage());
+            throw new RuntimeException(err);
+        } finally {
+            observe("insert", started);
+        }
+    }
+
+    public boolean contains(@NotNull final String name) {
+        return super.checkExists(countQuery, name);
+    }
+
+    public long getDataEnd() {
+        long started = System.nanoTime();
+        try (PreparedStatement stat = sqlite.prepareStatement(dataEndQuery);
+             ResultSet rs = stat.executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0L;
+        } catch (SQLException err) {
+            log.error("Unable to get data end from table \"" + objectName + "\": " + err.getMessage());
+            throw new RuntimeException(err);
+        } finally {
+            observe("select", started);
+        }
+    }
+
+    public void deleteAfter(final long position) {
+        long started = System.nanoTime();
+        try (PreparedStatement stat = sqlite.prepareStatement(deleteAfterQuery)) {
+            stat.setLong(1, position);
+            stat.executeUpdate();
+        } catch (SQLException err) {
+            log.error("Unable to delete entries from table \"" + objectName + "\": " + err.getMessage());
+            throw new RuntimeException(err);
+        } finally {
+            observe("delete", started);
+        }
+    }
+
+    /**
+     * Visits all entries ordered by position in pack, without loading whole index into memory.
+     */
+    public void forEach(@NotNull final EntryVisitor visitor) throws IOException {
+        long started = System.nanoTime();
+        try (PreparedStatement stat = sqlite.prepareStatement(selectQuery);
+             ResultSet rs = stat.executeQuery()) {
+            while (rs.next()) {
+                visitor.visit(new Entry(rs.getString(1), rs.getLong(2), rs.getLong(3),
+                        rs.getLong(4), rs.getLong(5)));
+            }
+        } catch (SQLException err) {
+            log.error("Unable to load entries from table \"" + objectName + "\": " + err.getMessage());
+            throw new RuntimeException(err);
+        } finally {
+            observe("select", started);
+        }
+    }
+
+    public interface EntryVisitor {
+
+        void visit(Entry entry) throws IOException;
+    }
+
+    public static class Entry {
+
+        final String name;
+        final long offset;
+        final long size;
+        final long crc;
+        final long dosTime;
+
+        Entry(String name, long offset, long size, long crc, long dosTime) {
+            this.name = name;
+            this.offset = offset;
+            this.size = size;
+            this.crc = crc;
+            this.dosTime = dosTime;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package downloader;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Converted input pages of directory: file name, size and modification time, MD5 hash of content at conversion
+ * and urls the page referenced, one per line. Urls of pages converted before they were recorded are unknown,
+ * `urls_known` tells them from pages without any links.
+ */
+public class SqlitePages
+        extends SqliteCollection {
+
+    private static final String CREATE_PAGES_TABLE_QUERY = "create table `%%` (`name` text not null primary key, "
+            + "`size` integer not null, `modified` integer not null, `md5` text not null, `urls` text not null, "
+            + "`urls_known` integer not null)";
+    private static final String PUT_QUERY_TEMPLATE = "insert or replace into `%%` (`name`, `size`, `modified`, `md5`, "
+            + "`urls`, `urls_known`) values (?, ?, ?, ?, ?, ?)";
+    private static final String GET_QUERY_TEMPLATE = "select `size`, `modified`, `md5`, `urls`, `urls_known` from `%%` "
+            + "where `name` = ?";
+    private static final String COUNT_UNKNOWN_URLS_QUERY_TEMPLATE = "select count(1) from `%%` where `urls_known` = 0";
+    // empty urls of table created by previous version may be either
+    private static final String MARK_KNOWN_URLS_QUERY_TEMPLATE = "update `%%` set `urls_known` = 1 where `urls` <> ''";
+    private static final String GET_KNOWN_URLS_QUERY_TEMPLATE = "select `urls` from `%%` where `urls_known` = 1 "
+            + "and `urls` <> ''";
+
+    private final String putQuery;
+    private final String getQuery;
+    private final String countUnknownUrlsQuery;
+    private final String getKnownUrlsQuery;
+
+    public SqlitePages(@NotNull final Connection connection,
+                       @NotNull final String objectName) {
+        super(connection, objectName);
+        createTable(CREATE_PAGES_TABLE_QUERY);
+        if (addColumn("urls_known", "integer not null default 0"))
+            markKnownUrls();
+        putQuery = PUT_QUERY_TEMPLATE.replace("%%", objectName);
+        getQuery = GET_QUERY_TEMPLATE.replace("%%", objectName);
+        countUnknownUrlsQuery = COUNT_UNKNOWN_URLS_QUERY_TEMPLATE.replace("%%", objectName);
+        getKnownUrlsQuery = GET_KNOWN_URLS_QUERY_TEMPLATE.replace("%%", objectName);
+    }
+
+    public void put(@NotNull final String name, @NotNull final Entry entry) {
+        long started = System.nanoTime();
+        try (PreparedStatement stat = sqlite.prepareStatement(putQuery)) {
+            stat.setString(1, name);
+            stat.setLong(2, entry.size);
+            stat.setLong(3, entry.modified);
+            stat.setString(4, entry.md5);
+            stat.setString(5, entry.urls != null ? String.join("\n", entry.urls) : "");
+            stat.setInt(6, entry.urls != null ? 1 : 0);
+            stat.executeUpdate();
+        } catch (SQLException err) {
+            log.error("Unable to add page \"" + name + "\" to table \"" + objectName + "\": " + err.getMessage());
+            throw new RuntimeException(err);
+        } finally {
+            observe("insert", started);
+        }
+    }
+
+    @Nullable
+    public Entry get(@NotNull final String name) {
+        long started = System.nanoTime();
+        try (PreparedStatement stat = sqlite.prepareStatement(getQuery)) {
+            stat.setString(1, name);
+            try (ResultSet rs = stat.executeQuery()) {
+                if (!rs.next())
+                    return null;
+                String urls = rs.getString(4);
+                return new Entry(rs.getLong(1), rs.getLong(2), rs.getString(3),
+                        rs.getInt(5) == 0 ? null : urls.isEmpty() ? Collections.emptyList() : Arrays.asList(urls.split("\n")));
+            }
+        } catch (SQLException err) {
+            log.error("Unable to get page \"" + name + "\" from table \"" + objectName + "\": " + err.getMessage());
+            throw new RuntimeException(err);
+        } finally {
+            observe("select", started);
+        }
+    }
+
+    /**
+     * @return true if urls of some page are unknown, it was converted before they were recorded
+     */
+    public boolean hasPagesWithUnknownUrls() {
+        long started = System.nanoTime();
+        try (PreparedStatement stat = sqlite.prepareStatement(countUnknownUrlsQuery);
+             ResultSet rs = stat.executeQuery()) {
+            return rs.next() && rs.getInt(1) > 0;
+        } catch (SQLException err) {
+            log.error("Unable to count pages in table \"" + objectName + "\": " + err.getMessage());
+            throw new RuntimeException(err);
+        } finally {
+            observe("select", started);
+        }
+    }
+
+    /**
+     * @return urls referenced by pages with known urls, read in one pass over the table
+     */
+    @NotNull
+    public Set<String> getReferencedUrls() {
+        long started = System.nanoTime();
+        Set<String> result = new HashSet<>();
+        try (PreparedStatement stat = sqlite.prepareStatement(getKnownUrlsQuery);
+             ResultSet rs = stat.executeQuery()) {
+            while (rs.next()) {
+                result.addAll(Arrays.asList(rs.getString(1).split("\n")));
+            }
+        } catch (SQLException err) {
+            log.error("Unable to get urls of pages from table \"" + objectName + "\": " + err.getMessage());
+            throw new RuntimeException(err);
+        } finally {
+            observe("select", started);
+        }
+        return result;
+    }
+
+    private void markKnownUrls() {
+        try (PreparedStatement stat = sqlite.prepareStatement(MARK_KNOWN_URLS_QUERY_TEMPLATE.replace("%%", objectName))) {
+            stat.executeUpdate();
+        } catch (SQLException err) {
+            log.error("Unable to mark pages with recorded urls in table \"" + objectName + "\": " + err.getMessage());
+            throw new RuntimeException(err);
+        }
+    }
+
+    public static class Entry {
+
+        final long size;
+        final long modified;
+        final String md5;
+        // null if unknown
+        @Nullable
+        final Set<String> urls;
+
+        Entry(long size, long modified, @NotNull String md5, @Nullable Collection<String> urls) {
+            this.size = size;
+            this.modified = modified;
+            this.md5 = md5;
+            this.urls = urls != null ? new LinkedHashSet<>(urls) : null;
+        }
+
+        boolean isSameFile(final long size, final long modified) {
+            return this.size == size && this.modified == modified;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package downloader;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Resolved redirect chains: source url, final location, count of hops and expiry time.
+ */
+public class SqliteRedirects
+        extends SqliteCollection {
+
+    private static final String CREATE_REDIRECTS_TABLE_QUERY = "create table `%%` (`url` text not null primary key, "
+            + "`location` text not null, `hops` integer not null, `expires_at` integer not null)";
+    private static final String PUT_QUERY_TEMPLATE = "insert or replace into `%%` (`url`, `location`, `hops`, `expires_at`) "
+            + "values (?, ?, ?, ?)";
+    private static final String GET_QUERY_TEMPLATE = "select `location`, `hops`, `expires_at` from `%%` where `url` = ?";
+    private static final String REMOVE_QUERY_TEMPLATE = "delete from `%%` where `url` = ?";
+
+    private final String putQuery;
+    private final String getQuery;
+    private final String removeQuery;
+
+    public SqliteRedirects(@NotNull final Connection connection,
+                           @NotNull final String objectName) {
+        super(connection, objectName);
+        createTable(CREATE_REDIRECTS_TABLE_QUERY);
+        putQuery = PUT_QUERY_TEMPLATE.replace("%%", objectName);
+        getQuery = GET_QUERY_TEMPLATE.replace("%%", objectName);
+        removeQuery = REMOVE_QUERY_TEMPLATE.replace("%%", objectName);
+    }
+
+    public void put(@NotNull final String url, @NotNull final Entry entry) {
+        long started = System.nanoTime();
+        try (PreparedStatement stat = sqlite.prepareStatement(putQuery)) {
+            stat.setString(1, url);
+            stat.setString(2, entry.location);
+            stat.setInt(3, entry.hops);
+            stat.setLong(4, entry.expiresAt);
+            stat.executeUpdate();
+        } catch (SQLException err) {
+            log.error("Unable to add url \"" + url + "\" to table \"" + objectName + "\": " + err.getMessage());
+            throw new RuntimeException(err);
+        } finally {
+            observe("insert", started);
+        }
+    }
+
+    /**
+     * @return redirect of url, expired one too
+     */
+    @Nullable
+    public Entry get(@NotNull final String url) {
+        long started = System.nanoTime();
+        try (PreparedStatement stat = sqlite.prepareStatement(getQuery)) {
+            stat.setString(1, url);
+            try (ResultSet rs = stat.executeQuery()) {
+                return rs.next() ? new Entry(rs.getString(1), rs.getInt(2), rs.getLong(3)) : null;
+            }
+        } catch (SQLException err) {
+            log.error("Unable to get url \"" + url + "\" from table \"" + objectName + "\": " + err.getMessage());
+            throw new RuntimeException(err);
+        } finally {
+            observe("select", started);
+        }
+    }
+
+    public void remove(@NotNull final String url) {
+        long started = System.nanoTime();
+        try (PreparedStatement stat = sqlite.prepareStatement(removeQuery)) {
+            stat.setString(1, url);
+            stat.executeUpdate();
+        } catch (SQLException err) {
+            log.error("Unable to delete url \"" + url + "\" from table \"" + objectName + "\": " + err.getMessage());
+            throw new RuntimeException(err);
+        } finally {
+            observe("delete", started);
+        }
+    }
+
+    public static class Entry {
+
+        final String location;
+        final int hops;
+        final long expiresAt;
+
+        Entry(String location, int hops, long expiresAt) {
+            this.location = location;
+            this.hops = hops;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(final long now) {
+            return expiresAt < now;
+        }
+    }
+}
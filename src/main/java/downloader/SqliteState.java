@@ -6,16 +6,34 @@ import java.sql.Connection;
 
 public class SqliteState {
 
+    static final String PAGES_TABLE_NAME = "pages";
+
     private final SqliteMap converted;
     private final SqliteMap urlFileHashes;
     private final SqliteList failed;
     private final SqliteList errCodesImages;
+    private final SqliteHostBreakers hostBreakers;
+    private final SqliteJournal journal;
+    private final SqlitePackIndex packIndex;
+    private final SqliteMap inlined;
+    private final SqliteCookies cookies;
+    private final SqliteRedirects redirects;
+    private final SqlitePages pages;
+    private final SqliteLocalFiles localFiles;
 
     public SqliteState(@NotNull final Connection sqlite) {
         this.converted = new SqliteMap(sqlite, "converted");
         this.urlFileHashes = new SqliteMap(sqlite, "file_hashes");
         this.failed = new SqliteList(sqlite, "fails");
         this.errCodesImages = new SqliteList(sqlite, "err_codes");
+        this.hostBreakers = new SqliteHostBreakers(sqlite, "host_breakers");
+        this.journal = new SqliteJournal(sqlite, "journal");
+        this.packIndex = new SqlitePackIndex(sqlite, "pack_index");
+        this.inlined = new SqliteMap(sqlite, "inlined");
+        this.cookies = new SqliteCookies(sqlite, "cookies");
+        this.redirects = new SqliteRedirects(sqlite, "redirects");
+        this.pages = new SqlitePages(sqlite, PAGES_TABLE_NAME);
+        this.localFiles = new SqliteLocalFiles(sqlite, "local_files");
     }
 
     public SqliteMap getConverted() {
@@ -33,4 +51,36 @@ public class SqliteState {
     public SqliteList getErrCodesImages() {
         return errCodesImages;
     }
+
+    public SqliteHostBreakers getHostBreakers() {
+        return hostBreakers;
+    }
+
+    public SqliteJournal getJournal() {
+        return journal;
+    }
+
+    public SqlitePackIndex getPackIndex() {
+        return packIndex;
+    }
+
+    public SqliteMap getInlined() {
+        return inlined;
+    }
+
+    public SqliteCookies getCookies() {
+        return cookies;
+    }
+
+    public SqliteRedirects getRedirects() {
+        return redirects;
+    }
+
+    public SqlitePages getPages() {
+        return pages;
+    }
+
+    public SqliteLocalFiles getLocalFiles() {
+        return localFiles;
+    }
 }
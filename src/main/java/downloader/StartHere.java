@@ -2,19 +2,20 @@ package downloader;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.jsoup.nodes.Document;
+import org.jetbrains.annotations.Nullable;
 import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
 import org.nibor.autolink.LinkExtractor;
 import org.nibor.autolink.LinkSpan;
 import org.nibor.autolink.LinkType;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -22,132 +23,235 @@ public class StartHere {
 
     private static final Logger log = LogManager.getLogger(StartHere.class);
 
-    private static final Pattern cssLink = Pattern.compile("src: url\\(resources.*\\);",
+    private static final Pattern cssLink = Pattern.compile("src: url\\((resources|data:).*\\);",
             Pattern.MULTILINE | Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
     private static final String cssLinkBegin = "src: url(";
     private static final String cssLinkEnd = ");";
+    private static final LinkExtractor linkExtractor = LinkExtractor.builder()
+            .linkTypes(EnumSet.of(LinkType.URL, LinkType.WWW, LinkType.EMAIL))
+            .build();
 
     public static void main(String... args) {
         CmdLineParser cmdLineParser = new CmdLineParser();
         ParsedCmdline parsedCmdline = cmdLineParser.parse(args);
         cmdLineParser.checkErrors(parsedCmdline);
 
+        if (parsedCmdline.isUnpack()) {
+            unpack(parsedCmdline);
+            LogManager.shutdown();
+            return;
+        }
+
         log.info("Starting...");
 
-        final InputHtmlFilesReader inputHtmlFilesReader = new InputHtmlFilesReader(parsedCmdline.getInputFiles());
-        final long totalFilesCount = inputHtmlFilesReader.size();
-        long filesCounter = 0L;
-
-        try (SqliteHolder sqliteHolder = new SqliteHolder()) {
-            for (Document document : inputHtmlFilesReader) {
-                filesCounter++;
-                log.info("Processing {}", document.location());
-                Document.OutputSettings os = document.outputSettings();
-                os.prettyPrint(false);
-
-                try (ResourceProcessor resourceProcessor = ResourceProcessor.forDocument(sqliteHolder,
-                        document,
-                        parsedCmdline.getTries(),
-                        parsedCmdline.getTimeout(),
-                        parsedCmdline.isReverseMode(),
-                        parsedCmdline.getExternalHost(),
-                        parsedCmdline.getExternalPort(),
-                        parsedCmdline.getExternalUserName(),
-                        parsedCmdline.getExternalPassword(),
-                        parsedCmdline.getExternalKeyFile())) {
-
-                    final Elements imagesLinks = document.getElementsByTag("img");
-                    final Elements scriptLinks = document.getElementsByTag("script");
-                    final Elements stylesLinks = document.getElementsByTag("link");
-                    final Elements innerStylesBodies = document.getElementsByTag("style");
-                    final long totalUrlsCount = imagesLinks.size() + scriptLinks.size() + stylesLinks.size() + innerStylesBodies.size();
-                    long urlsCounter = 0L;
-
-                    for (Element image : imagesLinks) {
-                        urlsCounter++;
-                        log.info(String.format("File %d of %d: processing link %d of %d", filesCounter, totalFilesCount, urlsCounter, totalUrlsCount));
-                        String src = image.attr("src");
-                        String replaced = resourceProcessor.replaceUrl(src, parsedCmdline.isReverseMode());
-                        if (replaced == null)
-                            continue;
-                        image.attr("src", replaced);
-                    }
+        final boolean reverseMode = parsedCmdline.isReverseMode();
+        DnsCache.configure(parsedCmdline.getDnsTtl() * 1000L, parsedCmdline.getHostsFile());
+        DaemonServer daemon = null;
+        DirectoryWatcher watcher = null;
+        try {
+            // port is bound before anything else, so second daemon fails fast
+            if (parsedCmdline.getDaemonPort() > 0)
+                daemon = new DaemonServer(parsedCmdline.getDaemonPort(), parsedCmdline.getQueueSize(), cmdLineParser);
+            if (parsedCmdline.isWatch())
+                watcher = new DirectoryWatcher(parsedCmdline.getWatchDirs(), parsedCmdline.getDebounce(), reverseMode,
+                        cmdLineParser);
+            if (daemon == null && watcher == null) {
+                // hooks of daemon and watch mode flush logs themselves, killed plain run flushes queued events here
+                Runtime.getRuntime().addShutdownHook(new Thread(LogManager::shutdown, "log-flush"));
+            }
+            convert(parsedCmdline, daemon, watcher);
+        } finally {
+            if (daemon != null)
+                daemon.close();
+            if (watcher != null)
+                watcher.close();
+            // shutdown hook of log4j is disabled, queued events of asynchronous appender are flushed here
+            LogManager.shutdown();
+            // JVM halts once hooks return, so they wait for flushed logs
+            if (daemon != null)
+                daemon.exited();
+            if (watcher != null)
+                watcher.exited();
+        }
+    }
 
-                    for (Element script : scriptLinks) {
-                        urlsCounter++;
-                        log.info(String.format("File %d of %d: processing link %d of %d", filesCounter, totalFilesCount, urlsCounter, totalUrlsCount));
-                        String src = script.attr("src");
-                        if (!src.isEmpty()) {
-                            String replaced = resourceProcessor.replaceUrl(src, parsedCmdline.isReverseMode());
-                            if (replaced == null)
-                                continue;
-                            script.attr("src", replaced);
-                        }
-                    }
+    // metrics exporter is held by try-with-resources only
+    @SuppressWarnings("try")
+    private static void convert(ParsedCmdline parsedCmdline,
+                                @Nullable DaemonServer daemon,
+                                @Nullable DirectoryWatcher watcher) {
+        final RetryPolicy retryPolicy = new RetryPolicy(parsedCmdline.getRetryDelay() * 1000L,
+                parsedCmdline.getRetryBudget());
+        final HostCircuitBreaker circuitBreaker = new HostCircuitBreaker(parsedCmdline.getBreakerFailures(),
+                parsedCmdline.getBreakerCoolDown() * 1000L,
+                parsedCmdline.getBreakerTtl() * 60_000L);
+        final boolean reverseMode = parsedCmdline.isReverseMode();
+        try (MetricsExporter ignored = new MetricsExporter(parsedCmdline.getMetricsFile(),
+                parsedCmdline.getMetricsJsonFile(),
+                parsedCmdline.getMetricsInterval());
+             SqliteHolder sqliteHolder = new SqliteHolder(parsedCmdline.getOpenDatabases());
+             ResourcePacks resourcePacks = new ResourcePacks();
+             ResourceDirLocks dirLocks = new ResourceDirLocks();
+             ContentCache contentCache = parsedCmdline.getCacheDir() != null && !reverseMode
+                     ? new ContentCache(parsedCmdline.getCacheDir(), parsedCmdline.getCacheSize() * 1024L * 1024L)
+                     : null;
+             ImageOptimizer imageOptimizer = parsedCmdline.getOptimizeImages() > 0 && !reverseMode
+                     ? new ImageOptimizer(parsedCmdline.getOptimizeImages() * 1024L, parsedCmdline.getMaxImageDimension())
+                     : null;
+             DownloadClients clients = new DownloadClients(parsedCmdline);
+             DownloadScheduler scheduler = new DownloadScheduler(parsedCmdline.getJobs(),
+                     parsedCmdline.getHostConnections())) {
+            // pack index lives in state database, pack is closed with it
+            sqliteHolder.addEvictionListener(sqliteLocation -> resourcePacks.closePack(sqliteLocation.getParent()));
+            HtmlFilesConverter converter = new HtmlFilesConverter(parsedCmdline, sqliteHolder, resourcePacks,
+                    dirLocks, contentCache, imageOptimizer, clients, scheduler, retryPolicy, circuitBreaker);
+            logStartupTime();
+            if (daemon != null) {
+                daemon.run(converter, clients, parsedCmdline);
+            } else if (watcher != null) {
+                watcher.run(converter, clients, parsedCmdline.getInputFiles(), parsedCmdline.getProgressInterval());
+            } else {
+                List<Path> inputFiles = parsedCmdline.getInputFiles();
+                try (ProgressReporter progress = new ProgressReporter(inputFiles.size(),
+                        parsedCmdline.getProgressInterval())) {
+                    converter.convert(inputFiles, progress);
+                }
+            }
+            scheduler.logStats();
+            logTransferStats();
+        }
+    }
 
-                    for (Element style : stylesLinks) {
-                        urlsCounter++;
-                        log.info(String.format("File %d of %d: processing link %d of %d", filesCounter, totalFilesCount, urlsCounter, totalUrlsCount));
-                        String rel = style.attr("rel");
-                        String href = style.attr("href");
-                        if (rel.equals("stylesheet") && !href.isEmpty()) {
-                            String replaced = resourceProcessor.replaceUrl(href, parsedCmdline.isReverseMode());
-                            if (replaced == null)
-                                continue;
-                            style.attr("href", replaced);
-                        }
-                    }
+    private static void unpack(ParsedCmdline parsedCmdline) {
+        List<Path> resourcesDirs = parsedCmdline.getInputFiles();
+        if (resourcesDirs.isEmpty()) {
+            log.warn("No packed resources found");
+            return;
+        }
+        try (SqliteHolder sqliteHolder = new SqliteHolder(parsedCmdline.getOpenDatabases())) {
+            for (Path resourcesDir : resourcesDirs) {
+                SqliteState sqliteState = sqliteHolder.getConnection(resourcesDir.resolve(NamesUtils.STATE_DB_NAME));
+                try (ResourcePack pack = new ResourcePack(resourcesDir, sqliteState.getPackIndex())) {
+                    long extracted = pack.extractTo(resourcesDir);
+                    log.info("Extracted {} resources from {}", extracted, pack.getPackFile());
+                } catch (IOException err) {
+                    log.error("Unable to extract resources in {}: {}", resourcesDir, err.getMessage());
+                }
+            }
+        }
+    }
 
-                    for (Element innerStyle : innerStylesBodies) {
-                        urlsCounter++;
-                        log.info(String.format("File %d of %d: processing link %d of %d", filesCounter, totalFilesCount, urlsCounter, totalUrlsCount));
-                        String css = innerStyle.html();
-                        StringBuilder modifier = new StringBuilder(css);
-                        if (!parsedCmdline.isReverseMode()) {
-                            LinkExtractor linkExtractor = LinkExtractor.builder()
-                                    .linkTypes(EnumSet.of(LinkType.URL, LinkType.WWW, LinkType.EMAIL))
-                                    .build();
-                            for (LinkSpan linkSpan : linkExtractor.extractLinks(css)) {
-                                String url = css.substring(linkSpan.getBeginIndex(), linkSpan.getEndIndex());
-                                String local = resourceProcessor.replaceUrl(url, parsedCmdline.isReverseMode());
-                                if (local == null)
-                                    continue;
-                                int begin = modifier.indexOf(url);
-                                if (begin >= 0) {
-                                    modifier.replace(begin, begin + url.length(), local);
-                                }
-                            }
-
-                        } else {
-                            Matcher cssUrlMatcher = cssLink.matcher(css);
-                            while (cssUrlMatcher.find()) {
-                                String found = cssUrlMatcher.group();
-                                String url = found.substring(cssLinkBegin.length(), found.lastIndexOf(cssLinkEnd));
-                                String revert = resourceProcessor.replaceUrl(url, parsedCmdline.isReverseMode());
-                                if (revert == null)
-                                    continue;
-                                int begin = modifier.indexOf(url);
-                                if (begin >= 0) {
-                                    modifier.replace(begin, begin + url.length(), revert);
-                                }
-                            }
-                        }
-                        innerStyle.html(modifier.toString());
-                    }
+    /**
+     * JVM uptime until the first file may be converted, http, TLS, SSH and AWT are loaded later on first use.
+     */
+    private static void logStartupTime() {
+        final long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+        Metrics.gauge("resdownloader_startup_seconds", () -> uptime / 1000.0);
+        log.info("Started in {} ms", uptime);
+    }
 
-                    Path newFileName = parsedCmdline.isReverseMode()
-                            ? NamesUtils.getOrigPath(Paths.get(document.location()))
-                            : NamesUtils.getDownloadPath(Paths.get(document.location()));
+    private static void logTransferStats() {
+        long received = Metrics.sum("resdownloader_received_bytes_total");
+        long decoded = Metrics.sum("resdownloader_decoded_bytes_total");
+        if (decoded > 0L) {
+            log.info("Received {} bytes, decoded {} bytes, {}% saved by compression",
+                    received, decoded, (decoded - received) * 100L / decoded);
+        }
+    }
 
-                    log.info("Save modified html file to {}", newFileName);
-                    try (BufferedWriter bufferedWriter = Files.newBufferedWriter(newFileName, document.charset())) {
-                        bufferedWriter.append(document.outerHtml());
-                        log.info("Success");
-                    } catch (IOException err) {
-                        log.error("Unable to save output file to {}: {}", newFileName, err.getMessage());
-                    }
+    static boolean processElement(ResourceProcessor resourceProcessor, Element element, boolean reverseMode) {
+        switch (element.tagName()) {
+            case "img":
+                return replaceAttribute(resourceProcessor, element, "src", reverseMode);
+            case "script":
+                return !element.attr("src").isEmpty()
+                        && replaceAttribute(resourceProcessor, element, "src", reverseMode);
+            case "link":
+                return element.attr("rel").equals("stylesheet")
+                        && !element.attr("href").isEmpty()
+                        && replaceAttribute(resourceProcessor, element, "href", reverseMode);
+            case "style":
+                return replaceInnerStyle(resourceProcessor, element, reverseMode);
+            default:
+                return false;
+        }
+    }
+
+    private static boolean replaceAttribute(ResourceProcessor resourceProcessor,
+                                            Element element,
+                                            String attribute,
+                                            boolean reverseMode) {
+        String url = element.attr(attribute);
+        String replaced = resourceProcessor.replaceUrl(url, reverseMode);
+        if (replaced == null)
+            return resourceProcessor.isDeferred(url);
+        element.attr(attribute, replaced);
+        return false;
+    }
+
+    static boolean replaceInnerStyle(ResourceProcessor resourceProcessor,
+                                     Element innerStyle,
+                                     boolean reverseMode) {
+        boolean deferred = false;
+        String css = innerStyle.html();
+        StringBuilder modifier = new StringBuilder(css);
+        if (!reverseMode) {
+            // replaced at found positions, a url may also occur inside local path of another one
+            modifier.setLength(0);
+            int copied = 0;
+            for (LinkSpan linkSpan : linkExtractor.extractLinks(css)) {
+                String url = css.substring(linkSpan.getBeginIndex(), linkSpan.getEndIndex());
+                String local = resourceProcessor.replaceUrl(url, false);
+                if (local == null) {
+                    deferred |= resourceProcessor.isDeferred(url);
+                    continue;
                 }
+                modifier.append(css, copied, linkSpan.getBeginIndex()).append(local);
+                copied = linkSpan.getEndIndex();
+            }
+            modifier.append(css, copied, css.length());
+
+        } else {
+            Matcher cssUrlMatcher = cssLink.matcher(css);
+            while (cssUrlMatcher.find()) {
+                String found = cssUrlMatcher.group();
+                String url = found.substring(cssLinkBegin.length(), found.lastIndexOf(cssLinkEnd));
+                String revert = resourceProcessor.replaceUrl(url, true);
+                if (revert == null)
+                    continue;
+                int begin = modifier.indexOf(url);
+                if (begin >= 0) {
+                    modifier.replace(begin, begin + url.length(), revert);
+                }
+            }
+        }
+        innerStyle.html(modifier.toString());
+        return deferred;
+    }
+
+    static Set<String> collectUrls(Elements elements) {
+        Set<String> urls = new LinkedHashSet<>();
+        for (Element element : elements) {
+            switch (element.tagName()) {
+                case "img":
+                case "script":
+                    if (!element.attr("src").isEmpty())
+                        urls.add(element.attr("src"));
+                    break;
+                case "link":
+                    if (element.attr("rel").equals("stylesheet") && !element.attr("href").isEmpty())
+                        urls.add(element.attr("href"));
+                    break;
+                case "style":
+                    String css = element.html();
+                    for (LinkSpan linkSpan : linkExtractor.extractLinks(css)) {
+                        urls.add(css.substring(linkSpan.getBeginIndex(), linkSpan.getEndIndex()));
+                    }
+                    break;
+                default:
+                    break;
             }
         }
+        return urls;
     }
 }
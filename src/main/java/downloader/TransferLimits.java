@@ -0,0 +1,156 @@
+package downloader;
+
+import org.apache.http.client.methods.HttpGet;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Time limits of single resource download. Connect, time to first byte and idle timeouts are socket timeouts,
+ * wall-clock deadline and minimum throughput are watched by {@link Transfer} of each resource.
+ */
+public class TransferLimits {
+
+    static final int DEFAULT_MIN_SPEED_TIME = 30;
+
+    final int connectTimeoutMillis;
+    final int ttfbTimeoutMillis;
+    final int idleTimeoutMillis;
+    final long deadlineMillis;
+    final long minBytesPerSecond;
+    final long minSpeedTimeNanos;
+
+    /**
+     * @param deadline     seconds, 0 - no deadline
+     * @param minSpeed     KB/s, 0 - no throughput limit
+     * @param minSpeedTime seconds throughput may stay under minSpeed
+     */
+    TransferLimits(final int connectTimeout,
+                   final int ttfbTimeout,
+                   final int idleTimeout,
+                   final int deadline,
+                   final int minSpeed,
+                   final int minSpeedTime) {
+        this.connectTimeoutMillis = connectTimeout * 1000;
+        this.ttfbTimeoutMillis = ttfbTimeout * 1000;
+        this.idleTimeoutMillis = idleTimeout * 1000;
+        this.deadlineMillis = deadline * 1000L;
+        this.minBytesPerSecond = minSpeed * 1024L;
+        this.minSpeedTimeNanos = TimeUnit.SECONDS.toNanos(minSpeedTime);
+    }
+
+    /**
+     * Starts watching download of one resource, deadline aborts its requests even when they block on socket.
+     */
+    @NotNull
+    Transfer start(@NotNull final Supplier<ScheduledExecutorService> watchdog) {
+        Transfer transfer = new Transfer();
+        if (deadlineMillis > 0L)
+            transfer.expiration = watchdog.get().schedule(() -> transfer.abort(DownloadResult.DEADLINE_EXCEEDED),
+                    deadlineMillis, TimeUnit.MILLISECONDS);
+        return transfer;
+    }
+
+    /**
+     * Requests of one resource, including redirects and parallel segments.
+     */
+    class Transfer {
+
+        private final Set<HttpGet> requests = ConcurrentHashMap.newKeySet();
+        private volatile int abortCode = 0;
+        private ScheduledFuture<?> expiration = null;
+
+        void register(@NotNull final HttpGet request) {
+            requests.add(request);
+            if (abortCode != 0)
+                request.abort();
+        }
+
+        void unregister(@NotNull final HttpGet request) {
+            requests.remove(request);
+        }
+
+        boolean isAborted() {
+            return abortCode != 0;
+        }
+
+        @NotNull
+        DownloadResult getAbortResult(final long bytes, final long responseMillis) {
+            return new DownloadResult(abortCode, bytes, responseMillis, 0L);
+        }
+
+        /**
+         * Aborts all requests of resource, the first reason wins.
+         *
+         * @return exception for the thread which noticed the reason
+         */
+        synchronized AbortedException abort(final int code) {
+            if (abortCode == 0) {
+                abortCode = code;
+                Metrics.counter("resdownloader_download_aborts_total", "reason",
+                        new DownloadResult(code, 0L, 0L, 0L).getCodeLabel()).increment();
+                for (HttpGet request : requests) {
+                    request.abort();
+                }
+            }
+            return new AbortedException(abortCode);
+        }
+
+        void finish() {
+            if (expiration != null)
+                expiration.cancel(false);
+        }
+
+        @NotNull
+        SpeedMeter newSpeedMeter() {
+            return new SpeedMeter(this);
+        }
+    }
+
+    /**
+     * Throughput of one connection: aborts transfer when less than minimum speed came during each window.
+     */
+    class SpeedMeter {
+
+        private final Transfer transfer;
+        private long windowStarted = System.nanoTime();
+        private long windowBytes = 0L;
+
+        private SpeedMeter(Transfer transfer) {
+            this.transfer = transfer;
+        }
+
+        void onRead(final int bytes) throws AbortedException {
+            if (transfer.isAborted())
+                throw transfer.abort(transfer.abortCode);
+            if (minBytesPerSecond <= 0L)
+                return;
+            windowBytes += bytes;
+            long elapsed = System.nanoTime() - windowStarted;
+            if (elapsed < minSpeedTimeNanos)
+                return;
+            if (windowBytes * TimeUnit.SECONDS.toNanos(1) < minBytesPerSecond * elapsed)
+                throw transfer.abort(DownloadResult.TOO_SLOW);
+            windowStarted = System.nanoTime();
+            windowBytes = 0L;
+        }
+    }
+
+    static class AbortedException
+            extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        AbortedException(int code) {
+            super(code == DownloadResult.DEADLINE_EXCEEDED
+                    ? "download deadline exceeded"
+                    : "download is too slow");
+        }
+    }
+}
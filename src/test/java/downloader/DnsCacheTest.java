@@ -0,0 +1,114 @@
+package downloader;
+
+import org.apache.http.conn.DnsResolver;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DnsCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void hostsFileIsParsed() throws IOException {
+        Path hostsFile = tempDir.resolve("hosts");
+        Files.write(hostsFile, Arrays.asList(
+                "# local mirrors",
+                "127.0.0.1\tlocalhost Mirror.Example.org   # comment after names",
+                "",
+                "::1 mirror.example.org",
+                "10.0.0.1",
+                "mirror.example.org 10.0.0.2",
+                "999.1.1.1 broken.example.org",
+                "  192.168.1.5 cdn.example.org"
+        ), StandardCharsets.UTF_8);
+
+        Map<String, InetAddress[]> hosts = DnsCache.readHostsFile(hostsFile);
+        assertEquals(3, hosts.size());
+        assertArrayEquals(new byte[]{127, 0, 0, 1}, hosts.get("localhost")[0].getAddress());
+        // names are lower case, addresses of all lines are kept in order
+        InetAddress[] mirror = hosts.get("mirror.example.org");
+        assertEquals(2, mirror.length);
+        assertArrayEquals(new byte[]{127, 0, 0, 1}, mirror[0].getAddress());
+        assertEquals(InetAddress.getByName("::1"), mirror[1]);
+        assertEquals("mirror.example.org", mirror[0].getHostName());
+        assertArrayEquals(new byte[]{(byte) 192, (byte) 168, 1, 5}, hosts.get("cdn.example.org")[0].getAddress());
+        assertFalse(hosts.containsKey("broken.example.org"));
+    }
+
+    @Test
+    void hostsFileTakesPrecedence() throws UnknownHostException {
+        CountingResolver resolver = new CountingResolver();
+        InetAddress local = InetAddress.getByAddress("example.org", new byte[]{127, 0, 0, 1});
+        DnsCache cache = new DnsCache(60_000L,
+                Collections.singletonMap("example.org", new InetAddress[]{local}), resolver);
+
+        assertArrayEquals(new InetAddress[]{local}, cache.resolve("EXAMPLE.org"));
+        assertEquals(0, resolver.lookups.get());
+        cache.resolve("other.org");
+        assertEquals(1, resolver.lookups.get());
+    }
+
+    @Test
+    void addressesAreCachedForTtl() throws UnknownHostException {
+        CountingResolver resolver = new CountingResolver();
+        DnsCache cache = new DnsCache(60_000L, Collections.emptyMap(), resolver);
+        InetAddress[] first = cache.resolve("example.org");
+        assertArrayEquals(first, cache.resolve("Example.ORG"));
+        assertEquals(1, resolver.lookups.get());
+    }
+
+    @Test
+    void addressesAreResolvedAgainAfterTtl() throws Exception {
+        CountingResolver resolver = new CountingResolver();
+        DnsCache cache = new DnsCache(1L, Collections.emptyMap(), resolver);
+        cache.resolve("example.org");
+        Thread.sleep(5L);
+        cache.resolve("example.org");
+        assertEquals(2, resolver.lookups.get());
+
+        DnsCache disabled = new DnsCache(0L, Collections.emptyMap(), resolver);
+        disabled.resolve("example.org");
+        disabled.resolve("example.org");
+        assertEquals(4, resolver.lookups.get());
+    }
+
+    @Test
+    void failedLookupIsNotCached() {
+        CountingResolver resolver = new CountingResolver();
+        DnsCache cache = new DnsCache(60_000L, Collections.emptyMap(), resolver);
+        assertThrows(UnknownHostException.class, () -> cache.resolve("unknown.invalid"));
+        assertThrows(UnknownHostException.class, () -> cache.resolve("unknown.invalid"));
+        assertEquals(2, resolver.lookups.get());
+    }
+
+    private static class CountingResolver
+            implements DnsResolver {
+
+        final AtomicInteger lookups = new AtomicInteger();
+
+        @Override
+        public InetAddress[] resolve(final String host) throws UnknownHostException {
+            lookups.incrementAndGet();
+            if (host.endsWith(".invalid"))
+                throw new UnknownHostException(host);
+            return new InetAddress[]{InetAddress.getByAddress(host, new byte[]{10, 0, 0, (byte) lookups.get()})};
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package downloader;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DownloadSchedulerTest {
+
+    private static final String HOST = "gauges.example.org";
+
+    @Test
+    void hostStateIsExportedWhileRunning() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        try (DownloadScheduler scheduler = new DownloadScheduler(4, 4)) {
+            Future<DownloadResult> first = scheduler.submit(URI.create("http://" + HOST + "/a.png"), () -> {
+                release.await();
+                return new DownloadResult(200, 2048L, 10L, 0L);
+            });
+            Future<DownloadResult> second = scheduler.submit(URI.create("http://" + HOST + "/b.png"), () -> {
+                release.await();
+                return new DownloadResult(200, 2048L, 10L, 0L);
+            });
+            // initial limit of host
+            assertEquals(2.0, gauge("resdownloader_host_concurrency_limit"));
+            waitForInFlight(2.0);
+
+            release.countDown();
+            first.get();
+            second.get();
+            waitForInFlight(0.0);
+            assertTrue(gauge("resdownloader_host_throughput_bytes_per_second") > 0.0);
+        }
+    }
+
+    private static void waitForInFlight(double expected) throws InterruptedException {
+        for (int i = 0; i < 100 && gauge("resdownloader_host_in_flight") != expected; i++) {
+            Thread.sleep(10L);
+        }
+        assertEquals(expected, gauge("resdownloader_host_in_flight"));
+    }
+
+    private static double gauge(String name) {
+        for (Metrics.Gauge gauge : Metrics.getGauges()) {
+            if (gauge.name.equals(name) && HOST.equals(gauge.labels.get("host")))
+                return gauge.get();
+        }
+        throw new AssertionError("No gauge " + name + " of host " + HOST);
+    }
+}
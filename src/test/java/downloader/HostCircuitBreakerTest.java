@@ -0,0 +1,163 @@
+package downloader;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HostCircuitBreakerTest {
+
+    private static final String HOST = "example.org";
+    private static final long COOL_DOWN = 60_000L;
+    private static final long TTL = 3_600_000L;
+
+    @TempDir
+    Path tempDir;
+
+    private Connection connection;
+    private SqliteHostBreakers table;
+
+    @BeforeEach
+    void openTable() throws SQLException {
+        connection = DriverManager.getConnection(SqliteHolder.JDBC_PREFIX
+                + tempDir.resolve("state.db").toString().replace('\\', '/'));
+        table = new SqliteHostBreakers(connection, "host_breakers");
+    }
+
+    @AfterEach
+    void closeTable() throws SQLException {
+        connection.close();
+    }
+
+    @Test
+    void opensAfterFailuresInRow() {
+        HostCircuitBreaker breaker = new HostCircuitBreaker(3, COOL_DOWN, TTL);
+        fail(breaker, 2);
+        assertTrue(breaker.allowRequest(HOST));
+        // response resets failures in a row
+        breaker.onResult(HOST, ok());
+        fail(breaker, 2);
+        assertTrue(breaker.allowRequest(HOST));
+
+        fail(breaker, 1);
+        assertFalse(breaker.allowRequest(HOST));
+        assertTrue(breaker.allowRequest("other.org"));
+    }
+
+    @Test
+    void responseToProbeClosesCircuit() {
+        // no cool-down, the next request after opening is a probe
+        HostCircuitBreaker breaker = new HostCircuitBreaker(1, 0L, TTL);
+        fail(breaker, 1);
+
+        assertTrue(breaker.allowRequest(HOST));
+        // one probe at a time
+        assertFalse(breaker.allowRequest(HOST));
+        // HTTP error is a response too
+        breaker.onResult(HOST, new DownloadResult(404, 0L, 0L, 0L));
+
+        assertTrue(breaker.allowRequest(HOST));
+        assertTrue(breaker.allowRequest(HOST));
+    }
+
+    @Test
+    void failedProbeOpensCircuitAgain() {
+        HostCircuitBreaker breaker = new HostCircuitBreaker(1, 0L, TTL);
+        fail(breaker, 1);
+        assertTrue(breaker.allowRequest(HOST));
+        breaker.onResult(HOST, new DownloadResult(DownloadResult.DEADLINE_EXCEEDED, 0L, 0L, 0L));
+
+        HostCircuitBreaker cooling = new HostCircuitBreaker(1, COOL_DOWN, TTL);
+        cooling.load(saved(breaker));
+        assertFalse(cooling.allowRequest(HOST));
+    }
+
+    @Test
+    void skippedRequestIsNotFailure() {
+        HostCircuitBreaker breaker = new HostCircuitBreaker(1, COOL_DOWN, TTL);
+        breaker.onResult(HOST, DownloadResult.circuitOpen());
+        assertTrue(breaker.allowRequest(HOST));
+    }
+
+    @Test
+    void openCircuitIsRestoredFromDatabase() {
+        HostCircuitBreaker breaker = new HostCircuitBreaker(2, COOL_DOWN, TTL);
+        fail(breaker, 2);
+
+        HostCircuitBreaker next = new HostCircuitBreaker(2, COOL_DOWN, TTL);
+        next.load(saved(breaker));
+        assertFalse(next.allowRequest(HOST));
+    }
+
+    @Test
+    void failuresOfClosedCircuitAreNotRestored() {
+        HostCircuitBreaker breaker = new HostCircuitBreaker(2, 0L, TTL);
+        fail(breaker, 2);
+        assertTrue(breaker.allowRequest(HOST));
+        breaker.onResult(HOST, ok());
+        fail(breaker, 1);
+        saved(breaker);
+
+        List<HostCircuitBreaker.Snapshot> snapshots = table.loadNotOlderThan(0L);
+        assertEquals(1, snapshots.size());
+        assertEquals(HostCircuitBreaker.State.CLOSED, snapshots.get(0).state);
+        assertEquals(0, snapshots.get(0).failures);
+
+        HostCircuitBreaker next = new HostCircuitBreaker(2, COOL_DOWN, TTL);
+        next.load(table);
+        // failure of previous run does not count
+        fail(next, 1);
+        assertTrue(next.allowRequest(HOST));
+    }
+
+    @Test
+    void onlyHostsUsedByDocumentAreSaved() {
+        HostCircuitBreaker breaker = new HostCircuitBreaker(1, COOL_DOWN, TTL);
+        fail(breaker, 1);
+
+        breaker.save(table, Collections.singleton("other.org"));
+        assertTrue(table.loadNotOlderThan(0L).isEmpty());
+
+        breaker.save(table, Collections.singleton(HOST));
+        assertEquals(1, table.loadNotOlderThan(0L).size());
+    }
+
+    @Test
+    void expiredStateIsNotLoaded() {
+        HostCircuitBreaker breaker = new HostCircuitBreaker(1, COOL_DOWN, TTL);
+        fail(breaker, 1);
+        saved(breaker);
+
+        // loaded by run with TTL already passed
+        HostCircuitBreaker next = new HostCircuitBreaker(1, COOL_DOWN, -1L);
+        next.load(table);
+        assertTrue(next.allowRequest(HOST));
+        assertTrue(table.loadNotOlderThan(0L).isEmpty());
+    }
+
+    private SqliteHostBreakers saved(HostCircuitBreaker breaker) {
+        breaker.save(table, Collections.singleton(HOST));
+        return table;
+    }
+
+    private static void fail(HostCircuitBreaker breaker, int failures) {
+        for (int i = 0; i < failures; i++) {
+            breaker.onResult(HOST, DownloadResult.noResponse());
+        }
+    }
+
+    private static DownloadResult ok() {
+        return new DownloadResult(200, 0L, 0L, 0L);
+    }
+}
@@ -0,0 +1,130 @@
+package downloader;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static downloader.NamesUtils.RESOURCES_PATH_NAME;
+import static downloader.NamesUtils.STATE_DB_NAME;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HtmlFilesConverterTest {
+
+    @TempDir
+    Path inputDir;
+
+    private SqliteHolder sqliteHolder;
+
+    @BeforeEach
+    void openDatabases() {
+        sqliteHolder = new SqliteHolder();
+    }
+
+    @AfterEach
+    void closeDatabases() {
+        sqliteHolder.close();
+    }
+
+    @Test
+    void urlsClientCanNotFetchFailWithoutRequests() throws IOException {
+        String dataUri = "data:image/gif;base64,R0lGODlhAQABAAAAACw=";
+        Path page = write("page.html", "<html><head><style>.logo { background: url(www.example.com/logo.png) }"
+                + "</style></head><body><img src=\"" + dataUri + "\"><img src=\"images/relative.png\"></body></html>");
+        long requests = Metrics.sum("resdownloader_requests_total");
+
+        assertEquals(1L, convert(page, "--tries", "3", "--retry-delay", "1"));
+        assertEquals(requests, Metrics.sum("resdownloader_requests_total"));
+
+        String converted = read(NamesUtils.getDownloadPath(page));
+        assertTrue(converted.contains("src=\"" + dataUri + "\""), converted);
+        assertTrue(converted.contains("src=\"images/relative.png\""), converted);
+        SqliteState state = sqliteHolder.getConnection(inputDir.resolve(RESOURCES_PATH_NAME).resolve(STATE_DB_NAME));
+        assertTrue(state.getFailed().contains(dataUri));
+        assertTrue(state.getFailed().contains("images/relative.png"));
+        assertTrue(state.getFailed().contains("www.example.com/logo.png"));
+    }
+
+    @Test
+    void deferredStyleRetriesOnlyDeferredUrls() throws IOException {
+        Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            int count = requests.computeIfAbsent(path, key -> new AtomicInteger()).incrementAndGet();
+            // second image is deferred once
+            boolean available = !path.equals("/img/b.png") || count > 1;
+            byte[] body = path.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "image/png");
+            exchange.sendResponseHeaders(available ? 200 : 503, available ? body.length : -1);
+            if (available)
+                exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        Path hostsFile = Files.write(inputDir.resolve("hosts"),
+                Collections.singletonList("127.0.0.1 www.example.com"), StandardCharsets.UTF_8);
+        DnsCache.configure(60_000L, hostsFile);
+        try {
+            String origin = "http://www.example.com:" + server.getAddress().getPort();
+            Path page = write("page.html", "<html><head><style>.a { background: url(" + origin + "/img/a.png) }\n"
+                    + ".b { background: url(" + origin + "/img/b.png) }</style></head><body></body></html>");
+
+            assertEquals(1L, convert(page, "--tries", "3", "--retry-delay", "1", "--no-prewarm"));
+
+            String converted = read(NamesUtils.getDownloadPath(page));
+            assertTrue(converted.contains(".a { background: url(resources/www.example.com/img/a.png) }"), converted);
+            assertTrue(converted.contains(".b { background: url(resources/www.example.com/img/b.png) }"), converted);
+            assertEquals(1, requests.get("/img/a.png").get());
+            assertEquals(2, requests.get("/img/b.png").get());
+            assertEquals(2, requests.size());
+            SqliteState state = sqliteHolder.getConnection(inputDir.resolve(RESOURCES_PATH_NAME).resolve(STATE_DB_NAME));
+            assertFalse(state.getFailed().contains("www.example.com/img/a.png"));
+        } finally {
+            DnsCache.configure(DnsCache.DEFAULT_TTL * 1000L, null);
+            server.stop(0);
+        }
+    }
+
+    private long convert(Path page, String... options) {
+        String[] args = new String[options.length + 1];
+        System.arraycopy(options, 0, args, 0, options.length);
+        args[options.length] = page.toString();
+        ParsedCmdline parsedCmdline = new CmdLineParser().parse(args);
+        try (ResourcePacks resourcePacks = new ResourcePacks();
+             ResourceDirLocks dirLocks = new ResourceDirLocks();
+             DownloadClients clients = new DownloadClients(parsedCmdline);
+             DownloadScheduler scheduler = new DownloadScheduler(parsedCmdline.getJobs(),
+                     parsedCmdline.getHostConnections());
+             ProgressReporter progress = new ProgressReporter(1L, 0)) {
+            HtmlFilesConverter converter = new HtmlFilesConverter(parsedCmdline, sqliteHolder, resourcePacks, dirLocks,
+                    null, null, clients, scheduler,
+                    new RetryPolicy(parsedCmdline.getRetryDelay() * 1000L, parsedCmdline.getRetryBudget()),
+                    new HostCircuitBreaker(parsedCmdline.getBreakerFailures(),
+                            parsedCmdline.getBreakerCoolDown() * 1000L, parsedCmdline.getBreakerTtl() * 60_000L));
+            return converter.convert(parsedCmdline.getInputFiles(), progress);
+        }
+    }
+
+    private Path write(String name, String html) throws IOException {
+        return Files.write(inputDir.resolve(name), html.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,170 @@
+package downloader;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static downloader.NamesUtils.RESOURCES_PATH_NAME;
+import static downloader.NamesUtils.STATE_DB_NAME;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PageVersionsTest {
+
+    private static final String FIRST = "http://example.org/first.png";
+    private static final String SECOND = "http://example.org/second.png";
+    private static final String THIRD = "http://example.org/third.png";
+
+    @TempDir
+    Path inputDir;
+
+    private SqliteHolder sqliteHolder;
+    private PageVersions pageVersions;
+
+    @BeforeEach
+    void createVersions() throws IOException {
+        Files.createDirectories(inputDir.resolve(RESOURCES_PATH_NAME));
+        sqliteHolder = new SqliteHolder();
+        pageVersions = new PageVersions(sqliteHolder);
+    }
+
+    @AfterEach
+    void closeDatabases() {
+        sqliteHolder.close();
+    }
+
+    @Test
+    void onlyChangedContentIsConvertedAgain() throws IOException {
+        Path page = write("page.html", "<img src=\"first.png\">", 1_000_000L);
+        assertTrue(pageVersions.isChanged(page));
+        convert(page, Collections.singletonList(FIRST));
+        assertFalse(pageVersions.isChanged(page));
+
+        // touched only
+        Files.setLastModifiedTime(page, FileTime.fromMillis(2_000_000L));
+        assertFalse(pageVersions.isChanged(page));
+        assertFalse(pageVersions.isChanged(page));
+
+        write("page.html", "<img src=\"second.png\">", 2_000_000L);
+        assertTrue(pageVersions.isChanged(page));
+        // not saved, checked again next time
+        pageVersions.clear();
+        assertTrue(pageVersions.isChanged(page));
+        convert(page, Collections.singletonList(SECOND));
+        assertFalse(pageVersions.isChanged(page));
+    }
+
+    @Test
+    void pageWithoutConvertedOutputIsChanged() throws IOException {
+        Path page = write("page.html", "<p>text</p>", 1_000_000L);
+        assertTrue(pageVersions.isChanged(page));
+        pageVersions.converted(page, Collections.emptyList());
+        // output was deleted
+        assertTrue(pageVersions.isChanged(page));
+    }
+
+    @Test
+    void urlsAreDroppedWhenNoPageReferencesThem() throws IOException {
+        Path first = write("first.html", "v1", 1_000_000L);
+        Path second = write("second.html", "v1", 1_000_000L);
+        assertTrue(pageVersions.isChanged(first));
+        convert(first, Arrays.asList(FIRST, SECOND, THIRD));
+        assertTrue(pageVersions.isChanged(second));
+        convert(second, Collections.singletonList(SECOND));
+        SqliteMap converted = markConverted(FIRST, SECOND, THIRD);
+
+        write("first.html", "version 2", 2_000_000L);
+        assertTrue(pageVersions.isChanged(first));
+        convert(first, Collections.singletonList(THIRD));
+
+        assertFalse(converted.containsKey(FIRST));
+        // still referenced by the second page
+        assertTrue(converted.containsKey(SECOND));
+        assertTrue(converted.containsKey(THIRD));
+    }
+
+    @Test
+    void urlsAreKeptWhileUrlsOfSomePageAreUnknown() throws IOException {
+        Path first = write("first.html", "v1", 1_000_000L);
+        Path second = write("second.html", "v1", 1_000_000L);
+        assertTrue(pageVersions.isChanged(first));
+        convert(first, Arrays.asList(FIRST, SECOND));
+        // converted before urls were recorded
+        Files.write(NamesUtils.getDownloadPath(second), Collections.singletonList("converted"), StandardCharsets.UTF_8);
+        assertFalse(pageVersions.isChanged(second));
+        SqliteMap converted = markConverted(FIRST, SECOND);
+
+        write("first.html", "version 2", 2_000_000L);
+        assertTrue(pageVersions.isChanged(first));
+        convert(first, Collections.singletonList(SECOND));
+        assertTrue(converted.containsKey(FIRST));
+    }
+
+    @Test
+    void pageWithoutLinksDoesNotKeepUrls() throws IOException {
+        Path first = write("first.html", "v1", 1_000_000L);
+        Path second = write("second.html", "v1", 1_000_000L);
+        assertTrue(pageVersions.isChanged(first));
+        convert(first, Arrays.asList(FIRST, SECOND));
+        assertTrue(pageVersions.isChanged(second));
+        convert(second, Collections.emptyList());
+        SqliteMap converted = markConverted(FIRST, SECOND);
+
+        write("first.html", "version 2", 2_000_000L);
+        assertTrue(pageVersions.isChanged(first));
+        convert(first, Collections.singletonList(SECOND));
+        assertFalse(converted.containsKey(FIRST));
+    }
+
+    @Test
+    void emptyUrlsOfPreviousVersionTableAreUnknown() throws SQLException {
+        Path stateDb = inputDir.resolve(RESOURCES_PATH_NAME).resolve(STATE_DB_NAME);
+        try (Connection connection = DriverManager.getConnection(SqliteHolder.JDBC_PREFIX + stateDb);
+             Statement stat = connection.createStatement()) {
+            stat.executeUpdate("create table `pages` (`name` text not null primary key, `size` integer not null, "
+                    + "`modified` integer not null, `md5` text not null, `urls` text not null)");
+            stat.executeUpdate("insert into `pages` values ('legacy.html', 1, 1, 'md5', '')");
+            stat.executeUpdate("insert into `pages` values ('recorded.html', 1, 1, 'md5', '" + FIRST + "')");
+        }
+        SqlitePages pages = sqliteHolder.getPages(stateDb);
+        assertNull(pages.get("legacy.html").urls);
+        assertEquals(Collections.singleton(FIRST), pages.get("recorded.html").urls);
+        assertTrue(pages.hasPagesWithUnknownUrls());
+    }
+
+    private Path write(String name, String content, long modified) throws IOException {
+        Path page = Files.write(inputDir.resolve(name), content.getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(page, FileTime.fromMillis(modified));
+        return page;
+    }
+
+    private void convert(Path page, List<String> urls) throws IOException {
+        Files.write(NamesUtils.getDownloadPath(page), Collections.singletonList("converted"), StandardCharsets.UTF_8);
+        pageVersions.converted(page, urls);
+    }
+
+    private SqliteMap markConverted(String... urls) {
+        SqliteMap converted = sqliteHolder.getConnection(inputDir.resolve(RESOURCES_PATH_NAME).resolve(STATE_DB_NAME))
+                .getConverted();
+        for (String url : urls) {
+            converted.put(url, "example.org/" + url.substring(url.lastIndexOf('/') + 1));
+        }
+        return converted;
+    }
+}
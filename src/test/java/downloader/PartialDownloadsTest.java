@@ -0,0 +1,132 @@
+package downloader;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PartialDownloadsTest {
+
+    private static final URI URL = URI.create("http://example.org/big.bin");
+    private static final long LENGTH = 1000L;
+
+    @TempDir
+    Path tempDir;
+
+    private PartialDownloads partialDownloads;
+
+    @BeforeEach
+    void createPartialDownloads() {
+        partialDownloads = new PartialDownloads(tempDir.resolve(PartialDownloads.PARTIAL_DIR_NAME), 100L, 4, 500L);
+    }
+
+    @Test
+    void rangeEndIsCheckedAgainstRequestedSegment() throws IOException {
+        PartialDownloads.Partial partial = started(4);
+        // segment 1 is bytes 250-499
+        assertEquals(499L, partial.getRangeEnd("bytes 250-499/1000", 250L, 499L));
+        assertEquals(499L, partial.getRangeEnd(" BYTES 250-499/* ", 250L, 499L));
+        // shorter range is accepted, the rest is requested on the next try
+        assertEquals(300L, partial.getRangeEnd("bytes 250-300/1000", 250L, 499L));
+
+        assertEquals(-1L, partial.getRangeEnd(null, 250L, 499L));
+        assertEquals(-1L, partial.getRangeEnd("bytes */1000", 250L, 499L));
+        // starts elsewhere
+        assertEquals(-1L, partial.getRangeEnd("bytes 0-499/1000", 250L, 499L));
+        // beyond segment
+        assertEquals(-1L, partial.getRangeEnd("bytes 250-500/1000", 250L, 499L));
+        assertEquals(-1L, partial.getRangeEnd("bytes 250-249/1000", 250L, 499L));
+        // resource of another length
+        assertEquals(-1L, partial.getRangeEnd("bytes 250-499/1001", 250L, 499L));
+        assertEquals(-1L, partial.getRangeEnd("bytes 250-99999999999999999999/1000", 250L, 499L));
+    }
+
+    @Test
+    void segmentsAreMergedInOrder() throws IOException {
+        PartialDownloads.Partial partial = started(4);
+        byte[] content = content();
+        writeSegments(partial, content, 4);
+        assertTrue(partial.getPendingSegments().isEmpty());
+
+        Path target = tempDir.resolve("merged.bin");
+        partial.mergeInto(target);
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertFalse(partialDownloads.forUrl(URL).isStarted());
+    }
+
+    @Test
+    void segmentOfWrongSizeIsNotMerged() throws IOException {
+        PartialDownloads.Partial partial = started(4);
+        byte[] content = content();
+        writeSegments(partial, content, 4);
+        Files.write(partial.getSegmentFile(2), Arrays.copyOfRange(content, 500, 700));
+        assertEquals(Arrays.asList(2), partial.getPendingSegments());
+
+        Path target = tempDir.resolve("merged.bin");
+        assertThrows(IOException.class, () -> partial.mergeInto(target));
+        assertFalse(Files.exists(target));
+        // received bytes are kept for the next try
+        assertEquals(700L, partial.getNextByte(2));
+    }
+
+    @Test
+    void singleSegmentIsMovedIntoPlace() throws IOException {
+        PartialDownloads.Partial partial = started(1);
+        byte[] content = content();
+        Files.write(partial.getSegmentFile(0), Arrays.copyOf(content, 999));
+        Path target = tempDir.resolve("merged.bin");
+        assertThrows(IOException.class, () -> partial.mergeInto(target));
+
+        Files.write(partial.getSegmentFile(0), content);
+        partial.mergeInto(target);
+        assertArrayEquals(content, Files.readAllBytes(target));
+    }
+
+    @Test
+    void startedPartialIsLoadedWithValidators() throws IOException {
+        started(4);
+        PartialDownloads.Partial loaded = partialDownloads.forUrl(URL);
+        assertTrue(loaded.isStarted());
+        assertEquals("\"v1\"", loaded.getValidator());
+        assertEquals(Arrays.asList(0, 1, 2, 3), loaded.getPendingSegments());
+        assertEquals(749L, loaded.getSegmentEnd(2));
+
+        // weak ETag is not usable for If-Range
+        loaded.start("W/\"v2\"", "Mon, 19 Oct 2026 00:00:00 GMT", LENGTH, 1);
+        assertEquals("Mon, 19 Oct 2026 00:00:00 GMT", partialDownloads.forUrl(URL).getValidator());
+    }
+
+    private PartialDownloads.Partial started(int segments) throws IOException {
+        PartialDownloads.Partial partial = partialDownloads.forUrl(URL);
+        partial.start("\"v1\"", null, LENGTH, segments);
+        return partial;
+    }
+
+    private static void writeSegments(PartialDownloads.Partial partial, byte[] content, int segments)
+            throws IOException {
+        for (int segment = 0; segment < segments; segment++) {
+            int from = (int) (LENGTH * segment / segments);
+            int to = (int) partial.getSegmentEnd(segment) + 1;
+            Files.write(partial.getSegmentFile(segment), Arrays.copyOfRange(content, from, to));
+        }
+    }
+
+    private static byte[] content() {
+        byte[] content = new byte[(int) LENGTH];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 7);
+        }
+        return content;
+    }
+}
@@ -0,0 +1,60 @@
+package downloader;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ResourceDirLocksTest {
+
+    @TempDir
+    Path resourcesDir;
+
+    @Test
+    void leftoversOfRunAreAbandonedOnlyAfterItReleasesLock() {
+        try (ResourceDirLocks second = new ResourceDirLocks("second")) {
+            ResourceDirLocks first = new ResourceDirLocks("first");
+            try {
+                assertTrue(first.lock(resourcesDir));
+                assertFalse(first.lock(resourcesDir));
+                assertTrue(second.lock(resourcesDir));
+
+                assertFalse(second.isAbandoned(resourcesDir, "first"));
+                assertFalse(second.isAbandoned(resourcesDir, "second"));
+                assertTrue(second.isAbandoned(resourcesDir, null));
+            } finally {
+                first.close();
+            }
+            assertFalse(Files.exists(ResourceDirLocks.getLockFile(resourcesDir, "first")));
+            assertTrue(second.isAbandoned(resourcesDir, "first"));
+        }
+    }
+
+    @Test
+    void lockFileOfKilledRunIsRemoved() throws IOException {
+        // run killed before close leaves its lock file unlocked
+        Path killed = Files.createFile(ResourceDirLocks.getLockFile(resourcesDir, "killed"));
+        try (ResourceDirLocks locks = new ResourceDirLocks("current")) {
+            assertTrue(locks.lock(resourcesDir));
+            assertTrue(locks.isAbandoned(resourcesDir, "killed"));
+
+            locks.removeAbandoned(resourcesDir);
+            assertFalse(Files.exists(killed));
+            assertTrue(Files.exists(ResourceDirLocks.getLockFile(resourcesDir, "current")));
+        }
+    }
+
+    @Test
+    void ownerIsTakenFromTempFileName() {
+        assertEquals("0a1b", ResourceProcessor.getTempFileOwner("temp_0a1b_12345.dat"));
+        // temp files of versions without owner
+        assertNull(ResourceProcessor.getTempFileOwner("temp_12345.dat"));
+    }
+}
@@ -0,0 +1,168 @@
+package downloader;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ResourcePackTest {
+
+    // first offset written to central directory as zip64 extra field
+    private static final long ZIP64_OFFSET = 0x100000000L;
+
+    @TempDir
+    Path tempDir;
+
+    private Path resourcesDir;
+    private Connection connection;
+    private SqlitePackIndex index;
+
+    @BeforeEach
+    void openIndex() throws IOException, SQLException {
+        resourcesDir = Files.createDirectories(tempDir.resolve("resources"));
+        connection = DriverManager.getConnection(SqliteHolder.JDBC_PREFIX
+                + tempDir.resolve("state.db").toString().replace('\\', '/'));
+        index = new SqlitePackIndex(connection, "pack_index");
+    }
+
+    @AfterEach
+    void closeIndex() throws SQLException {
+        connection.close();
+    }
+
+    @Test
+    void roundTripAcrossReopen() throws IOException {
+        byte[] css = "body { color: red; }".getBytes(StandardCharsets.UTF_8);
+        byte[] png = new byte[100_000];
+        for (int i = 0; i < png.length; i++) {
+            png[i] = (byte) (i * 31);
+        }
+        try (ResourcePack pack = new ResourcePack(resourcesDir, index)) {
+            pack.add("example.org/style.css", css);
+            pack.add("example.org\\img\\logo.png", png);
+        }
+        assertEntries(resourcesDir.resolve(ResourcePack.PACK_FILE_NAME), 2);
+
+        byte[] js = "alert(1);".getBytes(StandardCharsets.UTF_8);
+        try (ResourcePack pack = new ResourcePack(resourcesDir, index)) {
+            assertTrue(pack.contains("example.org/img/logo.png"));
+            assertFalse(pack.contains("example.org/app.js"));
+            pack.add("example.org/app.js", js);
+        }
+        assertEntries(resourcesDir.resolve(ResourcePack.PACK_FILE_NAME), 3);
+
+        Path extracted = tempDir.resolve("extracted");
+        try (ResourcePack pack = new ResourcePack(resourcesDir, index)) {
+            assertEquals(3L, pack.extractTo(extracted));
+        }
+        assertArrayEquals(css, Files.readAllBytes(extracted.resolve("example.org/style.css")));
+        assertArrayEquals(png, Files.readAllBytes(extracted.resolve("example.org/img/logo.png")));
+        assertArrayEquals(js, Files.readAllBytes(extracted.resolve("example.org/app.js")));
+    }
+
+    @Test
+    void centralDirectoryIsRebuiltAfterInterruptedRun() throws IOException {
+        Path packFile = resourcesDir.resolve(ResourcePack.PACK_FILE_NAME);
+        try (ResourcePack pack = new ResourcePack(resourcesDir, index)) {
+            pack.add("example.org/a.txt", "interrupted".getBytes(StandardCharsets.UTF_8));
+        }
+        // process killed before close: data and index are written, central directory is not
+        try (RandomAccessFile file = new RandomAccessFile(packFile.toFile(), "rw")) {
+            file.setLength(index.getDataEnd());
+        }
+
+        try (ResourcePack pack = new ResourcePack(resourcesDir, index)) {
+            assertTrue(pack.contains("example.org/a.txt"));
+        }
+        assertEntries(packFile, 1);
+    }
+
+    @Test
+    void entriesOutsideOfDirectoryAreNotExtracted() throws IOException {
+        try (ResourcePack pack = new ResourcePack(resourcesDir, index)) {
+            pack.add("../evil.txt", "evil".getBytes(StandardCharsets.UTF_8));
+            pack.add("example.org/../../escape/evil.txt", "evil".getBytes(StandardCharsets.UTF_8));
+            pack.add("example.org/good.txt", "good".getBytes(StandardCharsets.UTF_8));
+        }
+        Path extracted = tempDir.resolve("nested").resolve("extracted");
+        try (ResourcePack pack = new ResourcePack(resourcesDir, index)) {
+            assertEquals(1L, pack.extractTo(extracted));
+        }
+        assertTrue(Files.exists(extracted.resolve("example.org/good.txt")));
+        assertFalse(Files.exists(tempDir.resolve("nested").resolve("evil.txt")));
+        assertFalse(Files.exists(tempDir.resolve("nested").resolve("escape")));
+    }
+
+    @Test
+    void entryBeyondFourGigabytesUsesZip64() throws IOException {
+        Path packFile = resourcesDir.resolve(ResourcePack.PACK_FILE_NAME);
+        // sparse file stands for resources appended before, so no disk space is taken
+        try (RandomAccessFile file = new RandomAccessFile(packFile.toFile(), "rw")) {
+            file.setLength(ZIP64_OFFSET);
+        }
+        index.put(new SqlitePackIndex.Entry("padding.bin", 0L, 0L, 0L, 0L), ZIP64_OFFSET);
+
+        byte[] data = "beyond 4 GB".getBytes(StandardCharsets.UTF_8);
+        try (ResourcePack pack = new ResourcePack(resourcesDir, index)) {
+            pack.add("example.org/far.txt", data);
+        }
+
+        try (ZipFile zip = new ZipFile(packFile.toFile())) {
+            assertEquals(2, zip.size());
+            ZipEntry entry = zip.getEntry("example.org/far.txt");
+            assertNotNull(entry);
+            assertEquals(data.length, entry.getSize());
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            assertEquals(crc.getValue(), entry.getCrc());
+            try (InputStream in = zip.getInputStream(entry)) {
+                assertArrayEquals(data, readAll(in));
+            }
+        }
+    }
+
+    private static void assertEntries(Path packFile, int expected) throws IOException {
+        try (ZipFile zip = new ZipFile(packFile.toFile())) {
+            assertEquals(expected, zip.size());
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                assertEquals(ZipEntry.STORED, entry.getMethod());
+                try (InputStream in = zip.getInputStream(entry)) {
+                    CRC32 crc = new CRC32();
+                    crc.update(readAll(in));
+                    assertEquals(entry.getCrc(), crc.getValue(), entry.getName());
+                }
+            }
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int readied;
+        while ((readied = in.read(buffer)) > 0) {
+            out.write(buffer, 0, readied);
+        }
+        return out.toByteArray();
+    }
+}
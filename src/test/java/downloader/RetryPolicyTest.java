@@ -0,0 +1,79 @@
+package downloader;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RetryPolicyTest {
+
+    private static final long MAX_DELAY = 120_000L;
+
+    @Test
+    void delayDoublesWithEqualJitter() {
+        RetryPolicy policy = new RetryPolicy(1000L, 20);
+        for (int i = 0; i < 1000; i++) {
+            assertBetween(500L, 1000L, policy.getDelayMillis(1, 0L));
+            assertBetween(1000L, 2000L, policy.getDelayMillis(2, 0L));
+            assertBetween(4000L, 8000L, policy.getDelayMillis(4, 0L));
+        }
+    }
+
+    @Test
+    void delayIsCappedForLateAttempts() {
+        RetryPolicy policy = new RetryPolicy(1000L, 20);
+        for (int i = 0; i < 1000; i++) {
+            assertBetween(MAX_DELAY / 2, MAX_DELAY, policy.getDelayMillis(8, 0L));
+            // shift is bounded, no overflow to negative delay
+            assertBetween(MAX_DELAY / 2, MAX_DELAY, policy.getDelayMillis(100, 0L));
+        }
+    }
+
+    @Test
+    void retryAfterIsHonouredUpToCap() {
+        RetryPolicy policy = new RetryPolicy(1000L, 20);
+        assertEquals(30_000L, policy.getDelayMillis(1, 30_000L));
+        assertEquals(MAX_DELAY, policy.getDelayMillis(1, MAX_DELAY));
+
+        assertTrue(policy.isRetryable(new DownloadResult(503, 0L, 0L, MAX_DELAY)));
+        // would hold the document longer than any backoff
+        assertFalse(policy.isRetryable(new DownloadResult(503, 0L, 0L, MAX_DELAY + 1L)));
+    }
+
+    @Test
+    void onlyTransientFailuresAreRetryable() {
+        RetryPolicy policy = new RetryPolicy(1000L, 20);
+        for (int code : new int[]{DownloadResult.NO_RESPONSE, DownloadResult.DEADLINE_EXCEEDED,
+                DownloadResult.TOO_SLOW, 408, 425, 429, 500, 502, 503, 504}) {
+            assertTrue(policy.isRetryable(new DownloadResult(code, 0L, 0L, 0L)), String.valueOf(code));
+        }
+        for (int code : new int[]{DownloadResult.CIRCUIT_OPEN, DownloadResult.UNSUPPORTED_ENCODING,
+                200, 301, 400, 403, 404, 410, 501}) {
+            assertFalse(policy.isRetryable(new DownloadResult(code, 0L, 0L, 0L)), String.valueOf(code));
+        }
+    }
+
+    @Test
+    void budgetIsReservePlusShareOfRequests() {
+        RetryPolicy policy = new RetryPolicy(1000L, 20);
+        // reserve of 10 retries before any request
+        for (int i = 0; i < 10; i++) {
+            assertTrue(policy.tryAcquireRetry());
+        }
+        assertFalse(policy.tryAcquireRetry());
+
+        for (int i = 0; i < 50; i++) {
+            policy.onRequest();
+        }
+        // 20% of 50 requests
+        for (int i = 0; i < 10; i++) {
+            assertTrue(policy.tryAcquireRetry());
+        }
+        assertFalse(policy.tryAcquireRetry());
+    }
+
+    private static void assertBetween(long min, long max, long actual) {
+        assertTrue(actual >= min && actual <= max, actual + " is not within [" + min + ", " + max + "]");
+    }
+}